@@ -0,0 +1,165 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request marshaller that reads a large message into one array and parses it with aliasing enabled, so bytes fields
+ * (wkb, esri_shape, file chunk data) are views into that array instead of each being copied into its own. The
+ * parsed message keeps the whole array alive for as long as any of its bytes fields is referenced.
+ *
+ * This is not a parse over the received buffers: grpc 1.16 only hands the marshaller an InputStream, so the message
+ * is still copied once out of the transport's buffers, as the generated marshaller copies the bytes fields. Peak
+ * heap for a large message stays about the size of the message; what changes is one allocation for all of the
+ * payloads and geometries read in place from it. Messages up to DELEGATE_MAX_BYTES go to the generated marshaller,
+ * which reads them through a reused thread local buffer.
+ *
+ * Serialization is left to the generated marshaller.
+ */
+class AliasingMarshaller<T extends MessageLite> implements MethodDescriptor.PrototypeMarshaller<T> {
+    // the size up to which the generated marshaller parses from its thread local buffer
+    static final int DELEGATE_MAX_BYTES = 4 << 20;
+
+    private final MethodDescriptor.Marshaller<T> delegate;
+    private final T prototype;
+    private final Parser<T> parser;
+
+    @SuppressWarnings("unchecked")
+    AliasingMarshaller(MethodDescriptor.Marshaller<T> delegate, T prototype) {
+        this.delegate = delegate;
+        this.prototype = prototype;
+        this.parser = (Parser<T>) prototype.getParserForType();
+    }
+
+    /**
+     * copy of the service definition where every protobuf request is parsed by an AliasingMarshaller
+     */
+    static ServerServiceDefinition aliasRequests(ServerServiceDefinition serviceDefinition) {
+        ServiceDescriptor serviceDescriptor = serviceDefinition.getServiceDescriptor();
+        ServiceDescriptor.Builder descriptorBuilder = ServiceDescriptor
+                .newBuilder(serviceDescriptor.getName())
+                .setSchemaDescriptor(serviceDescriptor.getSchemaDescriptor());
+
+        List<ServerMethodDefinition<?, ?>> methods = new ArrayList<>();
+        for (ServerMethodDefinition<?, ?> method : serviceDefinition.getMethods()) {
+            ServerMethodDefinition<?, ?> aliased = aliasRequest(method);
+            descriptorBuilder.addMethod(aliased.getMethodDescriptor());
+            methods.add(aliased);
+        }
+
+        ServerServiceDefinition.Builder definitionBuilder = ServerServiceDefinition.builder(descriptorBuilder.build());
+        for (ServerMethodDefinition<?, ?> method : methods) {
+            definitionBuilder.addMethod(method);
+        }
+        return definitionBuilder.build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <ReqT, RespT> ServerMethodDefinition<ReqT, RespT> aliasRequest(ServerMethodDefinition<ReqT, RespT> method) {
+        MethodDescriptor<ReqT, RespT> methodDescriptor = method.getMethodDescriptor();
+        MethodDescriptor.Marshaller<ReqT> requestMarshaller = methodDescriptor.getRequestMarshaller();
+        if (!(requestMarshaller instanceof MethodDescriptor.PrototypeMarshaller) ||
+                !(((MethodDescriptor.PrototypeMarshaller<ReqT>) requestMarshaller).getMessagePrototype() instanceof MessageLite)) {
+            return method;
+        }
+
+        MessageLite prototype = (MessageLite) ((MethodDescriptor.PrototypeMarshaller<ReqT>) requestMarshaller).getMessagePrototype();
+        MethodDescriptor.Marshaller<ReqT> aliasingMarshaller =
+                (MethodDescriptor.Marshaller<ReqT>) new AliasingMarshaller<>((MethodDescriptor.Marshaller<MessageLite>) requestMarshaller, prototype);
+        MethodDescriptor<ReqT, RespT> aliasedDescriptor = methodDescriptor
+                .toBuilder(aliasingMarshaller, methodDescriptor.getResponseMarshaller())
+                .build();
+        return ServerMethodDefinition.create(aliasedDescriptor, method.getServerCallHandler());
+    }
+
+    @Override
+    public Class<T> getMessageClass() {
+        @SuppressWarnings("unchecked")
+        Class<T> messageClass = (Class<T>) prototype.getClass();
+        return messageClass;
+    }
+
+    @Override
+    public T getMessagePrototype() {
+        return prototype;
+    }
+
+    @Override
+    public InputStream stream(T value) {
+        return delegate.stream(value);
+    }
+
+    @Override
+    public T parse(InputStream stream) {
+        try {
+            if (stream instanceof KnownLength && stream.available() <= DELEGATE_MAX_BYTES) {
+                return delegate.parse(stream);
+            }
+            // protobuf only aliases buffers it knows to be immutable, the array is never written after it is read
+            CodedInputStream codedInputStream = UnsafeByteOperations.unsafeWrap(readAll(stream)).newCodedInput();
+            codedInputStream.enableAliasing(true);
+            // the server accepts messages up to 2GB, the default limit is 64MB
+            codedInputStream.setSizeLimit(Integer.MAX_VALUE);
+            return parser.parseFrom(codedInputStream);
+        } catch (InvalidProtocolBufferException e) {
+            throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+        } catch (IOException e) {
+            throw Status.INTERNAL.withDescription("Failed reading request").withCause(e).asRuntimeException();
+        }
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException {
+        // the transport's streams know their exact length, so the message is read into an array of that size
+        if (stream instanceof KnownLength) {
+            int size = stream.available();
+            byte[] buffer = new byte[size];
+            int offset = 0;
+            while (offset < size) {
+                int read = stream.read(buffer, offset, size - offset);
+                if (read == -1) {
+                    throw new IOException("request stream ended after " + offset + " of " + size + " bytes");
+                }
+                offset += read;
+            }
+            return buffer;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = stream.read(chunk)) != -1) {
+            outputStream.write(chunk, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+}
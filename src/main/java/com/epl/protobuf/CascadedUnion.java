@@ -0,0 +1,208 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.MultiVertexGeometry;
+import com.esri.core.geometry.OperatorUnion;
+import com.esri.core.geometry.SimpleGeometryCursor;
+import com.esri.core.geometry.SpatialReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Union of many geometries as a tree reduction. The leaves are sorted along a Hilbert curve through their envelope
+ * centers and cut into groups of about groupVertices vertices, so neighbours land in the same group and every group
+ * costs about the same. Groups are unioned on a fork join pool and their results merged pairwise up a balanced tree,
+ * each merge only joining two neighbouring parts of the result.
+ */
+final class CascadedUnion {
+    static final String GROUP_VERTICES_ENV = "GEOMETRY_UNION_GROUP_VERTICES";
+
+    // cells per axis of the Hilbert curve, 15 bits keep the curve index and the leaf index in one positive long
+    private static final int HILBERT_ORDER = 1 << 15;
+
+    private final SpatialReference spatialReference;
+    private final int groupVertices;
+    private final List<Geometry> leaves = new ArrayList<>();
+    private final List<Envelope2D> envelopes = new ArrayList<>();
+
+    CascadedUnion(SpatialReference spatialReference) {
+        this(spatialReference, GeometryExecutors.positiveIntFromEnvironment(GROUP_VERTICES_ENV, 16384));
+    }
+
+    CascadedUnion(SpatialReference spatialReference, int groupVertices) {
+        if (groupVertices < 1) {
+            throw new IllegalArgumentException("union groups need at least one vertex");
+        }
+        this.spatialReference = spatialReference;
+        this.groupVertices = groupVertices;
+    }
+
+    /**
+     * empty geometries don't change the union and are dropped
+     */
+    void add(Geometry geometry) {
+        if (geometry == null || geometry.isEmpty()) {
+            return;
+        }
+        Envelope2D envelope2D = new Envelope2D();
+        geometry.queryEnvelope2D(envelope2D);
+        leaves.add(geometry);
+        envelopes.add(envelope2D);
+    }
+
+    int size() {
+        return leaves.size();
+    }
+
+    /**
+     * union of every geometry added, null if there are none
+     */
+    Geometry union(ForkJoinPool pool) {
+        if (leaves.isEmpty()) {
+            return null;
+        }
+
+        Geometry[] sorted = hilbertSorted();
+        int[] groupStarts = groupStarts(sorted);
+        return pool.invoke(new GroupRange(sorted, groupStarts, 0, groupStarts.length - 1));
+    }
+
+    private Geometry[] hilbertSorted() {
+        int[] order = hilbertOrder(envelopes);
+        Geometry[] sorted = new Geometry[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sorted[i] = leaves.get(order[i]);
+        }
+        return sorted;
+    }
+
+    /**
+     * indexes of envelopes sorted by the Hilbert index of their centers, on a curve over the extent of all of them.
+     * empty envelopes have no center and sort first
+     */
+    static int[] hilbertOrder(List<Envelope2D> envelopes) {
+        Envelope2D extent = new Envelope2D();
+        extent.setEmpty();
+        for (Envelope2D envelope2D : envelopes) {
+            extent.merge(envelope2D);
+        }
+
+        double width = Math.max(extent.getWidth(), Double.MIN_NORMAL);
+        double height = Math.max(extent.getHeight(), Double.MIN_NORMAL);
+        long[] keys = new long[envelopes.size()];
+        for (int i = 0; i < keys.length; i++) {
+            Envelope2D envelope2D = envelopes.get(i);
+            int x = envelope2D.isEmpty() ? 0 : cell(envelope2D.getCenterX() - extent.xmin, width);
+            int y = envelope2D.isEmpty() ? 0 : cell(envelope2D.getCenterY() - extent.ymin, height);
+            keys[i] = hilbertIndex(x, y) << 32 | i;
+        }
+        Arrays.sort(keys);
+        return Arrays.stream(keys).mapToInt(key -> (int) key).toArray();
+    }
+
+    private static int cell(double offset, double size) {
+        return (int) Math.min(HILBERT_ORDER - 1, offset / size * HILBERT_ORDER);
+    }
+
+    /**
+     * distance along the Hilbert curve of the cell (x, y)
+     */
+    static long hilbertIndex(int x, int y) {
+        long d = 0;
+        for (int s = HILBERT_ORDER / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant so the curve stays continuous
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = HILBERT_ORDER - 1 - x;
+                    y = HILBERT_ORDER - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * start of every group in sorted, followed by sorted.length. a group closes once it holds groupVertices vertices
+     */
+    private int[] groupStarts(Geometry[] sorted) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        long vertices = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            vertices += vertexCount(sorted[i]);
+            if (vertices >= groupVertices && i + 1 < sorted.length) {
+                starts.add(i + 1);
+                vertices = 0;
+            }
+        }
+        starts.add(sorted.length);
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int vertexCount(Geometry geometry) {
+        return geometry instanceof MultiVertexGeometry ? ((MultiVertexGeometry) geometry).getPointCount() : 1;
+    }
+
+    /**
+     * union of the groups from firstGroup up to, not including, endGroup
+     */
+    private final class GroupRange extends RecursiveTask<Geometry> {
+        private final Geometry[] sorted;
+        private final int[] groupStarts;
+        private final int firstGroup;
+        private final int endGroup;
+
+        GroupRange(Geometry[] sorted, int[] groupStarts, int firstGroup, int endGroup) {
+            this.sorted = sorted;
+            this.groupStarts = groupStarts;
+            this.firstGroup = firstGroup;
+            this.endGroup = endGroup;
+        }
+
+        @Override
+        protected Geometry compute() {
+            if (endGroup - firstGroup == 1) {
+                Geometry[] group = Arrays.copyOfRange(sorted, groupStarts[firstGroup], groupStarts[endGroup]);
+                return OperatorUnion.local().execute(new SimpleGeometryCursor(group), spatialReference, null).next();
+            }
+
+            int middleGroup = (firstGroup + endGroup) >>> 1;
+            GroupRange left = new GroupRange(sorted, groupStarts, firstGroup, middleGroup);
+            left.fork();
+            Geometry rightUnion = new GroupRange(sorted, groupStarts, middleGroup, endGroup).compute();
+            Geometry leftUnion = left.join();
+            return OperatorUnion.local().execute(leftUnion, rightUnion, spatialReference, null);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Single producer / single consumer ring of byte chunks read as one continuous stream. The producer appends chunks
+ * as they arrive, the consumer reads from an absolute position that runs across chunk boundaries. Reads that fit in
+ * one chunk are returned as slices of it; only reads that straddle chunks are copied into a new buffer.
+ *
+ * No locks and no waiting: the consumer checks {@link #available()} (two volatile reads) and comes back when the
+ * producer has added the next chunk. The ring doubles in size when the producer finds it full, the consumer only
+ * ever reads slots between head and tail, and those are copied before the larger array is published.
+ */
+final class ChunkRing {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private volatile ByteBuffer[] slots = new ByteBuffer[INITIAL_CAPACITY];
+
+    // written by the producer only
+    private volatile long tail = 0;
+    private volatile long bytesWritten = 0;
+
+    // written by the consumer only
+    private volatile long head = 0;
+    private volatile long position = 0;
+    private int headOffset = 0;
+    // values that straddle chunks are assembled here, and the index of the last peeked value
+    private final ByteBuffer scratch = ByteBuffer.allocate(8);
+    private int peekIndex = 0;
+
+    /**
+     * producer: append the remaining bytes of chunk. the chunk's content must not change afterwards
+     */
+    void add(ByteBuffer chunk) {
+        if (!chunk.hasRemaining()) {
+            return;
+        }
+
+        ByteBuffer[] current = slots;
+        long currentTail = tail;
+        long currentHead = head;
+        if (currentTail - currentHead >= current.length) {
+            ByteBuffer[] grown = new ByteBuffer[current.length * 2];
+            for (long i = currentHead; i < currentTail; i++) {
+                grown[index(i, grown)] = current[index(i, current)];
+            }
+            slots = grown;
+            current = grown;
+        }
+
+        ByteBuffer slice = chunk.slice();
+        current[index(currentTail, current)] = slice;
+        bytesWritten = bytesWritten + slice.remaining();
+        // publish the slot
+        tail = currentTail + 1;
+    }
+
+    /**
+     * absolute position of the read cursor, the number of bytes consumed since the ring was created
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * bytes added and not yet consumed
+     */
+    long available() {
+        return bytesWritten - position;
+    }
+
+    /**
+     * consumer: the next length bytes. a slice of the current chunk if they fit in it, otherwise a copy
+     */
+    ByteBuffer read(int length) {
+        checkAvailable(length);
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        ByteBuffer chunk = headChunk();
+        if (chunk.limit() - headOffset >= length) {
+            ByteBuffer duplicate = chunk.duplicate();
+            duplicate.limit(headOffset + length).position(headOffset);
+            advance(length);
+            return duplicate.slice();
+        }
+
+        ByteBuffer assembled = ByteBuffer.allocate(length);
+        while (assembled.hasRemaining()) {
+            chunk = headChunk();
+            int count = Math.min(assembled.remaining(), chunk.limit() - headOffset);
+            ByteBuffer duplicate = chunk.duplicate();
+            duplicate.limit(headOffset + count).position(headOffset);
+            assembled.put(duplicate);
+            advance(count);
+        }
+        assembled.flip();
+        return assembled;
+    }
+
+    /**
+     * consumer: move the read cursor forward without reading
+     */
+    void skip(long length) {
+        checkAvailable(length);
+        while (length > 0) {
+            int count = (int) Math.min(length, headChunk().limit() - headOffset);
+            advance(count);
+            length -= count;
+        }
+    }
+
+    /**
+     * consumer: the int at offset bytes past the read cursor, without moving the cursor
+     */
+    int peekInt(int offset, ByteOrder byteOrder) {
+        ByteBuffer buffer = peekBuffer(offset, 4);
+        return byteOrder == ByteOrder.BIG_ENDIAN ?
+                ShapefileDecoder.bigEndianInt(buffer, peekIndex) :
+                ShapefileDecoder.littleEndianInt(buffer, peekIndex);
+    }
+
+    /**
+     * consumer: the long at offset bytes past the read cursor, without moving the cursor
+     */
+    long peekLong(int offset, ByteOrder byteOrder) {
+        ByteBuffer buffer = peekBuffer(offset, 8);
+        return byteOrder == ByteOrder.BIG_ENDIAN ?
+                ShapefileDecoder.bigEndianLong(buffer, peekIndex) :
+                ShapefileDecoder.littleEndianLong(buffer, peekIndex);
+    }
+
+    /**
+     * consumer: the double at offset bytes past the read cursor, without moving the cursor
+     */
+    double peekDouble(int offset, ByteOrder byteOrder) {
+        return Double.longBitsToDouble(peekLong(offset, byteOrder));
+    }
+
+    /**
+     * the buffer holding the width bytes at offset past the read cursor, with their index in it left in peekIndex.
+     * the chunk they're in, or the scratch buffer if they straddle chunks. the VarHandle views read at an absolute
+     * index in either byte order, so neither buffer is duplicated
+     */
+    private ByteBuffer peekBuffer(int offset, int width) {
+        checkAvailable(offset + (long) width);
+        ByteBuffer[] current = slots;
+        long chunkIndex = head;
+        int chunkOffset = headOffset + offset;
+        ByteBuffer chunk = current[index(chunkIndex, current)];
+        while (chunkOffset >= chunk.limit()) {
+            chunkOffset -= chunk.limit();
+            chunk = current[index(++chunkIndex, current)];
+        }
+        if (chunk.limit() - chunkOffset >= width) {
+            peekIndex = chunkOffset;
+            return chunk;
+        }
+
+        for (int i = 0; i < width; i++) {
+            if (chunkOffset == chunk.limit()) {
+                chunk = current[index(++chunkIndex, current)];
+                chunkOffset = 0;
+            }
+            scratch.put(i, chunk.get(chunkOffset++));
+        }
+        peekIndex = 0;
+        return scratch;
+    }
+
+    private void checkAvailable(long length) {
+        if (available() < length) {
+            throw new BufferUnderflowException();
+        }
+    }
+
+    private ByteBuffer headChunk() {
+        ByteBuffer[] current = slots;
+        return current[index(head, current)];
+    }
+
+    private void advance(int count) {
+        headOffset += count;
+        position = position + count;
+        ByteBuffer[] current = slots;
+        int slot = index(head, current);
+        if (headOffset == current[slot].limit()) {
+            // release the consumed chunk
+            current[slot] = null;
+            headOffset = 0;
+            head = head + 1;
+        }
+    }
+
+    private static int index(long sequence, ByteBuffer[] ring) {
+        return (int) (sequence & (ring.length - 1));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryCursor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Supplier;
+
+/**
+ * Geometry cursor over a file that arrives in chunks, as in FileOperateBiStreamFlow. hasNext() never waits, it is
+ * false until the chunk that completes the next feature has been added.
+ */
+abstract class ChunkedFileReader extends GeometryCursor {
+    /**
+     * append the next chunk of the file. the buffer is read in place, its content must not change afterwards
+     */
+    public abstract void addChunk(ByteBuffer chunk);
+
+    /**
+     * features that can't intersect the envelope are skipped before they are decoded. null turns the filter off
+     */
+    public abstract void setEnvelopeFilter(Envelope2D envelope);
+
+    /**
+     * the next feature, decoded when the returned supplier is called so that decoding can run on another thread
+     * while this reader moves on. getGeometryID and getFeatureID refer to it until the next call. readers that decode
+     * features in hasNext() hand over the geometry they already hold
+     */
+    Supplier<Geometry> nextRecord() {
+        Geometry geometry = next();
+        return geometry == null ? null : () -> geometry;
+    }
+
+    static ChunkedFileReader create(FileRequestChunk.FileType fileType, ByteBuffer firstChunk) throws IOException {
+        switch (fileType) {
+            case SHAPEFILE:
+                return new ShapefileChunkedReader(firstChunk);
+            case FLATGEOBUF:
+                return new FlatGeobufChunkedReader(firstChunk);
+            case GEOJSON:
+                return new GeoJsonChunkedReader(firstChunk);
+            default:
+                throw new IllegalArgumentException("file type " + fileType + " is not supported");
+        }
+    }
+}
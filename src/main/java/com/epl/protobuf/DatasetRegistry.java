@@ -0,0 +1,56 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The datasets registered with one server, by name. Owned by the GeometryServer, which drops them all when it stops,
+ * so servers in the same JVM don't see each other's datasets.
+ */
+final class DatasetRegistry {
+    private final ConcurrentHashMap<String, GeometryDataset> registered = new ConcurrentHashMap<>();
+
+    /**
+     * makes the dataset available under its name, replacing a dataset registered before under the same name
+     */
+    void register(GeometryDataset dataset) {
+        registered.put(dataset.name, dataset);
+    }
+
+    GeometryDataset get(String name) {
+        GeometryDataset dataset = registered.get(name);
+        if (dataset == null) {
+            throw new IllegalArgumentException("dataset " + name + " is not registered");
+        }
+        return dataset;
+    }
+
+    /**
+     * the dropped dataset, null if none was registered under the name
+     */
+    GeometryDataset drop(String name) {
+        return registered.remove(name);
+    }
+
+    void clear() {
+        registered.clear();
+    }
+}
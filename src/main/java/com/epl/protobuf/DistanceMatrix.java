@@ -0,0 +1,216 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.OperatorDistance;
+import com.esri.core.geometry.SpatialReference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Distances between every left and every right geometry. The matrix is computed in bands of rows on a fork join
+ * pool, and each band in tiles of tileSize columns. With a maxDistance, a tile whose row and column envelopes are
+ * further apart than maxDistance is skipped whole, and within a tile a pair whose envelopes are further apart is
+ * skipped; skipped and measured pairs further than maxDistance are reported as infinity. A pair with an empty
+ * geometry has no distance and is reported as NaN, like the DISTANCE operator, whatever the cutoff.
+ *
+ * Every band is handed to the sink as one response of packed row major distances, bands are small enough to keep a
+ * response under about MAX_VALUES_PER_RESPONSE distances.
+ */
+final class DistanceMatrix {
+    static final String TILE_SIZE_ENV = "GEOMETRY_DISTANCE_TILE_SIZE";
+
+    static final int MAX_VALUES_PER_RESPONSE = 1 << 17;
+
+    private final SpatialReference spatialReference;
+    private final double maxDistance;
+    private final int tileSize;
+    private final List<Geometry> leftGeometries = new ArrayList<>();
+    private final List<Envelope2D> leftEnvelopes = new ArrayList<>();
+    private final List<Geometry> rightGeometries = new ArrayList<>();
+    private final List<Envelope2D> rightEnvelopes = new ArrayList<>();
+
+    DistanceMatrix(SpatialReference spatialReference, double maxDistance) {
+        this(spatialReference, maxDistance, GeometryExecutors.positiveIntFromEnvironment(TILE_SIZE_ENV, 64));
+    }
+
+    /**
+     * a maxDistance of 0 measures every pair
+     */
+    DistanceMatrix(SpatialReference spatialReference, double maxDistance, int tileSize) {
+        if (maxDistance < 0) {
+            throw new IllegalArgumentException("max_distance can't be negative");
+        }
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("distance tiles need at least one geometry");
+        }
+        this.spatialReference = spatialReference;
+        this.maxDistance = maxDistance == 0 ? Double.POSITIVE_INFINITY : maxDistance;
+        this.tileSize = tileSize;
+    }
+
+    void addLeft(Geometry geometry, SpatialReference geometrySpatialReference) {
+        geometry = ProjectionTransformationCache.project(geometry, geometrySpatialReference, spatialReference);
+        leftGeometries.add(geometry);
+        leftEnvelopes.add(envelope(geometry));
+    }
+
+    void addRight(Geometry geometry, SpatialReference geometrySpatialReference) {
+        geometry = ProjectionTransformationCache.project(geometry, geometrySpatialReference, spatialReference);
+        rightGeometries.add(geometry);
+        rightEnvelopes.add(envelope(geometry));
+    }
+
+    private static Envelope2D envelope(Geometry geometry) {
+        Envelope2D envelope2D = new Envelope2D();
+        geometry.queryEnvelope2D(envelope2D);
+        return envelope2D;
+    }
+
+    /**
+     * computes the matrix, calling sink with every band of rows. sink is called from the pool's threads,
+     * concurrently, and bands may arrive in any order. bands stop once cancelled returns true
+     */
+    void run(ForkJoinPool pool, Consumer<DistanceMatrixResponse> sink, BooleanSupplier cancelled) {
+        if (leftGeometries.isEmpty() || rightGeometries.isEmpty()) {
+            return;
+        }
+        int bandRows = Math.max(1, Math.min(tileSize, MAX_VALUES_PER_RESPONSE / rightGeometries.size()));
+        int bands = (leftGeometries.size() + bandRows - 1) / bandRows;
+        pool.invoke(new BandRange(bandRows, 0, bands, sink, cancelled));
+    }
+
+    /**
+     * distance between the envelopes, a lower bound of the distance between their geometries. NaN if either is empty,
+     * which never compares greater than a cutoff
+     */
+    private static double envelopeDistance(Envelope2D a, Envelope2D b) {
+        double dx = Math.max(0, Math.max(a.xmin - b.xmax, b.xmin - a.xmax));
+        double dy = Math.max(0, Math.max(a.ymin - b.ymax, b.ymin - a.ymax));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static Envelope2D merged(List<Envelope2D> envelopes, int start, int end) {
+        Envelope2D merged = new Envelope2D();
+        merged.setEmpty();
+        for (int i = start; i < end; i++) {
+            merged.merge(envelopes.get(i));
+        }
+        return merged;
+    }
+
+    /**
+     * the bands from firstBand up to, not including, endBand
+     */
+    private final class BandRange extends RecursiveAction {
+        private final int bandRows;
+        private final int firstBand;
+        private final int endBand;
+        private final Consumer<DistanceMatrixResponse> sink;
+        private final BooleanSupplier cancelled;
+
+        BandRange(int bandRows, int firstBand, int endBand, Consumer<DistanceMatrixResponse> sink, BooleanSupplier cancelled) {
+            this.bandRows = bandRows;
+            this.firstBand = firstBand;
+            this.endBand = endBand;
+            this.sink = sink;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled.getAsBoolean()) {
+                return;
+            }
+            if (endBand - firstBand > 1) {
+                int middleBand = (firstBand + endBand) >>> 1;
+                invokeAll(new BandRange(bandRows, firstBand, middleBand, sink, cancelled),
+                        new BandRange(bandRows, middleBand, endBand, sink, cancelled));
+                return;
+            }
+
+            int firstRow = firstBand * bandRows;
+            int endRow = Math.min(leftGeometries.size(), firstRow + bandRows);
+            int columns = rightGeometries.size();
+            double[] distances = new double[(endRow - firstRow) * columns];
+            Arrays.fill(distances, Double.POSITIVE_INFINITY);
+            // pairs with an empty geometry are NaN, set up front so skipped tiles can't leave them at infinity
+            for (int row = firstRow; row < endRow; row++) {
+                if (leftEnvelopes.get(row).isEmpty()) {
+                    Arrays.fill(distances, (row - firstRow) * columns, (row - firstRow + 1) * columns, Double.NaN);
+                }
+            }
+            for (int column = 0; column < columns; column++) {
+                if (rightEnvelopes.get(column).isEmpty()) {
+                    for (int row = firstRow; row < endRow; row++) {
+                        distances[(row - firstRow) * columns + column] = Double.NaN;
+                    }
+                }
+            }
+
+            boolean bounded = maxDistance != Double.POSITIVE_INFINITY;
+            Envelope2D bandEnvelope = bounded ? merged(leftEnvelopes, firstRow, endRow) : null;
+            OperatorDistance operatorDistance = OperatorDistance.local();
+            for (int firstColumn = 0; firstColumn < columns; firstColumn += tileSize) {
+                int endColumn = Math.min(columns, firstColumn + tileSize);
+                if (bounded && envelopeDistance(bandEnvelope, merged(rightEnvelopes, firstColumn, endColumn)) > maxDistance) {
+                    continue;
+                }
+                for (int row = firstRow; row < endRow && !cancelled.getAsBoolean(); row++) {
+                    Geometry left = leftGeometries.get(row);
+                    if (left.isEmpty()) {
+                        continue;
+                    }
+                    for (int column = firstColumn; column < endColumn; column++) {
+                        if (rightEnvelopes.get(column).isEmpty() ||
+                                bounded && envelopeDistance(leftEnvelopes.get(row), rightEnvelopes.get(column)) > maxDistance) {
+                            continue;
+                        }
+                        double distance = operatorDistance.execute(left, rightGeometries.get(column), null);
+                        if (!(distance > maxDistance)) {
+                            distances[(row - firstRow) * columns + column] = distance;
+                        }
+                    }
+                }
+            }
+
+            if (cancelled.getAsBoolean()) {
+                return;
+            }
+            DistanceMatrixResponse.Builder responseBuilder = DistanceMatrixResponse.newBuilder()
+                    .setFirstRow(firstRow)
+                    .setRowCount(endRow - firstRow)
+                    .setColumnCount(columns);
+            for (double distance : distances) {
+                responseBuilder.addDistances(distance);
+            }
+            sink.accept(responseBuilder.build());
+        }
+    }
+}
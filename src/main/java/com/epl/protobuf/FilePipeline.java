@@ -0,0 +1,355 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryCursor;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Three stage pipeline for a file stream. The reader stage adds each chunk to the stream's {@link ChunkedFileReader}
+ * and cuts the records it completes into batches. Batches run the chunk's nested request on the compute pool, one
+ * worker each, and the writer stage sends their responses in file order.
+ *
+ * The next chunk is only requested from the client once fewer than maxBatchesInFlight batches are waiting to be
+ * sent, so a slow response stream or a busy pool holds back the client instead of queueing decoded records.
+ */
+class FilePipeline {
+    static final String BATCH_SIZE_ENV = "GEOMETRY_FILE_BATCH_SIZE";
+
+    private final Executor computeExecutor;
+    // the reader stage, chunks are read one after the other
+    private final Executor readerExecutor;
+    private final ServerCallStreamObserver<GeometryResponse> responseObserver;
+    private final GeometryMetrics metrics;
+    private final DatasetRegistry datasets;
+    private final int batchSize;
+    private final int maxBatchesInFlight;
+
+    // only touched by the reader stage
+    private ChunkedFileReader chunkedFileReader = null;
+
+    // Guard against spurious onReady() calls caused by a race between a consumed chunk and onReady().
+    private final AtomicBoolean wasReady = new AtomicBoolean(false);
+    // chunks that may be requested from the client the next time the response stream is ready
+    private final AtomicInteger credits = new AtomicInteger(1);
+
+    // everything below is guarded by this
+    private final Map<Long, Object> completed = new HashMap<>();
+    private long nextSequence = 0;
+    private long nextEmit = 0;
+    private int inFlight = 0;
+    // the reader stage is done with its chunk but too many batches are in flight to request the next one
+    private boolean chunkOwed = false;
+    private boolean inputCompleted = false;
+    private volatile boolean terminated = false;
+
+    FilePipeline(Executor computeExecutor,
+                 ServerCallStreamObserver<GeometryResponse> responseObserver,
+                 int batchSize,
+                 int maxBatchesInFlight,
+                 GeometryMetrics metrics,
+                 DatasetRegistry datasets) {
+        if (batchSize < 1 || maxBatchesInFlight < 1) {
+            throw new IllegalArgumentException("file pipeline batch size and batches in flight must be at least 1");
+        }
+        this.computeExecutor = computeExecutor;
+        this.readerExecutor = new SerializingExecutor(computeExecutor);
+        this.responseObserver = responseObserver;
+        this.batchSize = batchSize;
+        this.maxBatchesInFlight = maxBatchesInFlight;
+        this.metrics = metrics;
+        this.datasets = datasets;
+
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.setOnReadyHandler(this::onReady);
+    }
+
+    /**
+     * records per batch, GEOMETRY_FILE_BATCH_SIZE or 256
+     */
+    static int batchSizeFromEnvironment() {
+        return GeometryExecutors.positiveIntFromEnvironment(BATCH_SIZE_ENV, 256);
+    }
+
+    /**
+     * Signal the client to send the next chunk once the response stream is ready. The first call primes the
+     * message pump.
+     */
+    void onReady() {
+        if (responseObserver.isReady() && wasReady.compareAndSet(false, true)) {
+            if (credits.getAndSet(0) > 0) {
+                responseObserver.request(1);
+            }
+        }
+    }
+
+    /**
+     * called from the StreamObserver's onNext. gRPC never calls onNext concurrently for one stream
+     */
+    void submit(FileRequestChunk fileRequestChunk) {
+        readerExecutor.execute(() -> read(fileRequestChunk));
+    }
+
+    /**
+     * called from the StreamObserver's onCompleted. the response stream is completed once the chunks before it have
+     * been read and every batch has been sent.
+     */
+    void inputCompleted() {
+        readerExecutor.execute(() -> {
+            synchronized (this) {
+                inputCompleted = true;
+                if (inFlight == 0 && !terminated) {
+                    terminated = true;
+                    responseObserver.onCompleted();
+                }
+            }
+        });
+    }
+
+    /**
+     * called from the StreamObserver's onError. the call is already cancelled, so pending results are dropped and
+     * the response stream is ended.
+     */
+    void cancel() {
+        synchronized (this) {
+            completed.clear();
+            if (!terminated) {
+                terminated = true;
+                responseObserver.onCompleted();
+            }
+        }
+    }
+
+    private void read(FileRequestChunk fileRequestChunk) {
+        if (terminated) {
+            return;
+        }
+
+        try {
+            // the chunk's bytes are read in place, records are sliced out of them
+            ByteBuffer chunk = fileRequestChunk.getData().asReadOnlyByteBuffer();
+            if (chunkedFileReader == null) {
+                chunkedFileReader = ChunkedFileReader.create(fileRequestChunk.getFileType(), chunk);
+            } else {
+                chunkedFileReader.addChunk(chunk);
+            }
+            GeometryRequest nestedRequest = fileRequestChunk.getNestedRequest();
+            // features that can't intersect a CLIP or INTERSECTION envelope are skipped before import
+            chunkedFileReader.setEnvelopeFilter(GeometryServiceUtil.inputFilterEnvelope(nestedRequest));
+
+            RequestPlan plan = RequestPlan.of(nestedRequest);
+            // a union of the chunk has to see all of the chunk's records
+            int size = plan.aggregates ? Integer.MAX_VALUE : batchSize;
+            RecordBatch recordBatch = null;
+            Supplier<Geometry> record;
+            while ((record = chunkedFileReader.nextRecord()) != null) {
+                if (recordBatch == null) {
+                    recordBatch = new RecordBatch(Math.min(size, batchSize));
+                }
+                recordBatch.add(record, chunkedFileReader.getGeometryID(), chunkedFileReader.getFeatureID());
+                if (recordBatch.size() == size) {
+                    process(nestedRequest, plan, recordBatch);
+                    recordBatch = null;
+                }
+            }
+            if (recordBatch != null) {
+                process(nestedRequest, plan, recordBatch);
+            }
+        } catch (Throwable throwable) {
+            // sent after the responses of the batches before it
+            complete(reserveSequence(), throwable);
+            return;
+        }
+
+        boolean requestChunk;
+        synchronized (this) {
+            requestChunk = inFlight < maxBatchesInFlight;
+            chunkOwed = !requestChunk;
+        }
+        if (requestChunk) {
+            requestChunk();
+        }
+    }
+
+    private synchronized long reserveSequence() {
+        inFlight++;
+        return nextSequence++;
+    }
+
+    private void process(GeometryRequest nestedRequest, RequestPlan plan, RecordBatch recordBatch) {
+        long sequence = reserveSequence();
+        computeExecutor.execute(() -> {
+            Object result;
+            try {
+                long startTime = System.nanoTime();
+                List<GeometryResponse> geometryResponses = new ArrayList<>();
+                if (GeometryServiceUtil.isNonCursorOperator(nestedRequest.getOperator())) {
+                    // relations and measures only read one left geometry
+                    for (int i = 0; i < recordBatch.size(); i++) {
+                        geometryResponses.add(GeometryServiceUtil.nonCursorFromRequest(
+                                nestedRequest, plan, recordBatch.cursor(i, i + 1), null, datasets));
+                    }
+                } else {
+                    GeometryResponsesIterator operatorResultsIterator = GeometryServiceUtil.buildResultsIterable(
+                            nestedRequest, plan, recordBatch.cursor(0, recordBatch.size()), true, datasets);
+                    while (operatorResultsIterator.hasNext()) {
+                        geometryResponses.add(operatorResultsIterator.next());
+                    }
+                }
+                metrics.recordOperation(nestedRequest, System.nanoTime() - startTime);
+                result = geometryResponses;
+            } catch (Throwable throwable) {
+                result = throwable;
+            }
+            complete(sequence, result);
+        });
+    }
+
+    private void complete(long sequence, Object result) {
+        boolean requestChunk = false;
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+
+            completed.put(sequence, result);
+            Object next;
+            while (!terminated && (next = completed.remove(nextEmit)) != null) {
+                nextEmit++;
+                emit(next);
+            }
+
+            if (!terminated && inputCompleted && inFlight == 0) {
+                terminated = true;
+                responseObserver.onCompleted();
+            } else if (!terminated && chunkOwed && inFlight < maxBatchesInFlight) {
+                chunkOwed = false;
+                requestChunk = true;
+            }
+        }
+
+        if (requestChunk) {
+            requestChunk();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void emit(Object result) {
+        inFlight--;
+        if (result instanceof Throwable) {
+            terminated = true;
+            completed.clear();
+            responseObserver.onError(Status.UNKNOWN
+                    .withDescription("Error handling request")
+                    .withCause((Throwable) result)
+                    .asException());
+            return;
+        }
+
+        for (GeometryResponse geometryResponse : (List<GeometryResponse>) result) {
+            responseObserver.onNext(geometryResponse);
+        }
+    }
+
+    private void requestChunk() {
+        // As long as isReady() stays true, the server keeps cycling through onNext() -> request(). If the server runs
+        // out of buffer space, isReady() turns false and the request is handed to the onReadyHandler.
+        if (responseObserver.isReady()) {
+            responseObserver.request(1);
+            return;
+        }
+
+        credits.incrementAndGet();
+        // note that back-pressure has begun
+        if (wasReady.getAndSet(false)) {
+            metrics.flowControlPause();
+        }
+        // the transport may have turned ready again before wasReady was cleared
+        onReady();
+    }
+
+    /**
+     * records cut from the file by the reader stage, decoded by the worker that runs them
+     */
+    private static final class RecordBatch {
+        private final List<Supplier<Geometry>> records;
+        private final List<Long> geometryIds;
+        private final List<String> featureIds;
+
+        RecordBatch(int capacity) {
+            records = new ArrayList<>(capacity);
+            geometryIds = new ArrayList<>(capacity);
+            featureIds = new ArrayList<>(capacity);
+        }
+
+        void add(Supplier<Geometry> record, long geometryId, String featureId) {
+            records.add(record);
+            geometryIds.add(geometryId);
+            featureIds.add(featureId);
+        }
+
+        int size() {
+            return records.size();
+        }
+
+        GeometryCursor cursor(int from, int to) {
+            return new GeometryCursor() {
+                private int index = from - 1;
+
+                @Override
+                public boolean hasNext() {
+                    return index + 1 < to;
+                }
+
+                @Override
+                public Geometry next() {
+                    if (!hasNext()) {
+                        return null;
+                    }
+                    index++;
+                    return records.get(index).get();
+                }
+
+                @Override
+                public long getGeometryID() {
+                    return geometryIds.get(index);
+                }
+
+                @Override
+                public String getFeatureID() {
+                    return featureIds.get(index);
+                }
+            };
+        }
+    }
+}
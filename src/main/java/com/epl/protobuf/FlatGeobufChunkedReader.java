@@ -0,0 +1,563 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads FlatGeobuf (https://flatgeobuf.org) features from chunks of a .fgb file as they arrive. Chunks are appended
+ * to a {@link ChunkRing}, the header and each feature are decoded once the chunk completing them has been added.
+ * Geometry ids are the 0 based position of the feature in the file.
+ *
+ * With an envelope filter set and a file that has a spatial index, the packed Hilbert R-tree is searched while its
+ * nodes stream in: only the children of matching nodes are read, and features the search didn't reach are skipped
+ * in the ring without being decoded. Files without an index are filtered on each feature's coordinate extent
+ * before its geometry is built.
+ *
+ * The FlatBuffers tables are read directly from the feature bytes, only the fields the geometry needs are touched.
+ */
+public class FlatGeobufChunkedReader extends ChunkedFileReader {
+    // "fgb" and the major version 3, then "fgb" and the patch version, both read as little endian ints
+    private static final int MAGIC_FGB = 0x00626766;
+    private static final int MAGIC_MAJOR_VERSION = 3;
+    private static final int MAGIC_BYTES = 8;
+    private static final int SIZE_PREFIX_BYTES = 4;
+    // min x, min y, max x, max y and a uint64 offset
+    private static final int NODE_ITEM_BYTES = 40;
+    private static final int DEFAULT_INDEX_NODE_SIZE = 16;
+
+    // Header table fields
+    private static final int HEADER_ENVELOPE = 1;
+    private static final int HEADER_GEOMETRY_TYPE = 2;
+    private static final int HEADER_HAS_Z = 3;
+    private static final int HEADER_FEATURES_COUNT = 8;
+    private static final int HEADER_INDEX_NODE_SIZE = 9;
+
+    // Feature and Geometry table fields
+    private static final int FEATURE_GEOMETRY = 0;
+    private static final int GEOMETRY_ENDS = 0;
+    private static final int GEOMETRY_XY = 1;
+    private static final int GEOMETRY_Z = 2;
+    private static final int GEOMETRY_TYPE = 6;
+    private static final int GEOMETRY_PARTS = 7;
+
+    // GeometryType
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+    private static final int MULTIPOINT = 4;
+    private static final int MULTILINESTRING = 5;
+    private static final int MULTIPOLYGON = 6;
+
+    private static final int READ_HEADER = 0;
+    private static final int READ_INDEX = 1;
+    private static final int READ_FEATURES = 2;
+
+    private final ChunkRing chunkRing = new ChunkRing();
+    private int stage = READ_HEADER;
+    private Envelope2D filterEnvelope = null;
+
+    // from the header
+    private int geometryType;
+    private boolean hasZ;
+    private long featuresCount;
+    private int indexNodeSize;
+    private Envelope2D envelope2D = null;
+
+    // the packed R-tree, levels stored root first
+    private long numNodes = 0;
+    private long leafStart;
+    private long[] levelEnds;
+    private long indexStart;
+    private boolean indexFiltered = false;
+    // node ranges still to visit and {offset, feature index} of the leaves that matched, both in file order
+    private final ArrayDeque<long[]> nodeRanges = new ArrayDeque<>();
+    private final ArrayDeque<long[]> wantedFeatures = new ArrayDeque<>();
+
+    private long featuresStart;
+    private long nextFeatureIndex = 0;
+    private ByteBuffer pendingFeature = null;
+    private long pendingFeatureIndex;
+    private long currentFeatureIndex;
+
+    FlatGeobufChunkedReader(ByteBuffer firstChunk) {
+        chunkRing.add(firstChunk);
+    }
+
+    @Override
+    public void addChunk(ByteBuffer chunk) {
+        chunkRing.add(chunk);
+    }
+
+    /**
+     * takes effect on the spatial index only if set before the index is reached
+     */
+    @Override
+    public void setEnvelopeFilter(Envelope2D envelope) {
+        filterEnvelope = envelope;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (pendingFeature != null) {
+            return true;
+        }
+        if (stage == READ_HEADER && !readHeader()) {
+            return false;
+        }
+        if (stage == READ_INDEX && !readIndex()) {
+            return false;
+        }
+        return readFeature();
+    }
+
+    @Override
+    public Geometry next() {
+        if (!hasNext()) {
+            return null;
+        }
+        ByteBuffer feature = pendingFeature;
+        pendingFeature = null;
+        currentFeatureIndex = pendingFeatureIndex;
+
+        int geometry = reference(feature, root(feature, SIZE_PREFIX_BYTES), FEATURE_GEOMETRY);
+        if (geometry < 0) {
+            return emptyGeometry(geometryType);
+        }
+        return toGeometry(feature, geometry, geometryType);
+    }
+
+    @Override
+    public long getGeometryID() {
+        return currentFeatureIndex;
+    }
+
+    /**
+     * the file's envelope, null until the header has arrived or if the file doesn't have one
+     */
+    public Envelope2D getEnvelope2D() {
+        return envelope2D;
+    }
+
+    public Geometry.Type getGeometryType() {
+        return emptyGeometry(geometryType).getType();
+    }
+
+    private boolean readHeader() {
+        if (chunkRing.available() < MAGIC_BYTES + SIZE_PREFIX_BYTES) {
+            return false;
+        }
+        int magicStart = chunkRing.peekInt(0, ByteOrder.LITTLE_ENDIAN);
+        int magicEnd = chunkRing.peekInt(4, ByteOrder.LITTLE_ENDIAN);
+        if ((magicStart & 0xffffff) != MAGIC_FGB || (magicEnd & 0xffffff) != MAGIC_FGB) {
+            throw new GeometryException("file is not a FlatGeobuf file");
+        }
+        if (magicStart >>> 24 != MAGIC_MAJOR_VERSION) {
+            throw new GeometryException("FlatGeobuf version " + (magicStart >>> 24) + " is not supported");
+        }
+
+        long headerSize = chunkRing.peekInt(MAGIC_BYTES, ByteOrder.LITTLE_ENDIAN) & 0xffffffffL;
+        if (chunkRing.available() < MAGIC_BYTES + SIZE_PREFIX_BYTES + headerSize) {
+            return false;
+        }
+        chunkRing.skip(MAGIC_BYTES + SIZE_PREFIX_BYTES);
+        ByteBuffer header = chunkRing.read((int) headerSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        int table = root(header, 0);
+        geometryType = (int) scalar(header, table, HEADER_GEOMETRY_TYPE, 1, 0);
+        hasZ = scalar(header, table, HEADER_HAS_Z, 1, 0) != 0;
+        featuresCount = scalar(header, table, HEADER_FEATURES_COUNT, 8, 0);
+        indexNodeSize = (int) scalar(header, table, HEADER_INDEX_NODE_SIZE, 2, DEFAULT_INDEX_NODE_SIZE);
+        int envelope = reference(header, table, HEADER_ENVELOPE);
+        if (vectorLength(header, envelope) >= 4) {
+            envelope2D = new Envelope2D(
+                    doubleAt(header, envelope, 0), doubleAt(header, envelope, 1),
+                    doubleAt(header, envelope, 2), doubleAt(header, envelope, 3));
+        }
+
+        if (indexNodeSize > 0 && featuresCount > 0) {
+            levelBounds();
+        }
+        indexStart = chunkRing.position();
+        indexFiltered = filterEnvelope != null && numNodes > 0;
+        if (indexFiltered) {
+            nodeRanges.add(new long[]{0, 1});
+        }
+        stage = READ_INDEX;
+        return true;
+    }
+
+    /**
+     * node counts of the packed R-tree levels, as in the FlatGeobuf reference implementation
+     */
+    private void levelBounds() {
+        int nodeSize = Math.min(Math.max(indexNodeSize, 2), 65535);
+        List<Long> levelNumNodes = new ArrayList<>();
+        long n = featuresCount;
+        numNodes = n;
+        levelNumNodes.add(n);
+        do {
+            n = (n + nodeSize - 1) / nodeSize;
+            numNodes += n;
+            levelNumNodes.add(n);
+        } while (n != 1);
+
+        // levelNumNodes runs from the leaves to the root, the file stores the root first
+        levelEnds = new long[levelNumNodes.size()];
+        long end = numNodes;
+        for (int level = 0; level < levelNumNodes.size(); level++) {
+            levelEnds[levelEnds.length - 1 - level] = end;
+            end -= levelNumNodes.get(level);
+        }
+        leafStart = numNodes - featuresCount;
+        indexNodeSize = nodeSize;
+    }
+
+    private long levelEnd(long node) {
+        for (long levelEnd : levelEnds) {
+            if (node < levelEnd) {
+                return levelEnd;
+            }
+        }
+        return numNodes;
+    }
+
+    private boolean readIndex() {
+        long indexEnd = indexStart + numNodes * NODE_ITEM_BYTES;
+        if (!indexFiltered) {
+            if (!skipTo(indexEnd)) {
+                return false;
+            }
+        } else if (!searchIndex(indexEnd)) {
+            return false;
+        }
+        featuresStart = chunkRing.position();
+        stage = READ_FEATURES;
+        return true;
+    }
+
+    /**
+     * visits the nodes of the queued ranges in file order. matching internal nodes queue the range of their children,
+     * matching leaves the offset of their feature. the cursor only ever moves by whole nodes
+     */
+    private boolean searchIndex(long indexEnd) {
+        while (true) {
+            long[] range = nodeRanges.peek();
+            if (range == null) {
+                return skipTo(indexEnd);
+            }
+
+            long node = (chunkRing.position() - indexStart) / NODE_ITEM_BYTES;
+            if (node >= range[1]) {
+                nodeRanges.poll();
+                continue;
+            }
+            if (node < range[0]) {
+                long nodes = Math.min(range[0] - node, chunkRing.available() / NODE_ITEM_BYTES);
+                if (nodes == 0) {
+                    return false;
+                }
+                chunkRing.skip(nodes * NODE_ITEM_BYTES);
+                continue;
+            }
+
+            if (chunkRing.available() < NODE_ITEM_BYTES) {
+                return false;
+            }
+            if (filterEnvelope.isIntersecting(
+                    chunkRing.peekDouble(0, ByteOrder.LITTLE_ENDIAN),
+                    chunkRing.peekDouble(8, ByteOrder.LITTLE_ENDIAN),
+                    chunkRing.peekDouble(16, ByteOrder.LITTLE_ENDIAN),
+                    chunkRing.peekDouble(24, ByteOrder.LITTLE_ENDIAN))) {
+                long offset = chunkRing.peekLong(32, ByteOrder.LITTLE_ENDIAN);
+                if (node >= leafStart) {
+                    wantedFeatures.add(new long[]{offset, node - leafStart});
+                } else {
+                    nodeRanges.add(new long[]{offset, Math.min(offset + indexNodeSize, levelEnd(offset))});
+                }
+            }
+            chunkRing.skip(NODE_ITEM_BYTES);
+        }
+    }
+
+    private boolean readFeature() {
+        while (true) {
+            if (indexFiltered) {
+                long featurePosition = chunkRing.position() - featuresStart;
+                while (!wantedFeatures.isEmpty() && wantedFeatures.peek()[0] < featurePosition) {
+                    wantedFeatures.poll();
+                }
+                if (wantedFeatures.isEmpty()) {
+                    // nothing else in the file can match
+                    chunkRing.skip(chunkRing.available());
+                    return false;
+                }
+                if (!skipTo(featuresStart + wantedFeatures.peek()[0])) {
+                    return false;
+                }
+                nextFeatureIndex = wantedFeatures.peek()[1];
+            }
+
+            if (chunkRing.available() < SIZE_PREFIX_BYTES) {
+                return false;
+            }
+            long featureSize = chunkRing.peekInt(0, ByteOrder.LITTLE_ENDIAN) & 0xffffffffL;
+            if (chunkRing.available() < SIZE_PREFIX_BYTES + featureSize) {
+                return false;
+            }
+            ByteBuffer feature = chunkRing.read((int) (SIZE_PREFIX_BYTES + featureSize)).order(ByteOrder.LITTLE_ENDIAN);
+            long featureIndex = nextFeatureIndex++;
+            if (indexFiltered) {
+                wantedFeatures.poll();
+            } else if (filterEnvelope != null && !mayIntersect(feature, filterEnvelope)) {
+                continue;
+            }
+
+            pendingFeature = feature;
+            pendingFeatureIndex = featureIndex;
+            return true;
+        }
+    }
+
+    private boolean skipTo(long position) {
+        long length = Math.min(position - chunkRing.position(), chunkRing.available());
+        if (length > 0) {
+            chunkRing.skip(length);
+        }
+        return chunkRing.position() >= position;
+    }
+
+    private static boolean mayIntersect(ByteBuffer feature, Envelope2D envelope) {
+        int geometry = reference(feature, root(feature, SIZE_PREFIX_BYTES), FEATURE_GEOMETRY);
+        if (geometry < 0) {
+            return false;
+        }
+        Envelope2D extent = new Envelope2D();
+        extent.setEmpty();
+        mergeExtent(feature, geometry, extent);
+        return !extent.isEmpty() && envelope.isIntersecting(extent);
+    }
+
+    private static void mergeExtent(ByteBuffer feature, int geometry, Envelope2D extent) {
+        int xy = reference(feature, geometry, GEOMETRY_XY);
+        int vertexCount = vectorLength(feature, xy) / 2;
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            extent.merge(doubleAt(feature, xy, 2 * vertex), doubleAt(feature, xy, 2 * vertex + 1));
+        }
+        int parts = reference(feature, geometry, GEOMETRY_PARTS);
+        for (int part = 0; part < vectorLength(feature, parts); part++) {
+            mergeExtent(feature, tableAt(feature, parts, part), extent);
+        }
+    }
+
+    private Geometry toGeometry(ByteBuffer feature, int geometry, int type) {
+        // only geometries inside collections carry their own type
+        int ownType = (int) scalar(feature, geometry, GEOMETRY_TYPE, 1, 0);
+        if (ownType != 0) {
+            type = ownType;
+        }
+
+        switch (type) {
+            case POINT:
+                Point point = new Point();
+                int xy = reference(feature, geometry, GEOMETRY_XY);
+                if (vectorLength(feature, xy) >= 2) {
+                    point.setXY(doubleAt(feature, xy, 0), doubleAt(feature, xy, 1));
+                    int z = zVector(feature, geometry, 1);
+                    if (z >= 0) {
+                        point.setZ(doubleAt(feature, z, 0));
+                    }
+                }
+                return point;
+            case MULTIPOINT:
+                return toMultiPoint(feature, geometry);
+            case LINESTRING:
+            case MULTILINESTRING:
+                return addPaths(new Polyline(), feature, geometry, false);
+            case POLYGON:
+                return addPaths(new Polygon(), feature, geometry, true);
+            case MULTIPOLYGON:
+                Polygon polygon = new Polygon();
+                int parts = reference(feature, geometry, GEOMETRY_PARTS);
+                for (int part = 0; part < vectorLength(feature, parts); part++) {
+                    addPaths(polygon, feature, tableAt(feature, parts, part), true);
+                }
+                return polygon;
+            default:
+                throw new GeometryException("FlatGeobuf geometry type " + type + " is not supported");
+        }
+    }
+
+    private MultiPoint toMultiPoint(ByteBuffer feature, int geometry) {
+        MultiPoint multiPoint = new MultiPoint();
+        int xy = reference(feature, geometry, GEOMETRY_XY);
+        int vertexCount = vectorLength(feature, xy) / 2;
+        int z = zVector(feature, geometry, vertexCount);
+        if (z >= 0) {
+            multiPoint.addAttribute(VertexDescription.Semantics.Z);
+        }
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            multiPoint.add(doubleAt(feature, xy, 2 * vertex), doubleAt(feature, xy, 2 * vertex + 1));
+            if (z >= 0) {
+                multiPoint.setAttribute(VertexDescription.Semantics.Z, vertex, 0, doubleAt(feature, z, vertex));
+            }
+        }
+        return multiPoint;
+    }
+
+    /**
+     * appends the geometry's paths, split at the ends vector. the ring closing vertex is implicit in polygons
+     */
+    private MultiPath addPaths(MultiPath multiPath, ByteBuffer feature, int geometry, boolean rings) {
+        int xy = reference(feature, geometry, GEOMETRY_XY);
+        int vertexCount = vectorLength(feature, xy) / 2;
+        int z = zVector(feature, geometry, vertexCount);
+        if (z >= 0 && !multiPath.hasAttribute(VertexDescription.Semantics.Z)) {
+            multiPath.addAttribute(VertexDescription.Semantics.Z);
+        }
+        if (vertexCount == 0) {
+            return multiPath;
+        }
+
+        Point zVertex = z >= 0 ? new Point() : null;
+        int ends = reference(feature, geometry, GEOMETRY_ENDS);
+        int partCount = vectorLength(feature, ends);
+        int start = 0;
+        for (int part = 0; part < Math.max(1, partCount); part++) {
+            int end = partCount == 0 ? vertexCount : feature.getInt(ends + 4 + 4 * part);
+            if (end <= start || end > vertexCount) {
+                throw new GeometryException("FlatGeobuf ends must increase and stay below the vertex count");
+            }
+
+            int last = end;
+            if (rings && last - start > 1 &&
+                    doubleAt(feature, xy, 2 * start) == doubleAt(feature, xy, 2 * (last - 1)) &&
+                    doubleAt(feature, xy, 2 * start + 1) == doubleAt(feature, xy, 2 * (last - 1) + 1)) {
+                last--;
+            }
+
+            for (int vertex = start; vertex < last; vertex++) {
+                double x = doubleAt(feature, xy, 2 * vertex);
+                double y = doubleAt(feature, xy, 2 * vertex + 1);
+                if (zVertex != null) {
+                    // startPath only adds its vertex with the first lineTo, so z can't be set by index afterwards
+                    zVertex.setXY(x, y);
+                    zVertex.setZ(doubleAt(feature, z, vertex));
+                    if (vertex == start) {
+                        multiPath.startPath(zVertex);
+                    } else {
+                        multiPath.lineTo(zVertex);
+                    }
+                } else if (vertex == start) {
+                    multiPath.startPath(x, y);
+                } else {
+                    multiPath.lineTo(x, y);
+                }
+            }
+            start = end;
+        }
+        return multiPath;
+    }
+
+    private int zVector(ByteBuffer feature, int geometry, int vertexCount) {
+        if (!hasZ) {
+            return -1;
+        }
+        int z = reference(feature, geometry, GEOMETRY_Z);
+        return vectorLength(feature, z) >= vertexCount ? z : -1;
+    }
+
+    private static Geometry emptyGeometry(int type) {
+        switch (type) {
+            case MULTIPOINT:
+                return new MultiPoint();
+            case LINESTRING:
+            case MULTILINESTRING:
+                return new Polyline();
+            case POLYGON:
+            case MULTIPOLYGON:
+                return new Polygon();
+            default:
+                return new Point();
+        }
+    }
+
+    /*
+     FlatBuffers access. a table starts with the signed offset back to its vtable, the vtable lists the offset of each
+     field within the table (0 when the field is absent). tables, vectors and strings are referenced by unsigned
+     offsets relative to where the offset is stored. positions below are absolute indexes in the buffer, -1 if absent
+     */
+
+    private static int root(ByteBuffer buffer, int index) {
+        return index + buffer.getInt(index);
+    }
+
+    private static int fieldOffset(ByteBuffer buffer, int table, int field) {
+        int vtable = table - buffer.getInt(table);
+        int vtableSize = buffer.getShort(vtable) & 0xffff;
+        int entry = 4 + 2 * field;
+        return entry < vtableSize ? buffer.getShort(vtable + entry) & 0xffff : 0;
+    }
+
+    private static long scalar(ByteBuffer buffer, int table, int field, int size, long defaultValue) {
+        int offset = fieldOffset(buffer, table, field);
+        if (offset == 0) {
+            return defaultValue;
+        }
+        switch (size) {
+            case 1:
+                return buffer.get(table + offset) & 0xff;
+            case 2:
+                return buffer.getShort(table + offset) & 0xffff;
+            default:
+                return buffer.getLong(table + offset);
+        }
+    }
+
+    /**
+     * position of the table or vector the field references
+     */
+    private static int reference(ByteBuffer buffer, int table, int field) {
+        int offset = fieldOffset(buffer, table, field);
+        if (offset == 0) {
+            return -1;
+        }
+        return root(buffer, table + offset);
+    }
+
+    private static int vectorLength(ByteBuffer buffer, int vector) {
+        return vector < 0 ? 0 : buffer.getInt(vector);
+    }
+
+    private static double doubleAt(ByteBuffer buffer, int vector, int index) {
+        return buffer.getDouble(vector + 4 + 8 * index);
+    }
+
+    private static int tableAt(ByteBuffer buffer, int vector, int index) {
+        return root(buffer, vector + 4 + 4 * index);
+    }
+}
@@ -0,0 +1,268 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryException;
+import com.esri.core.geometry.OperatorImportFromGeoJson;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Reads GeoJSON features from chunks of a newline delimited GeoJSON file or of a FeatureCollection document as they
+ * arrive. Each chunk is scanned once for the bounds of the features in it, only the bytes of the feature currently
+ * being read are held on to, so memory follows the largest feature rather than the size of the file.
+ *
+ * Every top level object is a feature (or a bare geometry), except for a FeatureCollection, whose "features" array
+ * elements are the features. A feature's "id" becomes its feature id, geometry ids are the 0 based position of the
+ * feature in the file. Features with a null geometry are skipped. A top level array is rejected rather than read as
+ * an empty file.
+ */
+public class GeoJsonChunkedReader extends ChunkedFileReader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final byte[] FEATURES_KEY = "features".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_DEPTH = 256;
+
+    // scanner state, carried from one chunk to the next
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+    // depth 1 object keys are compared against "features" as they are scanned
+    private final byte[] key = new byte[FEATURES_KEY.length + 1];
+    private int keyLength = 0;
+    private boolean lastStringWasFeaturesKey = false;
+    // the top level object is a FeatureCollection once its "features" array opens
+    private boolean inFeatureCollection = false;
+    private int featuresArrayDepth = -1;
+
+    // bytes of the feature being scanned
+    private byte[] feature = new byte[4096];
+    private int featureLength = 0;
+    private boolean capturing = false;
+
+    private final ArrayDeque<byte[]> scannedFeatures = new ArrayDeque<>();
+    private long nextFeatureIndex = 0;
+    private Envelope2D filterEnvelope = null;
+
+    private Geometry pendingGeometry = null;
+    private long pendingFeatureIndex;
+    private String pendingFeatureId;
+    private long currentFeatureIndex;
+    private String currentFeatureId = "";
+
+    GeoJsonChunkedReader(ByteBuffer firstChunk) {
+        addChunk(firstChunk);
+    }
+
+    @Override
+    public void addChunk(ByteBuffer chunk) {
+        int start = chunk.position();
+        int end = chunk.limit();
+        int captureStart = capturing ? start : -1;
+        for (int i = start; i < end; i++) {
+            byte b = chunk.get(i);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                    lastStringWasFeaturesKey = depth == 1 &&
+                            Arrays.equals(key, 0, keyLength, FEATURES_KEY, 0, FEATURES_KEY.length);
+                } else if (depth == 1 && keyLength < key.length) {
+                    key[keyLength++] = b;
+                }
+                continue;
+            }
+
+            switch (b) {
+                case '"':
+                    inString = true;
+                    keyLength = 0;
+                    break;
+                case '{':
+                case '[':
+                    if (depth == MAX_DEPTH) {
+                        throw new GeometryException("GeoJSON is nested deeper than " + MAX_DEPTH);
+                    }
+                    depth++;
+                    if (depth == 1 && b == '[') {
+                        // would be scanned without yielding a feature, and read as an empty file
+                        throw new GeometryException("a top level GeoJSON array isn't supported, send a FeatureCollection " +
+                                "or newline delimited features");
+                    }
+                    if (depth == 2 && b == '[' && lastStringWasFeaturesKey) {
+                        // a FeatureCollection, drop what was held of it and read the array elements instead
+                        inFeatureCollection = true;
+                        featuresArrayDepth = depth;
+                        capturing = false;
+                        featureLength = 0;
+                        captureStart = -1;
+                    } else if (b == '{' && !capturing && (depth == 1 || (inFeatureCollection && depth == featuresArrayDepth + 1))) {
+                        capturing = true;
+                        captureStart = i;
+                    }
+                    lastStringWasFeaturesKey = false;
+                    break;
+                case '}':
+                case ']':
+                    if (depth == 0) {
+                        throw new GeometryException("unbalanced GeoJSON at byte " + i + " of a chunk");
+                    }
+                    depth--;
+                    if (capturing && b == '}' && (depth == 0 || (inFeatureCollection && depth == featuresArrayDepth))) {
+                        append(chunk, captureStart, i + 1);
+                        scannedFeatures.add(Arrays.copyOf(feature, featureLength));
+                        featureLength = 0;
+                        capturing = false;
+                        captureStart = -1;
+                    }
+                    if (depth == 0) {
+                        inFeatureCollection = false;
+                        featuresArrayDepth = -1;
+                    }
+                    break;
+                case ':':
+                    break;
+                default:
+                    if (b != ' ' && b != '\n' && b != '\r' && b != '\t' && b != ',') {
+                        lastStringWasFeaturesKey = false;
+                    }
+            }
+        }
+        if (capturing) {
+            append(chunk, captureStart, end);
+        }
+    }
+
+    private void append(ByteBuffer chunk, int from, int to) {
+        int length = to - from;
+        if (featureLength + length > feature.length) {
+            feature = Arrays.copyOf(feature, Math.max(feature.length * 2, featureLength + length));
+        }
+        ByteBuffer source = chunk.duplicate();
+        source.limit(to).position(from);
+        source.get(feature, featureLength, length);
+        featureLength += length;
+    }
+
+    @Override
+    public void setEnvelopeFilter(Envelope2D envelope) {
+        filterEnvelope = envelope;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (pendingGeometry == null && !scannedFeatures.isEmpty()) {
+            byte[] bytes = scannedFeatures.poll();
+            long featureIndex = nextFeatureIndex++;
+            try {
+                parseFeature(bytes, featureIndex);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return pendingGeometry != null;
+    }
+
+    /**
+     * sets the pending geometry unless the feature has no geometry or doesn't pass the envelope filter
+     */
+    private void parseFeature(byte[] bytes, long featureIndex) throws IOException {
+        String featureId = "";
+        int geometryStart = 0;
+        int geometryEnd = bytes.length;
+        boolean isFeature = false;
+        boolean hasGeometry = false;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(bytes)) {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("geometry".equals(fieldName)) {
+                    isFeature = true;
+                    hasGeometry = true;
+                    if (value == JsonToken.VALUE_NULL) {
+                        return;
+                    }
+                    geometryStart = (int) parser.getTokenLocation().getByteOffset();
+                    parser.skipChildren();
+                    geometryEnd = (int) parser.getCurrentLocation().getByteOffset();
+                } else if ("id".equals(fieldName) && value.isScalarValue()) {
+                    featureId = parser.getText();
+                } else if ("type".equals(fieldName) && "Feature".equals(parser.getText())) {
+                    isFeature = true;
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (isFeature && !hasGeometry) {
+            return;
+        }
+
+        String geoJson = new String(bytes, geometryStart, geometryEnd - geometryStart, StandardCharsets.UTF_8);
+        Geometry geometry = OperatorImportFromGeoJson.local().execute(0, Geometry.Type.Unknown, geoJson, null).getGeometry();
+        if (filterEnvelope != null) {
+            Envelope2D envelope2D = new Envelope2D();
+            geometry.queryEnvelope2D(envelope2D);
+            if (!filterEnvelope.isIntersecting(envelope2D)) {
+                return;
+            }
+        }
+        pendingGeometry = geometry;
+        pendingFeatureIndex = featureIndex;
+        pendingFeatureId = featureId;
+    }
+
+    @Override
+    public Geometry next() {
+        if (!hasNext()) {
+            return null;
+        }
+        Geometry geometry = pendingGeometry;
+        pendingGeometry = null;
+        currentFeatureIndex = pendingFeatureIndex;
+        currentFeatureId = pendingFeatureId;
+        return geometry;
+    }
+
+    @Override
+    public long getGeometryID() {
+        return currentFeatureIndex;
+    }
+
+    @Override
+    public String getFeatureID() {
+        return currentFeatureId;
+    }
+}
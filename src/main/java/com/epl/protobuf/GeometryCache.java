@@ -0,0 +1,177 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.GeometryCursor;
+import com.esri.core.geometry.Operator;
+import com.esri.core.geometry.OperatorFactoryLocal;
+import com.esri.core.geometry.OperatorSimpleRelation;
+import com.esri.core.geometry.SimpleStateEnum;
+import com.esri.core.geometry.SpatialReference;
+import com.google.protobuf.ByteString;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * Imported right operands, kept across requests. A stream that tests many geometries against the same fence sends
+ * the same right geometry in every message; the cached operand skips importing it again and keeps the rasterized
+ * geometry and quad tree the relation operators build when a geometry is accelerated.
+ *
+ * Operands are keyed by a SHA-256 digest of their geometry and spatial reference fields, so the key doesn't hold on
+ * to the request bytes, and by the spatial reference they were projected into. The cache is bounded by the
+ * estimated memory of the cached geometries, accelerators included. Cached geometries are shared between threads
+ * and must only be read.
+ */
+final class GeometryCache {
+    static final String CACHE_BYTES_ENV = "GEOMETRY_OPERAND_CACHE_BYTES";
+
+    private static final LruCache<OperandKey, Geometry> operands = new LruCache<>(
+            GeometryExecutors.positiveIntFromEnvironment(CACHE_BYTES_ENV, 64 << 20), Geometry::estimateMemorySize);
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private GeometryCache() {
+    }
+
+    /**
+     * the geometry of geometryData projected from geometrySR into operatorSR, accelerated for the simple relation
+     * operators
+     */
+    static Geometry get(GeometryData geometryData, SpatialReference geometrySR, SpatialReference operatorSR) {
+        return operands.get(new OperandKey(digest(geometryData), operatorSR), key -> {
+            Geometry geometry = ProjectionTransformationCache.project(
+                    GeometryServiceUtil.extractGeometry(geometryData), geometrySR, operatorSR);
+            // every simple relation builds the same accelerators, any of them can prepare the geometry
+            OperatorSimpleRelation operator = (OperatorSimpleRelation) OperatorFactoryLocal
+                    .getInstance()
+                    .getOperator(Operator.Type.Intersects);
+            if (operator.canAccelerateGeometry(geometry)) {
+                operator.accelerateGeometry(geometry, operatorSR, Geometry.GeometryAccelerationDegree.enumMedium);
+            }
+            return geometry;
+        });
+    }
+
+    /**
+     * cursor over the cached operand, with the ids of geometryData
+     */
+    static GeometryCursor cursor(GeometryData geometryData, SpatialReference geometrySR, SpatialReference operatorSR) {
+        return new OperandCursor(geometryData, get(geometryData, geometrySR, operatorSR));
+    }
+
+    static long getHitCount() {
+        return operands.getHitCount();
+    }
+
+    static long getMissCount() {
+        return operands.getMissCount();
+    }
+
+    private static ByteString digest(GeometryData geometryData) {
+        MessageDigest digest = digests.get();
+        update(digest, geometryData.getWkb());
+        update(digest, geometryData.getEsriShape());
+        update(digest, ByteString.copyFromUtf8(geometryData.getWkt()));
+        update(digest, ByteString.copyFromUtf8(geometryData.getGeojson()));
+        update(digest, geometryData.getPacked().toByteString());
+        update(digest, geometryData.getSr().toByteString());
+        return ByteString.copyFrom(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, ByteString field) {
+        // length prefixed, so the same bytes in a different field give a different digest
+        int size = field.size();
+        digest.update(new byte[]{(byte) (size >>> 24), (byte) (size >>> 16), (byte) (size >>> 8), (byte) size});
+        digest.update(field.asReadOnlyByteBuffer());
+    }
+
+    private static final class OperandCursor extends GeometryCursor {
+        private final GeometryData geometryData;
+        private final Geometry geometry;
+        private boolean consumed = false;
+
+        OperandCursor(GeometryData geometryData, Geometry geometry) {
+            this.geometryData = geometryData;
+            this.geometry = geometry;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !consumed;
+        }
+
+        @Override
+        public Geometry next() {
+            if (consumed) {
+                return null;
+            }
+            consumed = true;
+            return geometry;
+        }
+
+        @Override
+        public long getGeometryID() {
+            return geometryData.getGeometryId();
+        }
+
+        @Override
+        public String getFeatureID() {
+            return geometryData.getFeatureId();
+        }
+
+        @Override
+        public SimpleStateEnum getSimpleState() {
+            return SimpleStateEnum.valueOf(geometryData.getSimple().name());
+        }
+    }
+
+    private static final class OperandKey {
+        private final ByteString digest;
+        private final SpatialReference operatorSR;
+
+        OperandKey(ByteString digest, SpatialReference operatorSR) {
+            this.digest = digest;
+            this.operatorSR = operatorSR;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof OperandKey)) return false;
+            OperandKey that = (OperandKey) o;
+            return digest.equals(that.digest) && Objects.equals(operatorSR, that.operatorSR);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(digest, operatorSR);
+        }
+    }
+}
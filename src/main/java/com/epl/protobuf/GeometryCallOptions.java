@@ -0,0 +1,136 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import io.grpc.*;
+
+/**
+ * Per call options a client can send as request headers. The interceptor copies the headers into the call's
+ * {@link Context} so the service methods can read them with {@link Context#current()}.
+ *
+ * geometry-window: number of requests from one stream that may be processed concurrently
+ * geometry-unordered: "true" to emit stream results as soon as they finish instead of in request order
+ * geometry-batch-records: pack up to this many stream results into one response message, see {@link ResponseBatcher}
+ * geometry-batch-bytes: send a packed response once its results reach this many bytes, 1 MiB by default
+ * geometry-batch-linger-ms: longest time a result waits for others to share its message, 10 ms by default
+ */
+public final class GeometryCallOptions {
+    static final String WINDOW_ENV = "GEOMETRY_STREAM_WINDOW";
+
+    public static final Metadata.Key<String> WINDOW_HEADER =
+            Metadata.Key.of("geometry-window", Metadata.ASCII_STRING_MARSHALLER);
+    public static final Metadata.Key<String> UNORDERED_HEADER =
+            Metadata.Key.of("geometry-unordered", Metadata.ASCII_STRING_MARSHALLER);
+    public static final Metadata.Key<String> BATCH_RECORDS_HEADER =
+            Metadata.Key.of("geometry-batch-records", Metadata.ASCII_STRING_MARSHALLER);
+    public static final Metadata.Key<String> BATCH_BYTES_HEADER =
+            Metadata.Key.of("geometry-batch-bytes", Metadata.ASCII_STRING_MARSHALLER);
+    public static final Metadata.Key<String> BATCH_LINGER_HEADER =
+            Metadata.Key.of("geometry-batch-linger-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+    static final Context.Key<Integer> WINDOW = Context.key("geometry-window");
+    static final Context.Key<Boolean> UNORDERED = Context.key("geometry-unordered");
+    static final Context.Key<Integer> BATCH_RECORDS = Context.key("geometry-batch-records");
+    static final Context.Key<Integer> BATCH_BYTES = Context.key("geometry-batch-bytes");
+    static final Context.Key<Integer> BATCH_LINGER = Context.key("geometry-batch-linger-ms");
+
+    private GeometryCallOptions() {
+    }
+
+    /**
+     * stream window for the current call, defaults to GEOMETRY_STREAM_WINDOW or the number of cores
+     */
+    static int window() {
+        Integer window = WINDOW.get();
+        if (window != null) {
+            return window;
+        }
+        return GeometryExecutors.positiveIntFromEnvironment(WINDOW_ENV, GeometryExecutors.availableCores());
+    }
+
+    static boolean unordered() {
+        Boolean unordered = UNORDERED.get();
+        return unordered != null && unordered;
+    }
+
+    /**
+     * results per response message for the current call, 1 when the client didn't ask for batching
+     */
+    static int batchRecords() {
+        Integer batchRecords = BATCH_RECORDS.get();
+        return batchRecords != null ? batchRecords : 1;
+    }
+
+    static int batchBytes() {
+        Integer batchBytes = BATCH_BYTES.get();
+        return batchBytes != null ? batchBytes : 1 << 20;
+    }
+
+    static int batchLingerMillis() {
+        Integer batchLinger = BATCH_LINGER.get();
+        return batchLinger != null ? batchLinger : 10;
+    }
+
+    static class Interceptor implements ServerInterceptor {
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                     Metadata headers,
+                                                                     ServerCallHandler<ReqT, RespT> next) {
+            Context context = Context.current();
+            try {
+                context = withPositiveInt(context, headers, WINDOW_HEADER, WINDOW);
+                context = withPositiveInt(context, headers, BATCH_RECORDS_HEADER, BATCH_RECORDS);
+                context = withPositiveInt(context, headers, BATCH_BYTES_HEADER, BATCH_BYTES);
+                context = withPositiveInt(context, headers, BATCH_LINGER_HEADER, BATCH_LINGER);
+            } catch (IllegalArgumentException e) {
+                call.close(Status.INVALID_ARGUMENT.withDescription(e.getMessage()), new Metadata());
+                return new ServerCall.Listener<ReqT>() {};
+            }
+
+            String unordered = headers.get(UNORDERED_HEADER);
+            if (unordered != null) {
+                context = context.withValue(UNORDERED, Boolean.parseBoolean(unordered.trim()));
+            }
+
+            return Contexts.interceptCall(context, call, headers, next);
+        }
+
+        private static Context withPositiveInt(Context context,
+                                               Metadata headers,
+                                               Metadata.Key<String> header,
+                                               Context.Key<Integer> key) {
+            String value = headers.get(header);
+            if (value == null) {
+                return context;
+            }
+
+            try {
+                int parsed = Integer.parseInt(value.trim());
+                if (parsed >= 1) {
+                    return context.withValue(key, parsed);
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException(header.name() + " must be a positive integer");
+        }
+    }
+}
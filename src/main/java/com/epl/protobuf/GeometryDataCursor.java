@@ -0,0 +1,86 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Geometry cursor over a list of GeometryData messages, so a whole batch runs through one operator cursor chain.
+ * Each message is decoded lazily by its own import cursor; ids, feature ids and simple states are carried over.
+ */
+class GeometryDataCursor extends GeometryCursor {
+    private final Iterator<GeometryCursor> cursors;
+    private GeometryCursor current = null;
+
+    private long geometryId = -1;
+    private String featureId = "";
+    private SimpleStateEnum simpleState = SimpleStateEnum.SIMPLE_UNKNOWN;
+
+    GeometryDataCursor(List<GeometryData> geometries) throws IOException {
+        List<GeometryCursor> importCursors = new ArrayList<>(geometries.size());
+        for (GeometryData geometryData : geometries) {
+            importCursors.add(GeometryServiceUtil.extractGeometryCursor(geometryData));
+        }
+        cursors = importCursors.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((current == null || !current.hasNext()) && cursors.hasNext()) {
+            current = cursors.next();
+        }
+        return current != null && current.hasNext();
+    }
+
+    @Override
+    public Geometry next() {
+        if (!hasNext()) {
+            return null;
+        }
+
+        Geometry geometry = current.next();
+        // downstream cursors read the ids after next(), by then hasNext() may have moved on to the next message
+        geometryId = current.getGeometryID();
+        featureId = current.getFeatureID();
+        simpleState = current.getSimpleState();
+        return geometry;
+    }
+
+    @Override
+    public long getGeometryID() {
+        return geometryId;
+    }
+
+    @Override
+    public String getFeatureID() {
+        return featureId;
+    }
+
+    @Override
+    public SimpleStateEnum getSimpleState() {
+        return simpleState;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.Operator;
+import com.esri.core.geometry.OperatorDistance;
+import com.esri.core.geometry.OperatorFactoryLocal;
+import com.esri.core.geometry.OperatorSimpleRelation;
+import com.esri.core.geometry.SpatialReference;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Named set of geometries held by the server for relation and nearest neighbour queries, so requests only send the
+ * geometry they test instead of resending the whole set. The geometries are indexed by an STR packed R-tree; a
+ * relation query only runs the relation operator on the geometries whose envelopes intersect the query geometry's
+ * envelope, and a nearest neighbour query walks the tree best first.
+ *
+ * Datasets are registered with the RegisterDataset rpc, held in the server's {@link DatasetRegistry}, and queried by
+ * naming them in a request's right_dataset.
+ */
+final class GeometryDataset {
+    final String name;
+    // null if the geometries came without one
+    final SpatialReference spatialReference;
+    private final Geometry[] geometries;
+    private final long[] geometryIds;
+    private final StrTree tree;
+    private final Envelope2D envelope2D = new Envelope2D();
+
+    private GeometryDataset(String name, SpatialReference spatialReference, List<Geometry> geometries, List<Long> geometryIds) {
+        this.name = name;
+        this.spatialReference = spatialReference;
+        this.geometries = geometries.toArray(new Geometry[0]);
+        this.geometryIds = geometryIds.stream().mapToLong(Long::longValue).toArray();
+
+        envelope2D.setEmpty();
+        double[] boxes = new double[this.geometries.length * 4];
+        Envelope2D geometryEnvelope = new Envelope2D();
+        for (int i = 0; i < this.geometries.length; i++) {
+            this.geometries[i].queryEnvelope2D(geometryEnvelope);
+            envelope2D.merge(geometryEnvelope);
+            boxes[i * 4] = geometryEnvelope.xmin;
+            boxes[i * 4 + 1] = geometryEnvelope.ymin;
+            boxes[i * 4 + 2] = geometryEnvelope.xmax;
+            boxes[i * 4 + 3] = geometryEnvelope.ymax;
+        }
+        tree = new StrTree(boxes);
+    }
+
+    int size() {
+        return geometries.length;
+    }
+
+    Envelope2D getEnvelope2D() {
+        return new Envelope2D(envelope2D.xmin, envelope2D.ymin, envelope2D.xmax, envelope2D.ymax);
+    }
+
+    /**
+     * geometry ids, in registration order, of the dataset geometries g for which "geometry relation g" holds. the
+     * geometry must be in the dataset's spatial reference
+     */
+    long[] matchingIds(Geometry geometry, Operator.Type relation) {
+        OperatorSimpleRelation operator = (OperatorSimpleRelation) OperatorFactoryLocal.getInstance().getOperator(relation);
+        boolean disjoint = relation == Operator.Type.Disjoint;
+        boolean[] matches = new boolean[geometries.length];
+        int[] matchCount = new int[1];
+        if (!geometry.isEmpty()) {
+            Envelope2D queryEnvelope = new Envelope2D();
+            geometry.queryEnvelope2D(queryEnvelope);
+            // a geometry can only be disjoint from the geometries it doesn't intersect
+            OperatorSimpleRelation candidateOperator = disjoint ?
+                    (OperatorSimpleRelation) OperatorFactoryLocal.getInstance().getOperator(Operator.Type.Intersects) : operator;
+            tree.search(queryEnvelope, i -> {
+                if (candidateOperator.execute(geometry, geometries[i], spatialReference, null)) {
+                    matches[i] = true;
+                    matchCount[0]++;
+                }
+            });
+        }
+
+        long[] ids = new long[disjoint ? geometries.length - matchCount[0] : matchCount[0]];
+        int next = 0;
+        for (int i = 0; i < geometries.length; i++) {
+            if (matches[i] != disjoint) {
+                ids[next++] = geometryIds[i];
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * adds the ids and distances of the k dataset geometries nearest to geometry, nearest first, to the response.
+     * geometries further than maxDistance are left out. the geometry must be in the dataset's spatial reference
+     */
+    void nearest(Geometry geometry, int k, double maxDistance, GeometryResponse.Builder responseBuilder) {
+        if (geometry.isEmpty()) {
+            return;
+        }
+        Envelope2D queryEnvelope = new Envelope2D();
+        geometry.queryEnvelope2D(queryEnvelope);
+        OperatorDistance operatorDistance = OperatorDistance.local();
+        tree.nearest(queryEnvelope, k, maxDistance,
+                i -> geometries[i].isEmpty() ? Double.POSITIVE_INFINITY : operatorDistance.execute(geometry, geometries[i], null),
+                (i, distance) -> responseBuilder.addMatchingIds(geometryIds[i]).addDistances(distance));
+    }
+
+    /**
+     * collects geometries as they're streamed in. geometries in another spatial reference than the dataset's are
+     * projected into it
+     */
+    static final class Builder {
+        private final String name;
+        private final SpatialReference spatialReference;
+        private final List<Geometry> geometries = new ArrayList<>();
+        private final List<Long> geometryIds = new ArrayList<>();
+
+        Builder(String name, SpatialReference spatialReference) {
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("a dataset needs a name");
+            }
+            this.name = name;
+            this.spatialReference = spatialReference;
+        }
+
+        Builder add(Geometry geometry, SpatialReference geometrySpatialReference, long geometryId) {
+            geometries.add(ProjectionTransformationCache.project(geometry, geometrySpatialReference, spatialReference));
+            geometryIds.add(geometryId);
+            return this;
+        }
+
+        GeometryDataset build() {
+            return new GeometryDataset(name, spatialReference, geometries, geometryIds);
+        }
+    }
+
+}
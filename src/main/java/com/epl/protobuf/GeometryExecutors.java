@@ -0,0 +1,180 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Factory for the executors used by {@link GeometryServer}. gRPC transport callbacks run on a small transport pool
+ * and the geometry operators run on a separate compute pool, so a long running UNION or BUFFER can't starve the
+ * callbacks of other calls.
+ *
+ * The compute pool is chosen with the GEOMETRY_EXECUTOR environment variable (FIXED, WORK_STEALING or VIRTUAL) and
+ * sized with GEOMETRY_COMPUTE_THREADS. When no size is given the pool follows
+ * {@link Runtime#availableProcessors()}, which on JDK 10+ honors the container's cpu quota
+ * (https://bugs.openjdk.java.net/browse/JDK-8146115).
+ */
+public final class GeometryExecutors {
+    private static final Logger logger = Logger.getLogger(GeometryExecutors.class.getName());
+
+    static final String EXECUTOR_MODE_ENV = "GEOMETRY_EXECUTOR";
+    static final String COMPUTE_THREADS_ENV = "GEOMETRY_COMPUTE_THREADS";
+    static final String TRANSPORT_THREADS_ENV = "GEOMETRY_TRANSPORT_THREADS";
+
+    public enum Mode {
+        // fixed size pool with a shared queue
+        FIXED,
+        // fork join pool, idle workers steal queued operations from busy ones
+        WORK_STEALING,
+        // one virtual thread per task (JDK 21+), falls back to WORK_STEALING on older runtimes
+        VIRTUAL
+    }
+
+    private GeometryExecutors() {
+    }
+
+    /**
+     * executor itself if it's a fork join pool, otherwise the common pool. operations that split into fork join tasks
+     * run there
+     */
+    static ForkJoinPool forkJoinPool(Executor executor) {
+        return executor instanceof ForkJoinPool ? (ForkJoinPool) executor : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * number of cores available to this process. container aware on JDK 10+
+     */
+    static int availableCores() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    static Mode modeFromEnvironment() {
+        String mode = System.getenv(EXECUTOR_MODE_ENV);
+        if (mode == null || mode.isEmpty()) {
+            return Mode.WORK_STEALING;
+        }
+
+        try {
+            return Mode.valueOf(mode.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.WARNING, String.format("unknown %s value %s, using %s", EXECUTOR_MODE_ENV, mode, Mode.WORK_STEALING));
+            return Mode.WORK_STEALING;
+        }
+    }
+
+    static int positiveIntFromEnvironment(String variable, int defaultValue) {
+        String value = System.getenv(variable);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            logger.log(Level.WARNING, String.format("%s must be a positive integer, found %s", variable, value));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * compute pool configured by GEOMETRY_EXECUTOR and GEOMETRY_COMPUTE_THREADS
+     */
+    public static ExecutorService computeFromEnvironment() {
+        return newComputeExecutor(modeFromEnvironment(), positiveIntFromEnvironment(COMPUTE_THREADS_ENV, availableCores()));
+    }
+
+    /**
+     * transport pool for gRPC callbacks configured by GEOMETRY_TRANSPORT_THREADS. the callbacks only hand off work
+     * to the compute pool, so this defaults to half the cores.
+     */
+    public static ExecutorService transportFromEnvironment() {
+        int threads = positiveIntFromEnvironment(TRANSPORT_THREADS_ENV, Math.max(2, availableCores() / 2));
+        return Executors.newFixedThreadPool(threads, new NamedThreadFactory("geometry-transport"));
+    }
+
+    public static ExecutorService newComputeExecutor(Mode mode, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("compute executor requires at least one thread");
+        }
+
+        switch (mode) {
+            case FIXED:
+                return Executors.newFixedThreadPool(threads, new NamedThreadFactory("geometry-compute"));
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                logger.log(Level.WARNING, "virtual threads are not supported by this runtime, using a work stealing pool");
+                return newWorkStealingPool(threads);
+            case WORK_STEALING:
+            default:
+                return newWorkStealingPool(threads);
+        }
+    }
+
+    private static ExecutorService newWorkStealingPool(int threads) {
+        // asyncMode gives FIFO scheduling for tasks that are never joined, which is what grpc work looks like
+        return new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("geometry-compute-" + thread.getPoolIndex());
+            return thread;
+        }, null, true);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor is looked up reflectively as the service is built for JDK 11
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
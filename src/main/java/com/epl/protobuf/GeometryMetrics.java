@@ -0,0 +1,243 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and throughput counters for a {@link GeometryServer}. Operator and encoding latencies are
+ * recorded by the service for every processed GeometryRequest, rpc method latencies, message and byte counts by
+ * {@link MetricsInterceptor}. Read through the GeometryAdmin service or the local scrape endpoint.
+ */
+class GeometryMetrics {
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private final ConcurrentMap<String, LatencyHistogram> operators = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> encodings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> methods = new ConcurrentHashMap<>();
+
+    private final AtomicLong inFlightStreams = new AtomicLong(0);
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder flowControlPauses = new LongAdder();
+    private final RateMeter messagesInRate = new RateMeter();
+    private final RateMeter messagesOutRate = new RateMeter();
+
+    /**
+     * time to build and send the results of one request, recorded under its operator and result encoding
+     */
+    void recordOperation(GeometryRequest geometryRequest, long durationNanos) {
+        Encoding encoding = geometryRequest.getResultEncoding();
+        if (encoding == Encoding.UNKNOWN_ENCODING) {
+            encoding = Encoding.WKB;
+        }
+        histogram(operators, geometryRequest.getOperator().name()).record(durationNanos);
+        histogram(encodings, encoding.name()).record(durationNanos);
+    }
+
+    void recordMethod(String methodName, long durationNanos) {
+        histogram(methods, methodName).record(durationNanos);
+    }
+
+    void streamStarted() {
+        inFlightStreams.incrementAndGet();
+    }
+
+    void streamClosed() {
+        inFlightStreams.decrementAndGet();
+    }
+
+    void messageIn(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+        messagesInRate.mark();
+    }
+
+    void messageOut(int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        messagesOutRate.mark();
+    }
+
+    /**
+     * called every time a flow controlled stream finds the response stream not ready (wasReady flips to false)
+     */
+    void flowControlPause() {
+        flowControlPauses.increment();
+    }
+
+    long getInFlightStreams() {
+        return inFlightStreams.get();
+    }
+
+    long getFlowControlPauses() {
+        return flowControlPauses.sum();
+    }
+
+    LatencyHistogram getOperatorHistogram(OperatorType operatorType) {
+        return operators.get(operatorType.name());
+    }
+
+    MetricsResponse toMetricsResponse() {
+        MetricsResponse.Builder builder = MetricsResponse.newBuilder()
+                .setInFlightStreams(inFlightStreams.get())
+                .setMessagesInPerSecond(messagesInRate.perSecond())
+                .setMessagesOutPerSecond(messagesOutRate.perSecond())
+                .setMessagesIn(messagesIn.sum())
+                .setMessagesOut(messagesOut.sum())
+                .setBytesIn(bytesIn.sum())
+                .setBytesOut(bytesOut.sum())
+                .setFlowControlPauses(flowControlPauses.sum());
+
+        new TreeMap<>(operators).forEach((name, histogram) -> builder.addOperators(summary(name, histogram)));
+        new TreeMap<>(encodings).forEach((name, histogram) -> builder.addEncodings(summary(name, histogram)));
+        new TreeMap<>(methods).forEach((name, histogram) -> builder.addMethods(summary(name, histogram)));
+
+        builder.addCaches(CacheSummary.newBuilder()
+                .setName("request_plan")
+                .setHits(RequestPlan.getCacheHitCount())
+                .setMisses(RequestPlan.getCacheMissCount()));
+        builder.addCaches(CacheSummary.newBuilder()
+                .setName("spatial_reference")
+                .setHits(SpatialReferenceCache.getHitCount())
+                .setMisses(SpatialReferenceCache.getMissCount()));
+        builder.addCaches(CacheSummary.newBuilder()
+                .setName("projection_transformation")
+                .setHits(ProjectionTransformationCache.getHitCount())
+                .setMisses(ProjectionTransformationCache.getMissCount()));
+        builder.addCaches(CacheSummary.newBuilder()
+                .setName("geometry_operand")
+                .setHits(GeometryCache.getHitCount())
+                .setMisses(GeometryCache.getMissCount()));
+        return builder.build();
+    }
+
+    /**
+     * prometheus text exposition format
+     */
+    String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        appendSummary(text, "geometry_operator_latency_seconds", "operator", operators);
+        appendSummary(text, "geometry_encoding_latency_seconds", "encoding", encodings);
+        appendSummary(text, "geometry_method_latency_seconds", "method", methods);
+
+        appendMetric(text, "geometry_in_flight_streams", "gauge", inFlightStreams.get());
+        appendMetric(text, "geometry_messages_in_total", "counter", messagesIn.sum());
+        appendMetric(text, "geometry_messages_out_total", "counter", messagesOut.sum());
+        appendMetric(text, "geometry_bytes_in_total", "counter", bytesIn.sum());
+        appendMetric(text, "geometry_bytes_out_total", "counter", bytesOut.sum());
+        appendMetric(text, "geometry_flow_control_pauses_total", "counter", flowControlPauses.sum());
+
+        MetricsResponse metricsResponse = toMetricsResponse();
+        text.append("# TYPE geometry_cache_hits_total counter\n");
+        for (CacheSummary cacheSummary : metricsResponse.getCachesList()) {
+            text.append(String.format("geometry_cache_hits_total{cache=\"%s\"} %d\n", cacheSummary.getName(), cacheSummary.getHits()));
+        }
+        text.append("# TYPE geometry_cache_misses_total counter\n");
+        for (CacheSummary cacheSummary : metricsResponse.getCachesList()) {
+            text.append(String.format("geometry_cache_misses_total{cache=\"%s\"} %d\n", cacheSummary.getName(), cacheSummary.getMisses()));
+        }
+        return text.toString();
+    }
+
+    private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms, String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+        }
+        return histogram;
+    }
+
+    private static LatencySummary summary(String name, LatencyHistogram histogram) {
+        return LatencySummary.newBuilder()
+                .setName(name)
+                .setCount(histogram.getCount())
+                .setMeanMs(histogram.getMean() / NANOS_PER_MILLI)
+                .setP50Ms(histogram.getValueAtPercentile(50) / NANOS_PER_MILLI)
+                .setP90Ms(histogram.getValueAtPercentile(90) / NANOS_PER_MILLI)
+                .setP99Ms(histogram.getValueAtPercentile(99) / NANOS_PER_MILLI)
+                .setP999Ms(histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI)
+                .setMaxMs(histogram.getMax() / NANOS_PER_MILLI)
+                .build();
+    }
+
+    private static void appendSummary(StringBuilder text, String metric, String label, Map<String, LatencyHistogram> histograms) {
+        text.append("# TYPE ").append(metric).append(" summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                text.append(String.format("%s{%s=\"%s\",quantile=\"%s\"} %.9f\n",
+                        metric, label, entry.getKey(), quantile,
+                        histogram.getValueAtPercentile(quantile * 100) / NANOS_PER_SECOND));
+            }
+            text.append(String.format("%s_sum{%s=\"%s\"} %.9f\n", metric, label, entry.getKey(), histogram.getSum() / NANOS_PER_SECOND));
+            text.append(String.format("%s_count{%s=\"%s\"} %d\n", metric, label, entry.getKey(), histogram.getCount()));
+        }
+    }
+
+    private static void appendMetric(StringBuilder text, String metric, String type, long value) {
+        text.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+        text.append(metric).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * events per second over the last 10 complete seconds, kept in a ring of per second slots
+     */
+    static class RateMeter {
+        private static final int SLOTS = 16;
+        private static final int WINDOW_SECONDS = 10;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+        void mark() {
+            long second = System.currentTimeMillis() / 1000;
+            int slot = (int) (second % SLOTS);
+            long slotSecond = seconds.get(slot);
+            if (slotSecond != second && seconds.compareAndSet(slot, slotSecond, second)) {
+                // first event of a new second in this slot, drop the count left from SLOTS seconds ago
+                counts.set(slot, 0);
+            }
+            counts.incrementAndGet(slot);
+        }
+
+        double perSecond() {
+            long now = System.currentTimeMillis() / 1000;
+            long total = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                long second = seconds.get(i);
+                if (second < now && second >= now - WINDOW_SECONDS) {
+                    total += counts.get(i);
+                }
+            }
+            return total / (double) WINDOW_SECONDS;
+        }
+    }
+}
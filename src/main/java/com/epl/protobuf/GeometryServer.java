@@ -27,12 +27,14 @@ import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,12 +49,30 @@ public class GeometryServer {
     // io.grpc.Server
     private final Server server;
 
+    // geometry operators run here, separate from the grpc transport callbacks
+    private final ExecutorService computeExecutor;
+
+    // only set when the server created its own transport executor
+    private ExecutorService transportExecutor;
+
+    private final GeometryMetrics metrics = new GeometryMetrics();
+
+    // datasets registered with this server, dropped when it stops
+    private final DatasetRegistry datasets = new DatasetRegistry();
+
+    // only started by main, tests and embedding applications read metrics through GeometryAdmin
+    private MetricsHttpEndpoint metricsHttpEndpoint;
+
     private final LinkedList<ManagedChannel> fakeOobChannels = new LinkedList<ManagedChannel>();
 
     /**
      * Create a GeometryService server listening on {@code port} using {@code featureFile} database.
      */
     public GeometryServer(int port) throws IOException {
+        this(port, GeometryExecutors.transportFromEnvironment(), GeometryExecutors.computeFromEnvironment());
+    }
+
+    private GeometryServer(int port, ExecutorService transportExecutor, ExecutorService computeExecutor) {
         // changed max message size to match tensorflow
         // https://github.com/tensorflow/serving/issues/288
         // https://github.com/tensorflow/tensorflow/blob/d0d975f8c3330b5402263b2356b038bc8af919a2/tensorflow/core/platform/types.h#L52
@@ -62,15 +82,25 @@ public class GeometryServer {
         this(NettyServerBuilder
                 .forPort(port)
                 // https://stackoverflow.com/a/42422045/445372
-                .executor(Executors.newFixedThreadPool(16))
-                .maxInboundMessageSize(2147483647), port);
+                .executor(transportExecutor)
+                .maxInboundMessageSize(2147483647), port, computeExecutor);
+        this.transportExecutor = transportExecutor;
     }
 
     /**
      * Create a GeometryService server using serverBuilder as a base and features as data.
      */
     public GeometryServer(ServerBuilder<?> serverBuilder, int port) {
+        this(serverBuilder, port, GeometryExecutors.computeFromEnvironment());
+    }
+
+    /**
+     * Create a GeometryService server using serverBuilder as a base and computeExecutor for geometry operations. The
+     * server takes ownership of computeExecutor and shuts it down in {@link #stop()}.
+     */
+    public GeometryServer(ServerBuilder<?> serverBuilder, int port, ExecutorService computeExecutor) {
         this.port = port;
+        this.computeExecutor = computeExecutor;
 
         // try adding security
         String chainPath = System.getenv("GRPC_CHAIN");
@@ -84,7 +114,14 @@ public class GeometryServer {
             }
         }
 
-        server = serverBuilder.addService(new GeometryService()).build();
+        server = serverBuilder
+                .addService(ServerInterceptors.intercept(
+                        // geometry bytes in requests are parsed in place instead of copied
+                        AliasingMarshaller.aliasRequests(new GeometryService(computeExecutor, metrics, datasets).bindService()),
+                        new GeometryCallOptions.Interceptor(),
+                        new MetricsInterceptor(metrics)))
+                .addService(new GeometryAdminService(metrics))
+                .build();
     }
 
     /**
@@ -113,6 +150,24 @@ public class GeometryServer {
         if (server != null) {
             server.shutdown();
         }
+        if (metricsHttpEndpoint != null) {
+            metricsHttpEndpoint.stop();
+        }
+        computeExecutor.shutdown();
+        datasets.clear();
+        if (transportExecutor != null) {
+            transportExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Serve the server's metrics in prometheus text format, see {@link MetricsHttpEndpoint} for configuration.
+     */
+    public void startMetricsEndpoint() throws IOException {
+        metricsHttpEndpoint = MetricsHttpEndpoint.startFromEnvironment(metrics);
+        if (metricsHttpEndpoint != null) {
+            logger.info("Metrics endpoint started, listening on " + metricsHttpEndpoint.getPort());
+        }
     }
 
     /**
@@ -130,23 +185,48 @@ public class GeometryServer {
     public static void main(String[] args) throws Exception {
         GeometryServer server = new GeometryServer(8980);
         server.start();
+        server.startMetricsEndpoint();
         server.blockUntilShutdown();
     }
 
+    /**
+     * Read only view of the server's metrics.
+     */
+    private static class GeometryAdminService extends GeometryAdminGrpc.GeometryAdminImplBase {
+        private final GeometryMetrics metrics;
+
+        GeometryAdminService(GeometryMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void getMetrics(MetricsRequest request, StreamObserver<MetricsResponse> responseObserver) {
+            responseObserver.onNext(metrics.toMetricsResponse());
+            responseObserver.onCompleted();
+        }
+    }
+
     /**
      * Our implementation of GeometryService service.
      */
     private static class GeometryService extends GeometryServiceGrpc.GeometryServiceImplBase {
+        private final Executor computeExecutor;
+        private final GeometryMetrics metrics;
+        private final DatasetRegistry datasets;
+
+        GeometryService(Executor computeExecutor, GeometryMetrics metrics, DatasetRegistry datasets) {
+            this.computeExecutor = computeExecutor;
+            this.metrics = metrics;
+            this.datasets = datasets;
+        }
+
         @Override
         public io.grpc.stub.StreamObserver<com.epl.protobuf.GeometryRequest> operateClientStream(io.grpc.stub.StreamObserver<com.epl.protobuf.GeometryResponse> responseObserver) {
             String nameofCurrMethod = new Object() {}.getClass().getEnclosingMethod().getName();
             return new StreamObserver<>() {
                 GeometryRequest lastRequest = null;
-                ListeningGeometryCursor listeningGeometryCursor = new ListeningGeometryCursor();
-                AtomicInteger count = new AtomicInteger(0);
-                int interval = 25;
-                GeometryCursor operationCursor = OperatorUnion.local().execute(listeningGeometryCursor, null,null);
                 // todo assumes all same spatial reference
+                CascadedUnion cascadedUnion = new CascadedUnion(null);
                 @Override
                 public void onNext(GeometryRequest geometryRequest) {
                     String requestDetails = String.format("grpc operator type: %s, geometry request type: %s",
@@ -154,11 +234,7 @@ public class GeometryServer {
                     logger.log(Level.INFO, requestDetails);
 
                     lastRequest = geometryRequest;
-                    Geometry geometry = GeometryServiceUtil.extractGeometry(geometryRequest.getGeometry());
-                    listeningGeometryCursor.tick(geometry);
-                    if (count.incrementAndGet() % interval == 0) {
-                        listeningGeometryCursor.tock();
-                    }
+                    cascadedUnion.add(GeometryServiceUtil.extractGeometry(geometryRequest.getGeometry()));
                 }
 
                 @Override
@@ -169,25 +245,45 @@ public class GeometryServer {
 
                 @Override
                 public void onCompleted() {
-                    GeometryResponsesIterator geometryResponsesIterator = new GeometryResponsesIterator(operationCursor, lastRequest, Encoding.WKB, true);
-                    responseObserver.onNext(geometryResponsesIterator.next());
-                    responseObserver.onCompleted();
+                    // the union runs as a tree of tasks
+                    ForkJoinPool pool = GeometryExecutors.forkJoinPool(computeExecutor);
+                    pool.execute(() -> {
+                        try {
+                            long startTime = System.nanoTime();
+                            Geometry union = cascadedUnion.union(pool);
+                            if (union != null) {
+                                GeometryResponsesIterator geometryResponsesIterator = new GeometryResponsesIterator(
+                                        new SimpleGeometryCursor(union), lastRequest, Encoding.WKB, true);
+                                responseObserver.onNext(geometryResponsesIterator.next());
+                                metrics.recordOperation(lastRequest, System.nanoTime() - startTime);
+                            }
+                            responseObserver.onCompleted();
+                        } catch (Throwable throwable) {
+                            responseObserver.onError(Status.UNKNOWN.withDescription("Error handling request").withCause(throwable).asException());
+                        }
+                    });
                 }
             };
         }
 
         @Override
         public void operateServerStream(GeometryRequest geometryRequest, StreamObserver<GeometryResponse> responseObserver)  {
+            computeExecutor.execute(() -> serverStream(geometryRequest, responseObserver));
+        }
+
+        private void serverStream(GeometryRequest geometryRequest, StreamObserver<GeometryResponse> responseObserver) {
             try {
-                String nameofCurrMethod = new Object() {}.getClass().getEnclosingMethod().getName();
                 String requestDetails = String.format("grpc operator type: %s, geometry request type: %s",
-                        nameofCurrMethod, geometryRequest.getOperator().name());
+                        "operateServerStream", geometryRequest.getOperator().name());
                 logger.log(Level.INFO, requestDetails);
 
-                GeometryResponsesIterator operatorResultsIterator = GeometryServiceUtil.buildResultsIterable(geometryRequest, null, false);
+                long startTime = System.nanoTime();
+                GeometryResponsesIterator operatorResultsIterator = GeometryServiceUtil.buildResultsIterable(
+                        geometryRequest, RequestPlan.of(geometryRequest), null, false, datasets);
                 while (operatorResultsIterator.hasNext()) {
                     responseObserver.onNext(operatorResultsIterator.next());
                 }
+                metrics.recordOperation(geometryRequest, System.nanoTime() - startTime);
                 responseObserver.onCompleted();
             } catch (Throwable throwable) {
                 responseObserver.onError(Status.UNKNOWN.withDescription("Error handling request").withCause(throwable).asException());
@@ -195,115 +291,92 @@ public class GeometryServer {
         }
 
         @Override
-        public StreamObserver<GeometryRequest> operateBiStream(StreamObserver<GeometryResponse> responseObserver) {
+        public StreamObserver<GeometryRequest> operateBiStream(StreamObserver<GeometryResponse> callResponseObserver) {
             String nameofCurrMethod = new Object() {}.getClass().getEnclosingMethod().getName();
+            // responses must stay in request order, so the stream runs as an ordered window of one request on the
+            // compute pool. The next request is only read once the previous one's responses are sent and the
+            // response stream is ready, and nothing more is sent after an error.
+            final StreamWindow<GeometryRequest> streamWindow = new StreamWindow<>(
+                    computeExecutor,
+                    ResponseBatcher.forCall(callResponseObserver),
+                    1,
+                    true,
+                    metrics,
+                    geometryRequest -> operateStreamRequest(nameofCurrMethod, geometryRequest));
+
             return new StreamObserver<>() {
                 @Override
                 public void onNext(GeometryRequest geometryRequest) {
-                    try {
-                        String requestDetails = String.format("grpc operator type: %s, geometry request type: %s",
-                                nameofCurrMethod, geometryRequest.getOperator().name());
-                        logger.log(Level.INFO, requestDetails);
-
-                        GeometryResponsesIterator operatorResultsIterator = GeometryServiceUtil.buildResultsIterable(geometryRequest, null, false);
-                        while (operatorResultsIterator.hasNext()) {
-                            responseObserver.onNext(operatorResultsIterator.next());
-                        }
-
-                    } catch (Throwable throwable) {
-                        responseObserver.onError(Status.UNKNOWN.withDescription("Error handling request").withCause(throwable).asException());
-                    }
+                    streamWindow.submit(geometryRequest);
                 }
 
                 @Override
                 public void onError(Throwable throwable) {
                     logger.info("ERROR");
-                    responseObserver.onCompleted();
+                    streamWindow.cancel();
                 }
 
                 @Override
                 public void onCompleted() {
                     // Signal the end of work when the client ends the request stream.
                     logger.info("COMPLETED");
-                    responseObserver.onCompleted();
+                    streamWindow.inputCompleted();
                 }
             };
         }
 
+        private List<GeometryResponse> operateStreamRequest(String nameofCurrMethod, GeometryRequest geometryRequest) {
+            String requestDetails = String.format("grpc operator type: %s, geometry request type: %s",
+                    nameofCurrMethod, geometryRequest.getOperator().name());
+            logger.log(Level.INFO, requestDetails);
+
+            long startTime = System.nanoTime();
+            List<GeometryResponse> geometryResponses = new ArrayList<>();
+            GeometryResponsesIterator operatorResultsIterator = GeometryServiceUtil.buildResultsIterable(
+                    geometryRequest, RequestPlan.of(geometryRequest), null, false, datasets);
+            while (operatorResultsIterator.hasNext()) {
+                geometryResponses.add(operatorResultsIterator.next());
+            }
+            metrics.recordOperation(geometryRequest, System.nanoTime() - startTime);
+            return geometryResponses;
+        }
+
         @SuppressWarnings("Duplicates")
         @Override
         public StreamObserver<GeometryRequest> operateBiStreamFlow(StreamObserver<GeometryResponse> responseObserver) {
             String nameofCurrMethod = new Object() {}.getClass().getEnclosingMethod().getName();
             // Set up manual flow control for the request stream. It feels backwards to configure the request
-            // stream's flow control using the response stream's observer, but this is the way it is.
+            // stream's flow control using the response stream's observer, but this is the way it is. The window
+            // requests up to geometry-window messages at a time and processes them concurrently on the compute pool.
             final ServerCallStreamObserver<GeometryResponse> serverCallStreamObserver =
-                    (ServerCallStreamObserver<GeometryResponse>) responseObserver;
-            serverCallStreamObserver.disableAutoInboundFlowControl();
-
-            // Guard against spurious onReady() calls caused by a race between onNext() and onReady(). If the transport
-            // toggles isReady() from false to true while onNext() is executing, but before onNext() checks isReady(),
-            // request(1) would be called twice - once by onNext() and once by the onReady() scheduled during onNext()'s
-            // execution.
-            final AtomicBoolean wasReady = new AtomicBoolean(false);
-
-            serverCallStreamObserver.setOnReadyHandler(() -> {
-                if (serverCallStreamObserver.isReady() && wasReady.compareAndSet(false, true)) {
-                    // logger.info("READY");
-                    // Signal the request sender to send one message. This happens when isReady() turns true, signaling that
-                    // the receive buffer has enough free space to receive more messages. Calling request() serves to prime
-                    // the message pump.
-                    serverCallStreamObserver.request(1);
-                }
-            });
+                    ResponseBatcher.forCall(responseObserver);
+            final StreamWindow<GeometryRequest> streamWindow = new StreamWindow<>(
+                    computeExecutor,
+                    serverCallStreamObserver,
+                    GeometryCallOptions.window(),
+                    !GeometryCallOptions.unordered(),
+                    metrics,
+                    geometryRequest -> operateStreamRequest(nameofCurrMethod, geometryRequest));
 
             return new StreamObserver<GeometryRequest>() {
                 @Override
                 public void onNext(GeometryRequest geometryRequest) {
-                    // Process the request and send a response or an error.
-                    try {
-                        String requestDetails = String.format("grpc operator type: %s, geometry request type: %s",
-                                nameofCurrMethod, geometryRequest.getOperator().name());
-                        logger.log(Level.INFO, requestDetails);
-
-                        // Accept and enqueue the request.
-                        GeometryResponsesIterator operatorResultsIterator = GeometryServiceUtil.buildResultsIterable(geometryRequest, null, false);
-                        while (operatorResultsIterator.hasNext()) {
-                            responseObserver.onNext(operatorResultsIterator.next());
-                        }
-
-                        // Check the provided ServerCallStreamObserver to see if it is still ready to accept more messages.
-                        if (serverCallStreamObserver.isReady()) {
-                            // Signal the sender to send another request. As long as isReady() stays true, the server will keep
-                            // cycling through the loop of onNext() -> request()...onNext() -> request()... until either the client
-                            // runs out of messages and ends the loop or the server runs out of receive buffer space.
-                            //
-                            // If the server runs out of buffer space, isReady() will turn false. When the receive buffer has
-                            // sufficiently drained, isReady() will turn true, and the serverCallStreamObserver's onReadyHandler
-                            // will be called to restart the message pump.
-                            serverCallStreamObserver.request(1);
-                        } else {
-                            // If not, note that back-pressure has begun.
-                            wasReady.set(false);
-                        }
-                    } catch (Throwable throwable) {
-                        throwable.printStackTrace();
-                        responseObserver.onError(
-                                Status.UNKNOWN.withDescription("Error handling request").withCause(throwable).asException());
-                    }
+                    // Accept and enqueue the request.
+                    streamWindow.submit(geometryRequest);
                 }
 
                 @Override
                 public void onError(Throwable t) {
                     // End the response stream if the client presents an error.
                     t.printStackTrace();
-                    responseObserver.onCompleted();
+                    streamWindow.cancel();
                 }
 
                 @Override
                 public void onCompleted() {
                     // Signal the end of work when the client ends the request stream.
                     logger.info("COMPLETED");
-                    responseObserver.onCompleted();
+                    streamWindow.inputCompleted();
                 }
             };
         }
@@ -312,81 +385,38 @@ public class GeometryServer {
         @Override
         public StreamObserver<FileRequestChunk> fileOperateBiStreamFlow(StreamObserver<GeometryResponse> responseObserver) {
             // Set up manual flow control for the request stream. It feels backwards to configure the request
-            // stream's flow control using the response stream's observer, but this is the way it is.
+            // stream's flow control using the response stream's observer, but this is the way it is. Chunks are read
+            // in order, their records run in batches on the compute pool and the responses are sent in file order.
+            // The next chunk is requested once fewer than geometry-window batches are waiting to be sent.
             final ServerCallStreamObserver<GeometryResponse> serverCallStreamObserver =
-                    (ServerCallStreamObserver<GeometryResponse>) responseObserver;
-            serverCallStreamObserver.disableAutoInboundFlowControl();
-
-            // Guard against spurious onReady() calls caused by a race between onNext() and onReady(). If the transport
-            // toggles isReady() from false to true while onNext() is executing, but before onNext() checks isReady(),
-            // request(1) would be called twice - once by onNext() and once by the onReady() scheduled during onNext()'s
-            // execution.
-            final AtomicBoolean wasReady = new AtomicBoolean(false);
-
-            serverCallStreamObserver.setOnReadyHandler(() -> {
-                if (serverCallStreamObserver.isReady() && wasReady.compareAndSet(false, true)) {
-                    // logger.info("READY");
-                    // Signal the request sender to send one message. This happens when isReady() turns true, signaling that
-                    // the receive buffer has enough free space to receive more messages. Calling request() serves to prime
-                    // the message pump.
-                    serverCallStreamObserver.request(1);
-                }
-            });
+                    ResponseBatcher.forCall(responseObserver);
+            final FilePipeline filePipeline = new FilePipeline(
+                    computeExecutor,
+                    serverCallStreamObserver,
+                    FilePipeline.batchSizeFromEnvironment(),
+                    GeometryCallOptions.window(),
+                    metrics,
+                    datasets);
 
             return new StreamObserver<>() {
-                ShapefileChunkedReader shapefileChunkedReader = null;
                 @Override
                 public void onNext(FileRequestChunk value) {
-                    InputStream inputStream = value.getData().newInput();
-                    // Process the request and send a response or an error.
-                    try {
-                        // Accept and enqueue the request.
-                        if (shapefileChunkedReader == null) {
-                            shapefileChunkedReader = new ShapefileChunkedReader(inputStream, (int)value.getSize());
-                        } else {
-                            shapefileChunkedReader.addStream(inputStream, (int)value.getSize());
-                        }
-
-                        if (shapefileChunkedReader.hasNext()) {
-                            GeometryResponsesIterator operatorResultsIterator = GeometryServiceUtil.buildResultsIterable(value.getNestedRequest(), shapefileChunkedReader, true);
-                            while (operatorResultsIterator.hasNext()) {
-                                responseObserver.onNext(operatorResultsIterator.next());
-                            }
-                        }
-
-                        // Check the provided ServerCallStreamObserver to see if it is still ready to accept more messages.
-                        if (serverCallStreamObserver.isReady()) {
-                            // Signal the sender to send another request. As long as isReady() stays true, the server will keep
-                            // cycling through the loop of onNext() -> request()...onNext() -> request()... until either the client
-                            // runs out of messages and ends the loop or the server runs out of receive buffer space.
-                            //
-                            // If the server runs out of buffer space, isReady() will turn false. When the receive buffer has
-                            // sufficiently drained, isReady() will turn true, and the serverCallStreamObserver's onReadyHandler
-                            // will be called to restart the message pump.
-                            serverCallStreamObserver.request(1);
-                        } else {
-                            // If not, note that back-pressure has begun.
-                            wasReady.set(false);
-                        }
-                    } catch (Throwable throwable) {
-                        throwable.printStackTrace();
-                        responseObserver.onError(
-                                Status.UNKNOWN.withDescription("Error handling request").withCause(throwable).asException());
-                    }
+                    // Accept and enqueue the chunk.
+                    filePipeline.submit(value);
                 }
 
                 @Override
                 public void onError(Throwable t) {
                     // End the response stream if the client presents an error.
                     t.printStackTrace();
-                    responseObserver.onCompleted();
+                    filePipeline.cancel();
                 }
 
                 @Override
                 public void onCompleted() {
                     // Signal the end of work when the client ends the request stream.
                     logger.info("COMPLETED");
-                    responseObserver.onCompleted();
+                    filePipeline.inputCompleted();
                 }
             };
         }
@@ -398,8 +428,288 @@ public class GeometryServer {
             return String.format("geometryOperationUnary error : %s\n\ncallstack%s", e.getLocalizedMessage(), sw.toString());
         }
 
+        @Override
+        public void operateBatch(GeometryBatchRequest batchRequest, StreamObserver<GeometryBatchResponse> responseObserver) {
+            computeExecutor.execute(() -> batch(batchRequest, responseObserver));
+        }
+
+        private void batch(GeometryBatchRequest batchRequest, StreamObserver<GeometryBatchResponse> responseObserver) {
+            try {
+                String requestDetails = String.format("grpc operator type: %s, geometry request type: %s, batch size: %d",
+                        "operateBatch", batchRequest.getRequestTemplate().getOperator().name(), batchRequest.getGeometriesCount());
+                logger.log(Level.INFO, requestDetails);
+
+                long startTime = System.nanoTime();
+                GeometryBatchResponse batchResponse = GeometryServiceUtil.batchFromRequest(batchRequest, datasets);
+                metrics.recordOperation(batchRequest.getRequestTemplate(), System.nanoTime() - startTime);
+                responseObserver.onNext(batchResponse);
+                responseObserver.onCompleted();
+            } catch (IllegalArgumentException iae) {
+                logger.log(Level.WARNING, "operateBatch error : ".concat(iae.toString()));
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(iae.getMessage()).asRuntimeException());
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "operateBatch error : ".concat(t.toString()));
+                responseObserver.onError(Status.fromThrowable(t)
+                        .withDescription(exceptionDetails(t))
+                        .asRuntimeException());
+            }
+        }
+
+        @Override
+        public StreamObserver<DatasetChunk> registerDataset(StreamObserver<DatasetInfo> responseObserver) {
+            // importing and projecting a chunk runs on the compute pool, one chunk after the other, and the next chunk
+            // is only read once the one before it has been added
+            final ServerCallStreamObserver<DatasetInfo> serverCallStreamObserver =
+                    (ServerCallStreamObserver<DatasetInfo>) responseObserver;
+            serverCallStreamObserver.disableAutoInboundFlowControl();
+            serverCallStreamObserver.request(1);
+            final Executor datasetExecutor = new SerializingExecutor(computeExecutor);
+            return new StreamObserver<>() {
+                // only touched by datasetExecutor
+                GeometryDataset.Builder datasetBuilder = null;
+                boolean failed = false;
+                volatile boolean cancelled = false;
+
+                @Override
+                public void onNext(DatasetChunk datasetChunk) {
+                    datasetExecutor.execute(() -> {
+                        if (failed || cancelled) {
+                            return;
+                        }
+                        try {
+                            add(datasetChunk);
+                        } catch (Throwable t) {
+                            failed = true;
+                            logger.log(Level.WARNING, "registerDataset error : ".concat(t.toString()));
+                            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(t.getMessage()).asRuntimeException());
+                            return;
+                        }
+                        serverCallStreamObserver.request(1);
+                    });
+                }
+
+                private void add(DatasetChunk datasetChunk) {
+                    if (datasetBuilder == null) {
+                        logger.log(Level.INFO, String.format("grpc operator type: registerDataset, dataset: %s", datasetChunk.getName()));
+                        SpatialReferenceData spatialReferenceData = datasetChunk.hasSr() || datasetChunk.getGeometriesCount() == 0 ?
+                                datasetChunk.getSr() : datasetChunk.getGeometries(0).getSr();
+                        datasetBuilder = new GeometryDataset.Builder(datasetChunk.getName(),
+                                GeometryServiceUtil.extractSpatialReference(spatialReferenceData));
+                    }
+                    for (GeometryData geometryData : datasetChunk.getGeometriesList()) {
+                        datasetBuilder.add(GeometryServiceUtil.extractGeometry(geometryData),
+                                GeometryServiceUtil.extractSpatialReference(geometryData), geometryData.getGeometryId());
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    // chunks still queued are dropped
+                    cancelled = true;
+                    logger.log(Level.WARNING, "registerDataset cancelled : ".concat(t.toString()));
+                }
+
+                @Override
+                public void onCompleted() {
+                    // runs after the chunks before it, packing the tree sorts every geometry envelope
+                    datasetExecutor.execute(() -> {
+                        if (failed || cancelled) {
+                            return;
+                        }
+                        if (datasetBuilder == null) {
+                            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("a dataset needs a name").asRuntimeException());
+                            return;
+                        }
+                        try {
+                            GeometryDataset dataset = datasetBuilder.build();
+                            datasets.register(dataset);
+                            responseObserver.onNext(datasetInfo(dataset));
+                            responseObserver.onCompleted();
+                        } catch (Throwable t) {
+                            logger.log(Level.WARNING, "registerDataset error : ".concat(t.toString()));
+                            responseObserver.onError(Status.fromThrowable(t)
+                                    .withDescription(exceptionDetails(t))
+                                    .asRuntimeException());
+                        }
+                    });
+                }
+            };
+        }
+
+        @Override
+        public void dropDataset(DatasetInfo request, StreamObserver<DatasetInfo> responseObserver) {
+            GeometryDataset dataset = datasets.drop(request.getName());
+            if (dataset == null) {
+                responseObserver.onError(Status.NOT_FOUND
+                        .withDescription("dataset " + request.getName() + " is not registered")
+                        .asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(datasetInfo(dataset));
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<SpatialJoinRequest> spatialJoin(StreamObserver<SpatialJoinResponse> responseObserver) {
+            final ServerCallStreamObserver<SpatialJoinResponse> serverCallStreamObserver =
+                    (ServerCallStreamObserver<SpatialJoinResponse>) responseObserver;
+            // pairs are only sent while the client keeps up, at most geometry-window responses wait to be sent
+            final ResponseQueue<SpatialJoinResponse> responses = new ResponseQueue<>(
+                    serverCallStreamObserver, GeometryCallOptions.window());
+            // importing and projecting a message runs on the compute pool, one message after the other, and the next
+            // message is only read once the one before it has been added
+            serverCallStreamObserver.disableAutoInboundFlowControl();
+            serverCallStreamObserver.request(1);
+            final Executor joinExecutor = new SerializingExecutor(computeExecutor);
+            return new StreamObserver<>() {
+                // only touched by joinExecutor
+                SpatialJoin spatialJoin = null;
+                boolean failed = false;
+                volatile boolean cancelled = false;
+
+                @Override
+                public void onNext(SpatialJoinRequest joinRequest) {
+                    joinExecutor.execute(() -> {
+                        if (failed || cancelled) {
+                            return;
+                        }
+                        try {
+                            add(joinRequest);
+                        } catch (Throwable t) {
+                            failed = true;
+                            logger.log(Level.WARNING, "spatialJoin error : ".concat(t.toString()));
+                            responses.error(Status.INVALID_ARGUMENT.withDescription(t.getMessage()));
+                            return;
+                        }
+                        serverCallStreamObserver.request(1);
+                    });
+                }
+
+                private void add(SpatialJoinRequest joinRequest) {
+                    if (spatialJoin == null) {
+                        logger.log(Level.INFO, String.format("grpc operator type: spatialJoin, predicate: %s", joinRequest.getPredicate().name()));
+                        SpatialReferenceData spatialReferenceData = joinRequest.getSr();
+                        if (!joinRequest.hasSr() && joinRequest.getLeftGeometriesCount() > 0) {
+                            spatialReferenceData = joinRequest.getLeftGeometries(0).getSr();
+                        } else if (!joinRequest.hasSr() && joinRequest.getRightGeometriesCount() > 0) {
+                            spatialReferenceData = joinRequest.getRightGeometries(0).getSr();
+                        }
+                        spatialJoin = new SpatialJoin(joinRequest.getPredicate(), joinRequest.getDistance(),
+                                GeometryServiceUtil.extractSpatialReference(spatialReferenceData));
+                    }
+                    for (GeometryData geometryData : joinRequest.getLeftGeometriesList()) {
+                        spatialJoin.addLeft(GeometryServiceUtil.extractGeometry(geometryData),
+                                GeometryServiceUtil.extractSpatialReference(geometryData), geometryData.getGeometryId());
+                    }
+                    for (GeometryData geometryData : joinRequest.getRightGeometriesList()) {
+                        spatialJoin.addRight(GeometryServiceUtil.extractGeometry(geometryData),
+                                GeometryServiceUtil.extractSpatialReference(geometryData), geometryData.getGeometryId());
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    // messages still queued are dropped
+                    cancelled = true;
+                    logger.log(Level.WARNING, "spatialJoin cancelled : ".concat(t.toString()));
+                }
+
+                @Override
+                public void onCompleted() {
+                    // runs after the messages before it
+                    joinExecutor.execute(() -> {
+                        if (failed || cancelled) {
+                            return;
+                        }
+                        if (spatialJoin == null) {
+                            responses.complete();
+                            return;
+                        }
+                        // partitions run as tasks
+                        ForkJoinPool pool = GeometryExecutors.forkJoinPool(computeExecutor);
+                        SpatialJoin join = spatialJoin;
+                        pool.execute(() -> {
+                            try {
+                                join.run(pool, responses::put, responses::isCancelled);
+                                responses.complete();
+                            } catch (Throwable t) {
+                                logger.log(Level.WARNING, "spatialJoin error : ".concat(t.toString()));
+                                responses.error(Status.fromThrowable(t).withDescription(exceptionDetails(t)));
+                            }
+                        });
+                    });
+                }
+            };
+        }
+
+        @Override
+        public void distanceMatrix(DistanceMatrixRequest request, StreamObserver<DistanceMatrixResponse> responseObserver) {
+            // bands are only sent while the client keeps up, at most geometry-window bands wait to be sent
+            final ResponseQueue<DistanceMatrixResponse> responses = new ResponseQueue<>(
+                    (ServerCallStreamObserver<DistanceMatrixResponse>) responseObserver, GeometryCallOptions.window());
+            computeExecutor.execute(() -> distanceMatrix(request, responses));
+        }
+
+        private void distanceMatrix(DistanceMatrixRequest request, ResponseQueue<DistanceMatrixResponse> responses) {
+            logger.log(Level.INFO, String.format("grpc operator type: distanceMatrix, %d x %d",
+                    request.getLeftGeometriesCount(), request.getRightGeometriesCount()));
+            DistanceMatrix distanceMatrix;
+            try {
+                SpatialReferenceData spatialReferenceData = request.getSr();
+                if (!request.hasSr() && request.getLeftGeometriesCount() > 0) {
+                    spatialReferenceData = request.getLeftGeometries(0).getSr();
+                }
+                distanceMatrix = new DistanceMatrix(GeometryServiceUtil.extractSpatialReference(spatialReferenceData),
+                        request.getMaxDistance());
+                for (GeometryData geometryData : request.getLeftGeometriesList()) {
+                    distanceMatrix.addLeft(GeometryServiceUtil.extractGeometry(geometryData),
+                            GeometryServiceUtil.extractSpatialReference(geometryData));
+                }
+                for (GeometryData geometryData : request.getRightGeometriesList()) {
+                    distanceMatrix.addRight(GeometryServiceUtil.extractGeometry(geometryData),
+                            GeometryServiceUtil.extractSpatialReference(geometryData));
+                }
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "distanceMatrix error : ".concat(t.toString()));
+                responses.error(Status.INVALID_ARGUMENT.withDescription(t.getMessage()));
+                return;
+            }
+
+            try {
+                // bands run as tasks
+                distanceMatrix.run(GeometryExecutors.forkJoinPool(computeExecutor), responses::put, responses::isCancelled);
+                responses.complete();
+            } catch (Throwable t) {
+                logger.log(Level.WARNING, "distanceMatrix error : ".concat(t.toString()));
+                responses.error(Status.fromThrowable(t).withDescription(exceptionDetails(t)));
+            }
+        }
+
+        private static DatasetInfo datasetInfo(GeometryDataset dataset) {
+            DatasetInfo.Builder datasetInfoBuilder = DatasetInfo.newBuilder()
+                    .setName(dataset.name)
+                    .setGeometryCount(dataset.size());
+            if (dataset.size() > 0) {
+                Envelope2D envelope2D = dataset.getEnvelope2D();
+                EnvelopeData.Builder envelopeBuilder = EnvelopeData.newBuilder()
+                        .setXmin(envelope2D.xmin)
+                        .setYmin(envelope2D.ymin)
+                        .setXmax(envelope2D.xmax)
+                        .setYmax(envelope2D.ymax);
+                if (dataset.spatialReference != null) {
+                    envelopeBuilder.setSr(SpatialReferenceGroup.createSpatialReferenceData(dataset.spatialReference));
+                }
+                datasetInfoBuilder.setEnvelope(envelopeBuilder);
+            }
+            return datasetInfoBuilder.build();
+        }
+
         @Override
         public void operate(GeometryRequest geometryRequest, StreamObserver<GeometryResponse> responseObserver) {
+            computeExecutor.execute(() -> unary(geometryRequest, responseObserver));
+        }
+
+        private void unary(GeometryRequest geometryRequest, StreamObserver<GeometryResponse> responseObserver) {
             try {
                 if (geometryRequest.getOperator() == OperatorType.CUT) {
                     // TODO, you need to search the whole request chain for a cut
@@ -415,12 +725,14 @@ public class GeometryServer {
                         uuid, geometryRequest.getOperator().name());
                 logger.log(Level.INFO, requestDetails);
 
-                GeometryResponsesIterator operatorResults = GeometryServiceUtil.buildResultsIterable(geometryRequest, null, true);
+                GeometryResponsesIterator operatorResults = GeometryServiceUtil.buildResultsIterable(
+                        geometryRequest, RequestPlan.of(geometryRequest), null, true, datasets);
                 while (operatorResults.hasNext()) {
                     responseObserver.onNext(operatorResults.next());
                 }
 
                 long endTime = System.nanoTime();
+                metrics.recordOperation(geometryRequest, endTime - startTime);
                 long durationMilli = (endTime - startTime) /  1000000;
                 String executionDetails = String.format("%s:\tcompleted geometry request type:\t%s, duration:\t%d ms",
                         uuid, geometryRequest.getOperator().name(), durationMilli);
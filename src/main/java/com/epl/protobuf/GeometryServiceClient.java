@@ -26,6 +26,7 @@ import com.esri.core.geometry.*;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
+import com.google.protobuf.UnsafeByteOperations;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.ClientCallStreamObserver;
@@ -252,7 +253,7 @@ public class GeometryServiceClient {
                                    GeometryRequest.Builder operatorRequestBuilder,
                                    GeometryData.Builder geometryBuilder) throws IOException, InterruptedException {
         CountDownLatch done = new CountDownLatch(1);
-        ShapefileByteReader shapefileByteReader = new ShapefileByteReader(inFile);
+        ShapefileMappedReader shapefileReader = new ShapefileMappedReader(inFile);
 
         GeometryServiceStub geometryServiceStub = asyncStub
                 .withMaxInboundMessageSize(2147483647)
@@ -284,11 +285,11 @@ public class GeometryServiceClient {
                         // in a timely manor or else message processing throughput will suffer.
                         requestStream.setOnReadyHandler(() -> {
                             while (requestStream.isReady()) {
-                                if (shapefileByteReader.hasNext()) {
-                                    byte[] data = shapefileByteReader.next();
-                                    long id = shapefileByteReader.getGeometryID();
-                                    ByteString byteString = ByteString.copyFrom(data);
-//                                    logger.info("bytes length -->" + data.length);
+                                if (shapefileReader.hasNext()) {
+                                    // the record stays a slice of the mapped file until it is serialized
+                                    ByteString byteString = UnsafeByteOperations.unsafeWrap(shapefileReader.next());
+                                    long id = shapefileReader.getGeometryID();
+//                                    logger.info("bytes length -->" + byteString.size());
 
                                     GeometryData geometryData = geometryBuilder
                                             .setEsriShape(byteString)
@@ -335,6 +336,7 @@ public class GeometryServiceClient {
 
 
         done.await();
+        shapefileReader.close();
 
 //        channel.shutdown();
         channel.awaitTermination(1, TimeUnit.SECONDS);
@@ -23,8 +23,10 @@ package com.epl.protobuf;
 import com.esri.core.geometry.*;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 enum Side {
@@ -239,9 +241,16 @@ class GeometryResponsesIterator implements Iterator<GeometryResponse> {
                                         GeometryRequest operatorRequest,
                                         Encoding geometryEncodingType,
                                         boolean bForceCompact) {
+        this(geometryCursor, operatorRequest, new SpatialReferenceGroup(operatorRequest), geometryEncodingType, bForceCompact);
+    }
+
+    GeometryResponsesIterator(GeometryCursor geometryCursor,
+                              GeometryRequest operatorRequest,
+                              SpatialReferenceGroup spatialRefGroup,
+                              Encoding geometryEncodingType,
+                              boolean bForceCompact) {
         m_bForceCompact = bForceCompact;
         m_encodingType = geometryEncodingType;
-        SpatialReferenceGroup spatialRefGroup = new SpatialReferenceGroup(operatorRequest);
         m_spatialReferenceData = spatialRefGroup.getFinalSpatialRef();
 
         if (m_encodingType == null || m_encodingType == Encoding.UNKNOWN_ENCODING) {
@@ -266,6 +275,7 @@ class GeometryResponsesIterator implements Iterator<GeometryResponse> {
             case ESRI_SHAPE:
                 m_byteBufferCursor = new OperatorExportToESRIShapeCursor(0, geometryCursor);
                 break;
+            case PACKED:
             case ENVELOPE:
                 m_geometryCursor = geometryCursor;
             default:
@@ -274,6 +284,14 @@ class GeometryResponsesIterator implements Iterator<GeometryResponse> {
     }
 
 
+    /**
+     * the export cursors allocate a new buffer for every geometry and never touch it again, so the response can
+     * share it instead of copying it. the bytes are copied once more, by protobuf, into the outbound transport buffer
+     */
+    private static ByteString wrapResult(ByteBuffer byteBuffer) {
+        return UnsafeByteOperations.unsafeWrap(byteBuffer);
+    }
+
     @Override
     public boolean hasNext() {
         if (m_precookedResult != null && !m_bPrecookedRetrieved) {
@@ -301,7 +319,7 @@ class GeometryResponsesIterator implements Iterator<GeometryResponse> {
             switch (m_encodingType) {
                 case UNKNOWN_ENCODING:
                 case WKB:
-                    geometryBuilder.setWkb(ByteString.copyFrom(m_byteBufferCursor.next()));
+                    geometryBuilder.setWkb(wrapResult(m_byteBufferCursor.next()));
                     geometryBuilder.setGeometryId(m_byteBufferCursor.getByteBufferID());
                     geometryBuilder.setSimpleValue(m_byteBufferCursor.getSimpleState().ordinal());
                     geometryBuilder.setFeatureId(m_byteBufferCursor.getFeatureID());
@@ -319,11 +337,17 @@ class GeometryResponsesIterator implements Iterator<GeometryResponse> {
                     geometryBuilder.setFeatureId(m_stringCursor.getFeatureID());
                     break;
                 case ESRI_SHAPE:
-                    geometryBuilder.setEsriShape(ByteString.copyFrom(m_byteBufferCursor.next()));
+                    geometryBuilder.setEsriShape(wrapResult(m_byteBufferCursor.next()));
                     geometryBuilder.setGeometryId(m_byteBufferCursor.getByteBufferID());
                     geometryBuilder.setSimpleValue(m_byteBufferCursor.getSimpleState().ordinal());
                     geometryBuilder.setFeatureId(m_byteBufferCursor.getFeatureID());
                     break;
+                case PACKED:
+                    geometryBuilder.setPacked(PackedGeometryCodec.fromGeometry(m_geometryCursor.next()));
+                    geometryBuilder.setGeometryId(m_geometryCursor.getGeometryID());
+                    geometryBuilder.setSimpleValue(m_geometryCursor.getSimpleState().ordinal());
+                    geometryBuilder.setFeatureId(m_geometryCursor.getFeatureID());
+                    break;
                 case ENVELOPE:
                     Envelope2D envelope2D = new Envelope2D();
                     m_geometryCursor.next().queryEnvelope2D(envelope2D);
@@ -361,8 +385,12 @@ public class GeometryServiceUtil {
         }
     }
 
-    private static Operator.Type getOp(GeometryRequest operatorRequest) {
-        String key = operatorRequest.getOperator().toString().toLowerCase().replaceAll("[_]", "");
+    static Operator.Type getOp(GeometryRequest operatorRequest) {
+        return getOp(operatorRequest.getOperator());
+    }
+
+    static Operator.Type getOp(OperatorType operatorType) {
+        String key = operatorType.toString().toLowerCase().replaceAll("[_]", "");
         Operator.Type opType = m_operatorTypeMap.get(key);
         if (opType == null) {
             return Operator.Type.Project;
@@ -373,20 +401,21 @@ public class GeometryServiceUtil {
     private static GeometryCursor getLeftGeometryRequestFromRequest(
             GeometryRequest operatorRequest,
             GeometryCursor leftCursor,
-            SpatialReferenceGroup srGroup) throws IOException {
+            RequestPlan plan) throws IOException {
+        SpatialReferenceGroup srGroup = plan.srGroup;
         if (leftCursor == null) {
             leftCursor = createGeometryCursor(operatorRequest, Side.Left);
             if (leftCursor == null && operatorRequest.hasLeftGeometryRequest()) {
-                leftCursor = cursorFromRequest(operatorRequest.getLeftGeometryRequest(), null, null);
+                leftCursor = cursorFromRequest(operatorRequest.getLeftGeometryRequest(), plan.leftPlan, null, null);
             } else if (leftCursor == null && operatorRequest.hasGeometryRequest()) {
                 // assumes there is always a nested request if none of the above worked
-                leftCursor = cursorFromRequest(operatorRequest.getGeometryRequest(), null, null);
+                leftCursor = cursorFromRequest(operatorRequest.getGeometryRequest(), plan.leftPlan, null, null);
             }
         } else {
             if (operatorRequest.hasLeftGeometryRequest()) {
-                leftCursor = cursorFromRequest(operatorRequest.getLeftGeometryRequest(), leftCursor, null);
+                leftCursor = cursorFromRequest(operatorRequest.getLeftGeometryRequest(), plan.leftPlan, leftCursor, null);
             } else if (operatorRequest.hasGeometryRequest()) {
-                leftCursor = cursorFromRequest(operatorRequest.getGeometryRequest(), leftCursor, null);
+                leftCursor = cursorFromRequest(operatorRequest.getGeometryRequest(), plan.leftPlan, leftCursor, null);
             }
         }
 
@@ -396,7 +425,7 @@ public class GeometryServiceUtil {
 
         // project left if needed
         if (srGroup.operatorSR != null && !srGroup.operatorSR.equals(srGroup.leftSR)) {
-            ProjectionTransformation projTransformation = new ProjectionTransformation(srGroup.leftSR, srGroup.operatorSR);
+            ProjectionTransformation projTransformation = ProjectionTransformationCache.get(srGroup.leftSR, srGroup.operatorSR);
             leftCursor = OperatorProject.local().execute(leftCursor, projTransformation, null);
         }
 
@@ -407,33 +436,137 @@ public class GeometryServiceUtil {
             GeometryRequest operatorRequest,
             GeometryCursor leftCursor,
             GeometryCursor rightCursor,
-            SpatialReferenceGroup srGroup) throws IOException {
+            RequestPlan plan) throws IOException {
+        SpatialReferenceGroup srGroup = plan.srGroup;
         if (leftCursor != null && rightCursor == null) {
+            // relation and intersection operands are usually the same fence message after message, so they come
+            // from the cache already imported, projected and accelerated
+            if (operatorRequest.hasRightGeometry() &&
+                    (plan.relationType != null || operatorRequest.getOperator() == OperatorType.INTERSECTION)) {
+                return GeometryCache.cursor(operatorRequest.getRightGeometry(), srGroup.rightSR, srGroup.operatorSR);
+            }
             rightCursor = createGeometryCursor(operatorRequest, Side.Right);
             if (rightCursor == null && operatorRequest.hasRightGeometryRequest()) {
-                rightCursor = cursorFromRequest(operatorRequest.getRightGeometryRequest(), null, null);
+                rightCursor = cursorFromRequest(operatorRequest.getRightGeometryRequest(), plan.rightPlan, null, null);
             }
         }
 
         if (rightCursor != null && srGroup.operatorSR != null && !srGroup.operatorSR.equals(srGroup.rightSR)) {
-            ProjectionTransformation projTransformation = new ProjectionTransformation(srGroup.rightSR, srGroup.operatorSR);
+            ProjectionTransformation projTransformation = ProjectionTransformationCache.get(srGroup.rightSR, srGroup.operatorSR);
             rightCursor = OperatorProject.local().execute(rightCursor, projTransformation, null);
         }
         return rightCursor;
     }
 
+    /**
+     * tests the next left geometry against a dataset registered with datasets, or finds its nearest dataset
+     * geometries for PROXIMITY_2D. the response holds the ids of the matching dataset geometries and a geometry with
+     * only the left geometry's ids set
+     */
+    private static GeometryResponse datasetRelation(GeometryRequest operatorRequest,
+                                                    RequestPlan plan,
+                                                    GeometryCursor leftCursor,
+                                                    DatasetRegistry datasets) {
+        boolean proximity = operatorRequest.getOperator() == OperatorType.PROXIMITY_2D;
+        if (plan.relationType == null && !proximity) {
+            throw new IllegalArgumentException("right_dataset is only supported for PROXIMITY_2D and the simple relation operators");
+        }
+        if (datasets == null) {
+            throw new IllegalArgumentException("right_dataset is only supported by a GeometryServer, which holds the datasets");
+        }
+        GeometryDataset dataset = datasets.get(operatorRequest.getRightDataset());
+
+        Geometry geometry = leftCursor.next();
+        SpatialReference spatialReference = plan.srGroup.operatorSR;
+        if (dataset.spatialReference != null && spatialReference != null && !dataset.spatialReference.equals(spatialReference)) {
+            ProjectionTransformation projTransformation = ProjectionTransformationCache.get(spatialReference, dataset.spatialReference);
+            geometry = OperatorProject.local().execute(geometry, projTransformation, null);
+        }
+
+        GeometryResponse.Builder operatorResultBuilder = GeometryResponse.newBuilder()
+                .setGeometry(GeometryData.newBuilder()
+                        .setGeometryId(leftCursor.getGeometryID())
+                        .setFeatureId(leftCursor.getFeatureID()));
+        if (proximity) {
+            GeometryRequest.ProximityParams proximityParams = operatorRequest.getProximityParams();
+            if (proximityParams.getK() < 0 || proximityParams.getMaxDistance() < 0) {
+                throw new IllegalArgumentException("proximity k and max_distance can't be negative");
+            }
+            dataset.nearest(geometry,
+                    proximityParams.getK() == 0 ? 1 : proximityParams.getK(),
+                    proximityParams.getMaxDistance() == 0 ? Double.POSITIVE_INFINITY : proximityParams.getMaxDistance(),
+                    operatorResultBuilder);
+            return operatorResultBuilder.build();
+        }
+        for (long id : dataset.matchingIds(geometry, plan.relationType)) {
+            operatorResultBuilder.addMatchingIds(id);
+        }
+        return operatorResultBuilder.build();
+    }
+
+    /**
+     * relation results for every right geometry packed into relate_bits, in right cursor order, and their ids into
+     * relate_ids if withIds. spatial_relationship is set if there is a single right geometry
+     */
+    private static void packRelationResults(GeometryResponse.Builder operatorResultBuilder,
+                                            OperatorSimpleRelation operator,
+                                            Geometry leftGeometry,
+                                            GeometryCursor rightCursor,
+                                            SpatialReference spatialReference,
+                                            boolean withIds) {
+        byte[] bits = new byte[16];
+        int count = 0;
+        Geometry rightGeometry;
+        while ((rightGeometry = rightCursor.next()) != null) {
+            // the left geometry is tested against every right geometry, so it's worth accelerating once there are two
+            if (count == 1 && operator.canAccelerateGeometry(leftGeometry)) {
+                operator.accelerateGeometry(leftGeometry, spatialReference, Geometry.GeometryAccelerationDegree.enumMedium);
+            }
+            if (count / 8 == bits.length) {
+                bits = Arrays.copyOf(bits, bits.length * 2);
+            }
+            if (operator.execute(leftGeometry, rightGeometry, spatialReference, null)) {
+                bits[count / 8] |= 1 << (count % 8);
+            }
+            if (withIds) {
+                operatorResultBuilder.addRelateIds(rightCursor.getGeometryID());
+            }
+            count++;
+        }
+
+        if (count == 1) {
+            operatorResultBuilder.setSpatialRelationship(bits[0] != 0);
+        }
+        operatorResultBuilder.setRelateBits(UnsafeByteOperations.unsafeWrap(bits, 0, (count + 7) / 8));
+    }
+
     public static GeometryResponse nonCursorFromRequest(
             GeometryRequest operatorRequest,
             GeometryCursor leftCursor,
             GeometryCursor rightCursor) throws IOException {
-        SpatialReferenceGroup srGroup = new SpatialReferenceGroup(operatorRequest);
-        leftCursor = getLeftGeometryRequestFromRequest(operatorRequest, leftCursor, srGroup);
-        rightCursor = getRightGeometryRequestFromRequest(operatorRequest, leftCursor, rightCursor, srGroup);
+        return nonCursorFromRequest(operatorRequest, RequestPlan.of(operatorRequest), leftCursor, rightCursor, null);
+    }
+
+    /**
+     * datasets holds the datasets a right_dataset can name, null outside of a server
+     */
+    static GeometryResponse nonCursorFromRequest(
+            GeometryRequest operatorRequest,
+            RequestPlan plan,
+            GeometryCursor leftCursor,
+            GeometryCursor rightCursor,
+            DatasetRegistry datasets) throws IOException {
+        SpatialReferenceGroup srGroup = plan.srGroup;
+        leftCursor = getLeftGeometryRequestFromRequest(operatorRequest, leftCursor, plan);
+        if (!operatorRequest.getRightDataset().isEmpty()) {
+            return datasetRelation(operatorRequest, plan, leftCursor, datasets);
+        }
+        rightCursor = getRightGeometryRequestFromRequest(operatorRequest, leftCursor, rightCursor, plan);
 
         GeometryResponse.Builder operatorResultBuilder = GeometryResponse.newBuilder();
         switch (operatorRequest.getOperator()) {
             case PROXIMITY_2D:
-                break;
+                throw new IllegalArgumentException("PROXIMITY_2D searches a dataset, set right_dataset to the name of a registered dataset");
             case RELATE:
                 if (!srGroup.checkLeftRightSpatialOperation()) {
                     throw new GeometryException("for spatial operations the left and right spatial reference must equal one another if the operation spatial reference isn't defined");
@@ -452,7 +585,16 @@ public class GeometryServiceUtil {
                 if (!srGroup.checkLeftRightSpatialOperation()) {
                     throw new GeometryException("for spatial operations the left and right spatial reference must equal one another if the operation spatial reference isn't defined");
                 }
-                Operator.Type operatorType = getOp(operatorRequest);
+                Operator.Type operatorType = plan.relationType;
+                if (operatorRequest.getRelationResult() != GeometryRequest.RelationResult.RELATE_MAP) {
+                    packRelationResults(operatorResultBuilder,
+                            (OperatorSimpleRelation) OperatorFactoryLocal.getInstance().getOperator(operatorType),
+                            leftCursor.next(),
+                            rightCursor,
+                            srGroup.operatorSR,
+                            operatorRequest.getRelationResult() == GeometryRequest.RelationResult.BITSET_WITH_IDS);
+                    break;
+                }
                 HashMap<Long, Boolean> result_map = ((OperatorSimpleRelation) OperatorFactoryLocal
                         .getInstance()
                         .getOperator(operatorType)).execute(
@@ -476,7 +618,7 @@ public class GeometryServiceUtil {
                 break;
             case GEODETIC_AREA:
                 Geometry geometry = leftCursor.next();
-                ProjectionTransformation forwardProjectionTransformation = ProjectionTransformation.getEqualArea(geometry, srGroup.leftSR);
+                ProjectionTransformation forwardProjectionTransformation = ProjectionTransformationCache.getEqualArea(geometry, srGroup.leftSR);
                 double geodeticArea = OperatorProject.local().execute(geometry, forwardProjectionTransformation, null).calculateArea2D();
                 operatorResultBuilder.setMeasure(geodeticArea);
                 break;
@@ -503,9 +645,17 @@ public class GeometryServiceUtil {
             GeometryRequest operatorRequest,
             GeometryCursor leftCursor,
             GeometryCursor rightCursor) throws IOException {
-        SpatialReferenceGroup srGroup = new SpatialReferenceGroup(operatorRequest);
-        leftCursor = getLeftGeometryRequestFromRequest(operatorRequest, leftCursor, srGroup);
-        rightCursor = getRightGeometryRequestFromRequest(operatorRequest, leftCursor, rightCursor, srGroup);
+        return cursorFromRequest(operatorRequest, RequestPlan.of(operatorRequest), leftCursor, rightCursor);
+    }
+
+    static GeometryCursor cursorFromRequest(
+            GeometryRequest operatorRequest,
+            RequestPlan plan,
+            GeometryCursor leftCursor,
+            GeometryCursor rightCursor) throws IOException {
+        SpatialReferenceGroup srGroup = plan.srGroup;
+        leftCursor = getLeftGeometryRequestFromRequest(operatorRequest, leftCursor, plan);
+        rightCursor = getRightGeometryRequestFromRequest(operatorRequest, leftCursor, rightCursor, plan);
 
         GeometryCursor resultCursor = null;
         switch (operatorRequest.getOperator()) {
@@ -727,20 +877,18 @@ public class GeometryServiceUtil {
         }
 
         if (srGroup.resultSR != null && !srGroup.resultSR.equals(srGroup.operatorSR)) {
-            ProjectionTransformation projTransformation = new ProjectionTransformation(srGroup.operatorSR, srGroup.resultSR);
+            ProjectionTransformation projTransformation = ProjectionTransformationCache.get(srGroup.operatorSR, srGroup.resultSR);
             resultCursor = OperatorProject.local().execute(resultCursor, projTransformation, null);
         }
 
         return resultCursor;
     }
 
-    public static GeometryResponsesIterator buildResultsIterable(GeometryRequest operatorRequest,
-                                                                 GeometryCursor leftCursor,
-                                                                 boolean bForceCompact) throws IOException {
-        Encoding encodingType = Encoding.UNKNOWN_ENCODING;
-        GeometryCursor resultCursor = null;
-        switch (operatorRequest.getOperator()) {
-            // results
+    /**
+     * operators that answer with a single relation, measure or inverse result instead of a geometry cursor
+     */
+    static boolean isNonCursorOperator(OperatorType operatorType) {
+        switch (operatorType) {
             case PROXIMITY_2D:
             case RELATE:
             case EQUALS:
@@ -755,8 +903,62 @@ public class GeometryServiceUtil {
             case GEODETIC_AREA:
             case GEODETIC_LENGTH:
             case GEODETIC_INVERSE:
-                return new GeometryResponsesIterator(nonCursorFromRequest(operatorRequest, leftCursor, null));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * envelope that a geometry from the request's input cursor has to intersect for the request to return a non empty
+     * result, or null if the request can't tell. only CLIP and INTERSECTION reading the input cursor directly, without
+     * projecting it, qualify; readers use this to drop records before importing them
+     */
+    static Envelope2D inputFilterEnvelope(GeometryRequest operatorRequest) {
+        if (operatorRequest.hasLeftGeometryRequest() || operatorRequest.hasGeometryRequest()) {
+            return null;
+        }
+
+        SpatialReferenceGroup srGroup = RequestPlan.of(operatorRequest).srGroup;
+        if (srGroup.operatorSR != null && !srGroup.operatorSR.equals(srGroup.leftSR)) {
+            return null;
+        }
+
+        switch (operatorRequest.getOperator()) {
+            case CLIP:
+                return extractEnvelope2D(operatorRequest.getClipParams().getEnvelope());
+            case INTERSECTION:
+                if (!operatorRequest.hasRightGeometry() || operatorRequest.hasRightGeometryRequest() ||
+                        (srGroup.operatorSR != null && !srGroup.operatorSR.equals(srGroup.rightSR))) {
+                    return null;
+                }
+                Envelope2D envelope2D = new Envelope2D();
+                extractGeometry(operatorRequest.getRightGeometry()).queryEnvelope2D(envelope2D);
+                return envelope2D;
+            default:
+                return null;
+        }
+    }
+
+    public static GeometryResponsesIterator buildResultsIterable(GeometryRequest operatorRequest,
+                                                                 GeometryCursor leftCursor,
+                                                                 boolean bForceCompact) throws IOException {
+        return buildResultsIterable(operatorRequest, RequestPlan.of(operatorRequest), leftCursor, bForceCompact, null);
+    }
 
+    static GeometryResponsesIterator buildResultsIterable(GeometryRequest operatorRequest,
+                                                          RequestPlan plan,
+                                                          GeometryCursor leftCursor,
+                                                          boolean bForceCompact,
+                                                          DatasetRegistry datasets) throws IOException {
+        // results
+        if (isNonCursorOperator(operatorRequest.getOperator())) {
+            return new GeometryResponsesIterator(nonCursorFromRequest(operatorRequest, plan, leftCursor, null, datasets));
+        }
+
+        Encoding encodingType = Encoding.UNKNOWN_ENCODING;
+        GeometryCursor resultCursor = null;
+        switch (operatorRequest.getOperator()) {
             // cursors
             case PROJECT:
             case UNION:
@@ -779,7 +981,7 @@ public class GeometryServiceUtil {
             case RANDOM_POINTS:
             case ENCLOSING_CIRCLE:
             case AFFINE_TRANSFORM:
-                resultCursor = cursorFromRequest(operatorRequest, leftCursor, null);
+                resultCursor = cursorFromRequest(operatorRequest, plan, leftCursor, null);
                 break;
             case EXPORT_TO_ESRI_SHAPE:
                 encodingType = Encoding.ESRI_SHAPE;
@@ -797,10 +999,81 @@ public class GeometryServiceUtil {
         // If the only operation used by the user is to export to one of the formats then enter this if statement and
         // assign the left cursor to the result cursor
         if (encodingType != Encoding.UNKNOWN_ENCODING) {
-            resultCursor = createGeometryCursor(operatorRequest, Side.Left);
+            resultCursor = leftCursor != null ? leftCursor : createGeometryCursor(operatorRequest, Side.Left);
+        }
+
+        return new GeometryResponsesIterator(resultCursor, operatorRequest, plan.srGroup, encodingType, bForceCompact);
+    }
+
+    /**
+     * Run a batch. Consecutive geometries that share a spatial reference run as one cursor chain with one plan;
+     * relations and measures only read one left geometry, so they run once per geometry of the batch.
+     */
+    public static GeometryBatchResponse batchFromRequest(GeometryBatchRequest batchRequest) throws IOException {
+        return batchFromRequest(batchRequest, null);
+    }
+
+    static GeometryBatchResponse batchFromRequest(GeometryBatchRequest batchRequest, DatasetRegistry datasets) throws IOException {
+        GeometryRequest requestTemplate = batchRequest.getRequestTemplate();
+        List<GeometryData> geometries = batchRequest.getGeometriesList();
+        boolean nonCursor = isNonCursorOperator(requestTemplate.getOperator());
+
+        GeometryBatchResponse.Builder batchResponseBuilder = GeometryBatchResponse.newBuilder();
+        int start = 0;
+        while (start < geometries.size()) {
+            SpatialReferenceData spatialReferenceData = batchSpatialReference(batchRequest, geometries.get(start));
+            int end = start + 1;
+            while (end < geometries.size() &&
+                    spatialReferenceData.equals(batchSpatialReference(batchRequest, geometries.get(end)))) {
+                end++;
+            }
+
+            GeometryRequest operatorRequest = fillBatchLeaf(requestTemplate, spatialReferenceData);
+            RequestPlan plan = RequestPlan.of(operatorRequest);
+            List<GeometryData> run = geometries.subList(start, end);
+            if (nonCursor) {
+                for (GeometryData geometryData : run) {
+                    batchResponseBuilder.addResponses(
+                            nonCursorFromRequest(operatorRequest, plan, extractGeometryCursor(geometryData), null, datasets));
+                }
+            } else {
+                GeometryResponsesIterator geometryResponses =
+                        buildResultsIterable(operatorRequest, plan, new GeometryDataCursor(run), false, datasets);
+                while (geometryResponses.hasNext()) {
+                    batchResponseBuilder.addResponses(geometryResponses.next());
+                }
+            }
+            start = end;
+        }
+        return batchResponseBuilder.build();
+    }
+
+    private static SpatialReferenceData batchSpatialReference(GeometryBatchRequest batchRequest, GeometryData geometryData) {
+        return geometryData.hasSr() ? geometryData.getSr() : batchRequest.getSr();
+    }
+
+    /**
+     * copy of the template with an sr only geometry in its innermost left slot. the batch cursor is passed down the
+     * left requests to that slot, the same way file streams feed their nested request.
+     */
+    private static GeometryRequest fillBatchLeaf(GeometryRequest requestTemplate, SpatialReferenceData spatialReferenceData) {
+        if (requestTemplate.hasLeftGeometryRequest()) {
+            return requestTemplate.toBuilder()
+                    .setLeftGeometryRequest(fillBatchLeaf(requestTemplate.getLeftGeometryRequest(), spatialReferenceData))
+                    .build();
+        } else if (requestTemplate.hasGeometryRequest()) {
+            return requestTemplate.toBuilder()
+                    .setGeometryRequest(fillBatchLeaf(requestTemplate.getGeometryRequest(), spatialReferenceData))
+                    .build();
+        } else if (requestTemplate.hasGeometry() || requestTemplate.hasLeftGeometry()) {
+            throw new IllegalArgumentException("batch request_template must leave the innermost left geometry empty");
         }
 
-        return new GeometryResponsesIterator(resultCursor, operatorRequest, encodingType, bForceCompact);
+        GeometryData.Builder leafBuilder = GeometryData.newBuilder();
+        if (!spatialReferenceData.equals(SpatialReferenceData.getDefaultInstance())) {
+            leafBuilder.setSr(spatialReferenceData);
+        }
+        return requestTemplate.toBuilder().setGeometry(leafBuilder).build();
     }
 
 
@@ -850,17 +1123,8 @@ public class GeometryServiceUtil {
 
 
     protected static SpatialReference extractSpatialReference(SpatialReferenceData serviceSpatialReference) {
-        // TODO there seems to be a bug where hasWkid() is not getting generated. check back later
-        if (serviceSpatialReference.getWkid() != 0)
-            return SpatialReference.create(serviceSpatialReference.getWkid());
-        else if (serviceSpatialReference.getWkt().length() > 0)
-            return SpatialReference.create(serviceSpatialReference.getWkt());
-        else if (serviceSpatialReference.getProj4().length() > 0)
-            return SpatialReference.createFromProj4(serviceSpatialReference.getProj4());
-        else if (serviceSpatialReference.hasCustom() && serviceSpatialReference.getCustom().getCsType() == SpatialReferenceData.CSType.LAMBERT_AZI)
-            return SpatialReference.createEqualArea(serviceSpatialReference.getCustom().getLon0(), serviceSpatialReference.getCustom().getLat0());
-        else
-            return null;
+        // parsing wkt and proj4 is expensive, so spatial references are interned
+        return SpatialReferenceCache.get(serviceSpatialReference);
     }
 
 
@@ -883,13 +1147,15 @@ public class GeometryServiceUtil {
         } else if (geometryData.getGeojson().length() > 0) {
             OperatorImportFromGeoJson operatorImport = (OperatorImportFromGeoJson) factory.getOperator(Operator.Type.ImportFromGeoJson);
             return operatorImport.execute(0, Geometry.Type.Unknown, geometryData.getGeojson(), null).getGeometry();
+        } else if (geometryData.hasPacked()) {
+            return PackedGeometryCodec.toGeometry(geometryData.getPacked());
         } else {
             throw new GeometryException("No geometry data found");
         }
     }
 
 
-    private static GeometryCursor extractGeometryCursor(GeometryData geometryData) throws IOException {
+    static GeometryCursor extractGeometryCursor(GeometryData geometryData) throws IOException {
         GeometryCursor geometryCursor = null;
 
         if (geometryData.getWkb().size() > 0) {
@@ -924,6 +1190,8 @@ public class GeometryServiceUtil {
                     simpleStringCursor,
                     null);
             geometryCursor = new SimpleGeometryCursor(mapGeometryCursor);
+        } else if (geometryData.hasPacked()) {
+            geometryCursor = new PackedGeometryCodec.ImportCursor(geometryData);
         } else {
             throw new GeometryException("No geometry data found");
         }
@@ -0,0 +1,128 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread safe, size bounded cache with least recently used eviction and hit / miss counters. Values are loaded
+ * outside of the lock, so two threads missing on the same key may both load it and the first one stored wins.
+ *
+ * The size counts entries, unless the cache was given a weigher, in which case it bounds the sum of the weights of
+ * the cached values. The most recently stored entry is always kept, even if it weighs more than the bound.
+ */
+class LruCache<K, V> {
+    private final long maxWeight;
+    private final ToLongFunction<? super V> weigher;
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    // guarded by map
+    private long weight = 0;
+
+    LruCache(int maxSize) {
+        this(maxSize, value -> 1);
+    }
+
+    LruCache(long maxWeight, ToLongFunction<? super V> weigher) {
+        if (maxWeight < 1) {
+            throw new IllegalArgumentException("cache size must be at least 1");
+        }
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    V get(K key, Function<? super K, ? extends V> loader) {
+        V value;
+        synchronized (map) {
+            value = map.get(key);
+        }
+        if (value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+
+        misses.incrementAndGet();
+        V loaded = loader.apply(key);
+        if (loaded == null) {
+            return null;
+        }
+
+        long loadedWeight = weigher.applyAsLong(loaded);
+        synchronized (map) {
+            V existing = map.putIfAbsent(key, loaded);
+            if (existing != null) {
+                return existing;
+            }
+            weight += loadedWeight;
+            evict();
+            return loaded;
+        }
+    }
+
+    private void evict() {
+        // the newest entry is last in access order
+        Iterator<V> eldest = map.values().iterator();
+        while (weight > maxWeight && map.size() > 1) {
+            weight -= weigher.applyAsLong(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * sum of the weights of the cached values, the number of entries without a weigher
+     */
+    long getWeight() {
+        synchronized (map) {
+            return weight;
+        }
+    }
+
+    long getMaxWeight() {
+        return maxWeight;
+    }
+
+    void clear() {
+        synchronized (map) {
+            map.clear();
+            weight = 0;
+        }
+    }
+}
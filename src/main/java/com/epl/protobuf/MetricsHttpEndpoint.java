@@ -0,0 +1,100 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves {@link GeometryMetrics} in prometheus text format at /metrics. Binds to the loopback interface by default
+ * so the numbers are only reachable from the pod (a sidecar or port-forward can scrape them).
+ *
+ * GEOMETRY_METRICS_HOST: interface to bind, default 127.0.0.1
+ * GEOMETRY_METRICS_PORT: port to listen on, default 8981, 0 disables the endpoint
+ */
+class MetricsHttpEndpoint {
+    static final String HOST_ENV = "GEOMETRY_METRICS_HOST";
+    static final String PORT_ENV = "GEOMETRY_METRICS_PORT";
+
+    private final HttpServer httpServer;
+
+    private MetricsHttpEndpoint(HttpServer httpServer) {
+        this.httpServer = httpServer;
+    }
+
+    /**
+     * start the endpoint configured by the environment, or return null if GEOMETRY_METRICS_PORT is 0
+     */
+    static MetricsHttpEndpoint startFromEnvironment(GeometryMetrics metrics) throws IOException {
+        String host = System.getenv(HOST_ENV);
+        if (host == null || host.trim().isEmpty()) {
+            host = "127.0.0.1";
+        }
+
+        int port = 8981;
+        String value = System.getenv(PORT_ENV);
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                port = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(PORT_ENV + " must be a port number, was " + value, e);
+            }
+        }
+        if (port == 0) {
+            return null;
+        }
+        return start(metrics, new InetSocketAddress(host.trim(), port));
+    }
+
+    static MetricsHttpEndpoint start(GeometryMetrics metrics, InetSocketAddress address) throws IOException {
+        HttpServer httpServer = HttpServer.create(address, 0);
+        httpServer.createContext("/metrics", exchange -> {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        httpServer.start();
+        return new MetricsHttpEndpoint(httpServer);
+    }
+
+    int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    void stop() {
+        httpServer.stop(0);
+    }
+}
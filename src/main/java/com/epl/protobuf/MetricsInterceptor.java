@@ -0,0 +1,102 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.google.protobuf.MessageLite;
+import io.grpc.*;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Counts messages and bytes in each direction, tracks open streaming calls and records the latency of every call
+ * from the moment it arrives until it is closed or cancelled.
+ */
+class MetricsInterceptor implements ServerInterceptor {
+    private final GeometryMetrics metrics;
+
+    MetricsInterceptor(GeometryMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        final long startTime = System.nanoTime();
+        final String fullMethodName = call.getMethodDescriptor().getFullMethodName();
+        final String methodName = fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1);
+        final boolean streaming = call.getMethodDescriptor().getType() != MethodDescriptor.MethodType.UNARY;
+        // a call ends either in close or in cancel (or both when the client goes away mid response)
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final Runnable finish = () -> {
+            if (finished.compareAndSet(false, true)) {
+                if (streaming) {
+                    metrics.streamClosed();
+                }
+                metrics.recordMethod(methodName, System.nanoTime() - startTime);
+            }
+        };
+
+        if (streaming) {
+            metrics.streamStarted();
+        }
+
+        ServerCall<ReqT, RespT> countingCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                metrics.messageOut(serializedSize(message));
+                super.sendMessage(message);
+            }
+
+            @Override
+            public void close(Status status, Metadata trailers) {
+                finish.run();
+                super.close(status, trailers);
+            }
+        };
+
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(countingCall, headers);
+        } catch (RuntimeException e) {
+            finish.run();
+            throw e;
+        }
+
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                metrics.messageIn(serializedSize(message));
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onCancel() {
+                finish.run();
+                super.onCancel();
+            }
+        };
+    }
+
+    private static int serializedSize(Object message) {
+        return message instanceof MessageLite ? ((MessageLite) message).getSerializedSize() : 0;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.*;
+
+/**
+ * Converts between PackedGeometry messages and geometries. Vertices are appended straight from the packed double
+ * array to the geometry's attribute streams and read back vertex by vertex, there is no intermediate text or byte
+ * format.
+ */
+final class PackedGeometryCodec {
+    private PackedGeometryCodec() {
+    }
+
+    static Geometry toGeometry(PackedGeometry packed) {
+        boolean hasZ = packed.getHasZ();
+        int stride = hasZ ? 3 : 2;
+        int coordinateCount = packed.getCoordinatesCount();
+        if (coordinateCount % stride != 0) {
+            throw new GeometryException("packed coordinate count must be a multiple of " + stride);
+        }
+        int vertexCount = coordinateCount / stride;
+
+        switch (packed.getGeometryType()) {
+            case POINT:
+                if (vertexCount > 1) {
+                    throw new GeometryException("packed point has more than one vertex");
+                }
+                Point point = new Point();
+                if (vertexCount == 1) {
+                    point.setXY(packed.getCoordinates(0), packed.getCoordinates(1));
+                    if (hasZ) {
+                        point.setZ(packed.getCoordinates(2));
+                    }
+                }
+                return point;
+            case MULTIPOINT:
+                MultiPoint multiPoint = new MultiPoint();
+                if (hasZ) {
+                    multiPoint.addAttribute(VertexDescription.Semantics.Z);
+                }
+                for (int vertex = 0; vertex < vertexCount; vertex++) {
+                    int offset = vertex * stride;
+                    multiPoint.add(packed.getCoordinates(offset), packed.getCoordinates(offset + 1));
+                    if (hasZ) {
+                        multiPoint.setAttribute(VertexDescription.Semantics.Z, vertex, 0, packed.getCoordinates(offset + 2));
+                    }
+                }
+                return multiPoint;
+            case POLYLINE:
+                return toMultiPath(new Polyline(), packed, stride, vertexCount, false);
+            case POLYGON:
+                return toMultiPath(new Polygon(), packed, stride, vertexCount, true);
+            default:
+                throw new GeometryException("packed geometry type is not set");
+        }
+    }
+
+    private static MultiPath toMultiPath(MultiPath multiPath, PackedGeometry packed, int stride, int vertexCount, boolean rings) {
+        boolean hasZ = packed.getHasZ();
+        if (hasZ) {
+            multiPath.addAttribute(VertexDescription.Semantics.Z);
+        }
+        if (vertexCount == 0) {
+            return multiPath;
+        }
+
+        Point zVertex = hasZ ? new Point() : null;
+        int partCount = packed.getPartOffsetsCount();
+        if (partCount > 0 && packed.getPartOffsets(0) != 0) {
+            throw new GeometryException("packed part offsets must start with 0");
+        }
+
+        for (int part = 0; part < Math.max(1, partCount); part++) {
+            int start = partCount == 0 ? 0 : packed.getPartOffsets(part);
+            int end = part + 1 < partCount ? packed.getPartOffsets(part + 1) : vertexCount;
+            if (start < 0 || end > vertexCount || start >= end) {
+                throw new GeometryException("packed part offsets must increase and stay below the vertex count");
+            }
+
+            // the ring closing vertex is implicit in polygons
+            if (rings && end - start > 1 &&
+                    packed.getCoordinates(start * stride) == packed.getCoordinates((end - 1) * stride) &&
+                    packed.getCoordinates(start * stride + 1) == packed.getCoordinates((end - 1) * stride + 1)) {
+                end--;
+            }
+
+            for (int vertex = start; vertex < end; vertex++) {
+                int offset = vertex * stride;
+                if (hasZ) {
+                    // startPath only adds its vertex with the first lineTo, so z can't be set by index afterwards
+                    zVertex.setXY(packed.getCoordinates(offset), packed.getCoordinates(offset + 1));
+                    zVertex.setZ(packed.getCoordinates(offset + 2));
+                    if (vertex == start) {
+                        multiPath.startPath(zVertex);
+                    } else {
+                        multiPath.lineTo(zVertex);
+                    }
+                } else if (vertex == start) {
+                    multiPath.startPath(packed.getCoordinates(offset), packed.getCoordinates(offset + 1));
+                } else {
+                    multiPath.lineTo(packed.getCoordinates(offset), packed.getCoordinates(offset + 1));
+                }
+            }
+        }
+        return multiPath;
+    }
+
+    static PackedGeometry fromGeometry(Geometry geometry) {
+        // envelopes and single segments are written as the multi vertex geometry they describe
+        if (geometry.getType() == Geometry.Type.Envelope) {
+            Polygon polygon = new Polygon(geometry.getDescription());
+            polygon.addEnvelope((Envelope) geometry, false);
+            geometry = polygon;
+        } else if (geometry.getType() == Geometry.Type.Line) {
+            Polyline polyline = new Polyline(geometry.getDescription());
+            polyline.addSegment((Segment) geometry, true);
+            geometry = polyline;
+        }
+
+        boolean hasZ = geometry.hasZ();
+        PackedGeometry.Builder packedBuilder = PackedGeometry.newBuilder().setHasZ(hasZ);
+
+        if (geometry.getType() == Geometry.Type.Point) {
+            Point point = (Point) geometry;
+            packedBuilder.setGeometryType(PackedGeometry.GeometryType.POINT);
+            if (!point.isEmpty()) {
+                packedBuilder.addCoordinates(point.getX()).addCoordinates(point.getY());
+                if (hasZ) {
+                    packedBuilder.addCoordinates(point.getZ());
+                }
+            }
+            return packedBuilder.build();
+        }
+
+        MultiVertexGeometry multiVertexGeometry = (MultiVertexGeometry) geometry;
+        int pointCount = multiVertexGeometry.getPointCount();
+        if (hasZ) {
+            Point vertex = new Point();
+            for (int i = 0; i < pointCount; i++) {
+                multiVertexGeometry.getPointByVal(i, vertex);
+                packedBuilder.addCoordinates(vertex.getX()).addCoordinates(vertex.getY()).addCoordinates(vertex.getZ());
+            }
+        } else {
+            Point2D vertex = new Point2D();
+            for (int i = 0; i < pointCount; i++) {
+                multiVertexGeometry.getXY(i, vertex);
+                packedBuilder.addCoordinates(vertex.x).addCoordinates(vertex.y);
+            }
+        }
+
+        if (geometry instanceof MultiPath) {
+            MultiPath multiPath = (MultiPath) geometry;
+            packedBuilder.setGeometryType(geometry.getType() == Geometry.Type.Polygon ?
+                    PackedGeometry.GeometryType.POLYGON :
+                    PackedGeometry.GeometryType.POLYLINE);
+            for (int path = 0; path < multiPath.getPathCount(); path++) {
+                packedBuilder.addPartOffsets(multiPath.getPathStart(path));
+            }
+        } else {
+            packedBuilder.setGeometryType(PackedGeometry.GeometryType.MULTIPOINT);
+        }
+        return packedBuilder.build();
+    }
+
+    /**
+     * single geometry cursor over a packed GeometryData
+     */
+    static class ImportCursor extends GeometryCursor {
+        private final GeometryData geometryData;
+        private boolean consumed = false;
+
+        ImportCursor(GeometryData geometryData) {
+            this.geometryData = geometryData;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !consumed;
+        }
+
+        @Override
+        public Geometry next() {
+            if (consumed) {
+                return null;
+            }
+            consumed = true;
+            return toGeometry(geometryData.getPacked());
+        }
+
+        @Override
+        public long getGeometryID() {
+            return geometryData.getGeometryId();
+        }
+
+        @Override
+        public String getFeatureID() {
+            return geometryData.getFeatureId();
+        }
+
+        @Override
+        public SimpleStateEnum getSimpleState() {
+            return SimpleStateEnum.valueOf(geometryData.getSimple().name());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope;
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.OperatorProject;
+import com.esri.core.geometry.ProjectionTransformation;
+import com.esri.core.geometry.SpatialReference;
+
+import java.util.Objects;
+
+/**
+ * Shares ProjectionTransformation instances between requests. Transformations between two spatial references are
+ * keyed by the (from, to) pair. Equal area transformations are centered on the extent of the geometry they are
+ * built for, so they are keyed by the spatial reference and that extent; repeated area requests for the same
+ * geometry (a fence or a service area) reuse the transformation without hashing or holding on to its vertices.
+ */
+final class ProjectionTransformationCache {
+    static final String CACHE_SIZE_ENV = "GEOMETRY_PROJECTION_CACHE_SIZE";
+
+    private static final int cacheSize = GeometryExecutors.positiveIntFromEnvironment(CACHE_SIZE_ENV, 256);
+    private static final LruCache<SpatialReferencePair, ProjectionTransformation> transformations = new LruCache<>(cacheSize);
+    private static final LruCache<EqualAreaKey, ProjectionTransformation> equalAreaTransformations = new LruCache<>(cacheSize);
+
+    private ProjectionTransformationCache() {
+    }
+
+    static ProjectionTransformation get(SpatialReference from, SpatialReference to) {
+        return transformations.get(new SpatialReferencePair(from, to), key -> new ProjectionTransformation(key.from, key.to));
+    }
+
+    static ProjectionTransformation getEqualArea(Geometry geometry, SpatialReference spatialReference) {
+        Envelope2D extent = new Envelope2D();
+        geometry.queryEnvelope2D(extent);
+        // the transformation only reads the geometry's extent, an envelope of the same extent builds the same one
+        return equalAreaTransformations.get(
+                new EqualAreaKey(extent, spatialReference),
+                key -> ProjectionTransformation.getEqualArea(new Envelope(key.extent), key.spatialReference));
+    }
+
+    /**
+     * geometry projected from one spatial reference into another, or geometry itself if either is unknown or they're
+     * the same
+     */
+    static Geometry project(Geometry geometry, SpatialReference from, SpatialReference to) {
+        if (from == null || to == null || from.equals(to)) {
+            return geometry;
+        }
+        return OperatorProject.local().execute(geometry, get(from, to), null);
+    }
+
+    static long getHitCount() {
+        return transformations.getHitCount() + equalAreaTransformations.getHitCount();
+    }
+
+    static long getMissCount() {
+        return transformations.getMissCount() + equalAreaTransformations.getMissCount();
+    }
+
+    private static final class SpatialReferencePair {
+        private final SpatialReference from;
+        private final SpatialReference to;
+
+        SpatialReferencePair(SpatialReference from, SpatialReference to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SpatialReferencePair)) return false;
+            SpatialReferencePair that = (SpatialReferencePair) o;
+            return Objects.equals(from, that.from) && Objects.equals(to, that.to);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(from, to);
+        }
+    }
+
+    private static final class EqualAreaKey {
+        private final Envelope2D extent;
+        private final SpatialReference spatialReference;
+
+        EqualAreaKey(Envelope2D extent, SpatialReference spatialReference) {
+            this.extent = extent;
+            this.spatialReference = spatialReference;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof EqualAreaKey)) return false;
+            EqualAreaKey that = (EqualAreaKey) o;
+            return extent.equals(that.extent) && Objects.equals(spatialReference, that.spatialReference);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(extent, spatialReference);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Operator;
+
+/**
+ * Immutable execution plan for a GeometryRequest tree. Everything that doesn't depend on the geometry payloads is
+ * resolved once: the spatial reference group of every node, the library operator for the topological relations and
+ * the plans of the nested left / right requests.
+ *
+ * Plans are cached by the fields of the request tree they are built from: the operators, the union / merge flags
+ * that make a request aggregate, the operation and result spatial references, and which geometry fields are set
+ * along with their spatial references. Looking a plan up walks the request in place, so streams that send the same
+ * operator chain with different geometries share a plan without the request being copied. Only a plan that misses
+ * copies its request, into the template kept as the cache key.
+ */
+final class RequestPlan {
+    static final String CACHE_SIZE_ENV = "GEOMETRY_PLAN_CACHE_SIZE";
+
+    private static final LruCache<PlanKey, RequestPlan> planCache =
+            new LruCache<>(GeometryExecutors.positiveIntFromEnvironment(CACHE_SIZE_ENV, 1024));
+
+    final SpatialReferenceGroup srGroup;
+    // library operator for the simple relation operators, null for everything else
+    final Operator.Type relationType;
+    // plan of the left_geometry_request, or of the geometry_request if there isn't a left request
+    final RequestPlan leftPlan;
+    // plan of the right_geometry_request
+    final RequestPlan rightPlan;
+    // true if this request or one on its left combines all of its input geometries into one result, so the input
+    // can't be split into batches without changing the results
+    final boolean aggregates;
+
+    // a field read here or in SpatialReferenceGroup has to be part of PlanKey
+    private RequestPlan(GeometryRequest template) {
+        srGroup = new SpatialReferenceGroup(template);
+        relationType = isSimpleRelation(template.getOperator()) ? GeometryServiceUtil.getOp(template) : null;
+
+        if (template.hasLeftGeometryRequest()) {
+            leftPlan = new RequestPlan(template.getLeftGeometryRequest());
+        } else if (template.hasGeometryRequest()) {
+            leftPlan = new RequestPlan(template.getGeometryRequest());
+        } else {
+            leftPlan = null;
+        }
+
+        rightPlan = template.hasRightGeometryRequest() ? new RequestPlan(template.getRightGeometryRequest()) : null;
+        aggregates = isAggregate(template) || (leftPlan != null && leftPlan.aggregates);
+    }
+
+    /**
+     * cached plan for the request
+     */
+    static RequestPlan of(GeometryRequest geometryRequest) {
+        return planCache.get(new PlanKey(geometryRequest), key -> {
+            key.detach();
+            return new RequestPlan(key.request);
+        });
+    }
+
+    /**
+     * copy of the request tree without geometry payloads. presence of the geometry fields and their spatial
+     * references are kept as the spatial reference group depends on them.
+     */
+    static GeometryRequest template(GeometryRequest geometryRequest) {
+        if (!hasPayload(geometryRequest)) {
+            return geometryRequest;
+        }
+
+        GeometryRequest.Builder builder = geometryRequest.toBuilder();
+        if (geometryRequest.hasGeometry()) {
+            builder.setGeometry(stripGeometry(geometryRequest.getGeometry()));
+        }
+        if (geometryRequest.hasLeftGeometry()) {
+            builder.setLeftGeometry(stripGeometry(geometryRequest.getLeftGeometry()));
+        }
+        if (geometryRequest.hasRightGeometry()) {
+            builder.setRightGeometry(stripGeometry(geometryRequest.getRightGeometry()));
+        }
+        if (geometryRequest.hasGeometryRequest()) {
+            builder.setGeometryRequest(template(geometryRequest.getGeometryRequest()));
+        }
+        if (geometryRequest.hasLeftGeometryRequest()) {
+            builder.setLeftGeometryRequest(template(geometryRequest.getLeftGeometryRequest()));
+        }
+        if (geometryRequest.hasRightGeometryRequest()) {
+            builder.setRightGeometryRequest(template(geometryRequest.getRightGeometryRequest()));
+        }
+        return builder.build();
+    }
+
+    static long getCacheHitCount() {
+        return planCache.getHitCount();
+    }
+
+    static long getCacheMissCount() {
+        return planCache.getMissCount();
+    }
+
+    private static int planHashCode(GeometryRequest request) {
+        int hash = request.getOperatorValue();
+        hash = 31 * hash + (isAggregate(request) ? 1 : 0);
+        hash = 31 * hash + (request.hasOperationSr() ? request.getOperationSr().hashCode() : 0);
+        hash = 31 * hash + (request.hasResultSr() ? request.getResultSr().hashCode() : 0);
+        hash = 31 * hash + planHashCode(request.hasGeometry(), request.getGeometry());
+        hash = 31 * hash + planHashCode(request.hasLeftGeometry(), request.getLeftGeometry());
+        hash = 31 * hash + planHashCode(request.hasRightGeometry(), request.getRightGeometry());
+        hash = 31 * hash + (request.hasGeometryRequest() ? planHashCode(request.getGeometryRequest()) : 0);
+        hash = 31 * hash + (request.hasLeftGeometryRequest() ? planHashCode(request.getLeftGeometryRequest()) : 0);
+        hash = 31 * hash + (request.hasRightGeometryRequest() ? planHashCode(request.getRightGeometryRequest()) : 0);
+        return hash;
+    }
+
+    private static int planHashCode(boolean present, GeometryData geometryData) {
+        if (!present) {
+            return 0;
+        }
+        return geometryData.hasSr() ? geometryData.getSr().hashCode() : 1;
+    }
+
+    /**
+     * true if both requests get the same plan
+     */
+    private static boolean planEquals(GeometryRequest a, GeometryRequest b) {
+        return a.getOperatorValue() == b.getOperatorValue() &&
+                isAggregate(a) == isAggregate(b) &&
+                a.hasOperationSr() == b.hasOperationSr() && a.getOperationSr().equals(b.getOperationSr()) &&
+                a.hasResultSr() == b.hasResultSr() && a.getResultSr().equals(b.getResultSr()) &&
+                planEquals(a.hasGeometry(), a.getGeometry(), b.hasGeometry(), b.getGeometry()) &&
+                planEquals(a.hasLeftGeometry(), a.getLeftGeometry(), b.hasLeftGeometry(), b.getLeftGeometry()) &&
+                planEquals(a.hasRightGeometry(), a.getRightGeometry(), b.hasRightGeometry(), b.getRightGeometry()) &&
+                planEquals(a.hasGeometryRequest(), a.getGeometryRequest(), b.hasGeometryRequest(), b.getGeometryRequest()) &&
+                planEquals(a.hasLeftGeometryRequest(), a.getLeftGeometryRequest(),
+                        b.hasLeftGeometryRequest(), b.getLeftGeometryRequest()) &&
+                planEquals(a.hasRightGeometryRequest(), a.getRightGeometryRequest(),
+                        b.hasRightGeometryRequest(), b.getRightGeometryRequest());
+    }
+
+    private static boolean planEquals(boolean aPresent, GeometryData a, boolean bPresent, GeometryData b) {
+        return aPresent == bPresent && a.hasSr() == b.hasSr() && a.getSr().equals(b.getSr());
+    }
+
+    private static boolean planEquals(boolean aPresent, GeometryRequest a, boolean bPresent, GeometryRequest b) {
+        return aPresent == bPresent && (!aPresent || planEquals(a, b));
+    }
+
+    private static boolean hasPayload(GeometryRequest geometryRequest) {
+        return geometryRequest.hasGeometry() ||
+                geometryRequest.hasLeftGeometry() ||
+                geometryRequest.hasRightGeometry() ||
+                geometryRequest.hasGeometryRequest() ||
+                geometryRequest.hasLeftGeometryRequest() ||
+                geometryRequest.hasRightGeometryRequest();
+    }
+
+    private static GeometryData stripGeometry(GeometryData geometryData) {
+        if (geometryData.hasSr()) {
+            return GeometryData.newBuilder().setSr(geometryData.getSr()).build();
+        }
+        return GeometryData.getDefaultInstance();
+    }
+
+    private static boolean isAggregate(GeometryRequest template) {
+        switch (template.getOperator()) {
+            case UNION:
+                return true;
+            case BUFFER:
+            case GEODESIC_BUFFER:
+                return template.getBufferParams().getUnionResult();
+            case CONVEX_HULL:
+                return template.getConvexParams().getMerge();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * compares and hashes its request by the fields the plan is built from. the hash is computed once, as the key is
+     * created
+     */
+    private static final class PlanKey {
+        private GeometryRequest request;
+        private final int hashCode;
+
+        PlanKey(GeometryRequest request) {
+            this.request = request;
+            this.hashCode = planHashCode(request);
+        }
+
+        /**
+         * swaps the request for its template, so a key kept in the cache doesn't hold on to geometry payloads. only
+         * called before the key is stored, the template has the same plan fields
+         */
+        void detach() {
+            request = template(request);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PlanKey)) return false;
+            PlanKey that = (PlanKey) o;
+            return hashCode == that.hashCode && planEquals(request, that.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static boolean isSimpleRelation(OperatorType operatorType) {
+        switch (operatorType) {
+            case EQUALS:
+            case DISJOINT:
+            case INTERSECTS:
+            case WITHIN:
+            case CONTAINS:
+            case CROSSES:
+            case TOUCHES:
+            case OVERLAPS:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs the results of a response stream into fewer messages. Results are collected into the responses field of one
+ * GeometryResponse, which is sent once it holds maxRecords results or maxBytes of them, or once its first result has
+ * waited lingerMillis. The spatial reference of the first result geometry is sent once in the message's sr and left
+ * out of every result geometry that shares it.
+ *
+ * Flow control calls pass straight through to the call's observer.
+ */
+final class ResponseBatcher extends ServerCallStreamObserver<GeometryResponse> {
+    private static final ScheduledExecutorService lingerScheduler =
+            Executors.newSingleThreadScheduledExecutor(new GeometryExecutors.NamedThreadFactory("geometry-response-linger"));
+
+    private final ServerCallStreamObserver<GeometryResponse> delegate;
+    private final int maxRecords;
+    private final int maxBytes;
+    private final long lingerMillis;
+
+    // everything below is guarded by this
+    private GeometryResponse.Builder batch = null;
+    private int batchBytes = 0;
+    private ScheduledFuture<?> lingerFlush = null;
+
+    private ResponseBatcher(ServerCallStreamObserver<GeometryResponse> delegate, int maxRecords, int maxBytes, long lingerMillis) {
+        this.delegate = delegate;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * the response observer of the current call, batching if the client sent geometry-batch-records
+     */
+    static ServerCallStreamObserver<GeometryResponse> forCall(StreamObserver<GeometryResponse> responseObserver) {
+        ServerCallStreamObserver<GeometryResponse> serverCallStreamObserver =
+                (ServerCallStreamObserver<GeometryResponse>) responseObserver;
+        int maxRecords = GeometryCallOptions.batchRecords();
+        if (maxRecords < 2) {
+            return serverCallStreamObserver;
+        }
+        return new ResponseBatcher(serverCallStreamObserver, maxRecords,
+                GeometryCallOptions.batchBytes(), GeometryCallOptions.batchLingerMillis());
+    }
+
+    @Override
+    public synchronized void onNext(GeometryResponse geometryResponse) {
+        if (batch == null) {
+            batch = GeometryResponse.newBuilder();
+            if (geometryResponse.hasGeometry() && geometryResponse.getGeometry().hasSr()) {
+                batch.setSr(geometryResponse.getGeometry().getSr());
+            }
+            lingerFlush = lingerScheduler.schedule(this::lingerExpired, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+
+        if (batch.hasSr() && geometryResponse.hasGeometry() && batch.getSr().equals(geometryResponse.getGeometry().getSr())) {
+            geometryResponse = geometryResponse.toBuilder()
+                    .setGeometry(geometryResponse.getGeometry().toBuilder().clearSr())
+                    .build();
+        }
+        batch.addResponses(geometryResponse);
+        batchBytes += geometryResponse.getSerializedSize();
+
+        if (batch.getResponsesCount() >= maxRecords || batchBytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        flush();
+        delegate.onError(throwable);
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        flush();
+        delegate.onCompleted();
+    }
+
+    private synchronized void lingerExpired() {
+        // a full batch may have been sent while this waited for the lock
+        if (lingerFlush != null && lingerFlush.getDelay(TimeUnit.NANOSECONDS) <= 0) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (batch == null) {
+            return;
+        }
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        GeometryResponse packed = batch.build();
+        batch = null;
+        batchBytes = 0;
+        delegate.onNext(packed);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return delegate.isCancelled();
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+        delegate.setOnCancelHandler(onCancelHandler);
+    }
+
+    @Override
+    public void setCompression(String compression) {
+        delegate.setCompression(compression);
+    }
+
+    @Override
+    public boolean isReady() {
+        return delegate.isReady();
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+        delegate.setOnReadyHandler(onReadyHandler);
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+        delegate.disableAutoInboundFlowControl();
+    }
+
+    @Override
+    public void request(int count) {
+        delegate.request(count);
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+        delegate.setMessageCompression(enable);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Bounded queue between the fork join tasks that build a call's responses and the call's response stream. Responses
+ * are only sent while the response stream is ready; the rest wait in the queue and are sent by the onReady handler.
+ * A task that adds to a full queue blocks until a response has been sent, so a slow client holds back the
+ * computation instead of the transport buffering its results.
+ *
+ * Once the client cancels, queued responses are dropped, put returns at once and isCancelled tells the tasks to
+ * stop. Must be created during the service method call, which is when the handlers can be set.
+ */
+final class ResponseQueue<RespT> {
+    private final ServerCallStreamObserver<RespT> responseObserver;
+    private final int capacity;
+
+    // everything below is guarded by this
+    private final ArrayDeque<RespT> queued = new ArrayDeque<>();
+    private boolean completed = false;
+    private boolean terminated = false;
+    private volatile boolean cancelled = false;
+
+    ResponseQueue(ServerCallStreamObserver<RespT> responseObserver, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("response queue capacity must be at least 1");
+        }
+        this.responseObserver = responseObserver;
+        this.capacity = capacity;
+
+        responseObserver.setOnReadyHandler(this::drain);
+        responseObserver.setOnCancelHandler(this::cancel);
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * queues response, blocking while the queue is full. called from fork join tasks, the pool is told the worker is
+     * blocked so it can keep its parallelism
+     */
+    void put(RespT response) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() throws InterruptedException {
+                    synchronized (ResponseQueue.this) {
+                        while (queued.size() >= capacity && !terminated) {
+                            ResponseQueue.this.wait();
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    synchronized (ResponseQueue.this) {
+                        return queued.size() < capacity || terminated;
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            return;
+        }
+
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            queued.add(response);
+        }
+        drain();
+    }
+
+    /**
+     * completes the response stream once every queued response has been sent
+     */
+    void complete() {
+        synchronized (this) {
+            completed = true;
+        }
+        drain();
+    }
+
+    /**
+     * drops the queued responses and ends the response stream with error
+     */
+    synchronized void error(Status status) {
+        if (terminated) {
+            return;
+        }
+        terminate();
+        responseObserver.onError(status.asRuntimeException());
+    }
+
+    private synchronized void drain() {
+        while (!terminated && !queued.isEmpty() && responseObserver.isReady()) {
+            responseObserver.onNext(queued.poll());
+            notifyAll();
+        }
+        if (!terminated && completed && queued.isEmpty()) {
+            terminate();
+            responseObserver.onCompleted();
+        }
+    }
+
+    private synchronized void cancel() {
+        cancelled = true;
+        terminate();
+    }
+
+    private void terminate() {
+        terminated = true;
+        queued.clear();
+        notifyAll();
+    }
+}
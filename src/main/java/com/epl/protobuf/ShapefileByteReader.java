@@ -16,27 +16,31 @@ package com.epl.protobuf;
 
 import com.esri.core.geometry.Envelope2D;
 import com.esri.core.geometry.Geometry;
-import com.esri.core.geometry.OperatorImportFromESRIShape;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+
+import static com.epl.protobuf.ShapefileDecoder.HEADER_BYTES;
+import static com.epl.protobuf.ShapefileDecoder.RECORD_HEADER_BYTES;
 
 /**
  * Reads a shapefile
  * Created by willtemperley@gmail.com on 07-Nov-16.
  */
 public class ShapefileByteReader {
+    private static final int FILE_BUFFER_BYTES = 1 << 16;
 
-    private final MixedEndianDataInputStream inputStream;
-    private ArrayList<MixedEndianDataInputStream> inputStreamList;
+    private final DataInputStream inputStream;
+    private final byte[] recordHeader = new byte[RECORD_HEADER_BYTES];
     private final Envelope2D envelope2D;
 
-    private OperatorImportFromESRIShape importFromESRIShape = OperatorImportFromESRIShape.local();
-    private final int fileLengthBytes;
-    private int position = 0; //keeps track of where inputstream is
+    private final long fileLengthBytes;
+    private long position = 0; //keeps track of where inputstream is
     private int recordNumber; //the record number according to shapefile
 
     private final Geometry.Type geomType;
@@ -46,14 +50,14 @@ public class ShapefileByteReader {
             return null;
         }
         try {
-            recordNumber = inputStream.readInt();//1 based
-            int recLength = inputStream.readInt();
-            position += 8;
+            inputStream.readFully(recordHeader);
+            recordNumber = ShapefileDecoder.bigEndianInt(recordHeader, 0);//1 based
+            int recordSizeBytes = ShapefileDecoder.recordContentBytes(recordHeader);
+            position += RECORD_HEADER_BYTES;
 
-            int recordSizeBytes = (recLength * 2);
             byte[] bytes = new byte[recordSizeBytes];
-            int read = inputStream.read(bytes);
-            position += read;
+            inputStream.readFully(bytes);
+            position += recordSizeBytes;
 
             return bytes;
 
@@ -73,68 +77,21 @@ public class ShapefileByteReader {
     }
 
     public ShapefileByteReader(File inFile) throws IOException {
-        this(new FileInputStream(inFile));
+        this(new BufferedInputStream(new FileInputStream(inFile), FILE_BUFFER_BYTES));
     }
 
     public ShapefileByteReader(InputStream in) throws IOException {
-        this.inputStream = new MixedEndianDataInputStream(in);
-
-        /*
-        Byte 0 File Code 9994 Integer Big
-         */
-        int fileCode = inputStream.readInt();
-        if (fileCode != 9994) {
-            throw new IOException("file code " + fileCode + " is not supported.");
-        }
-
-        /*
-        Byte 4 Unused 0 Integer Big
-        Byte 8 Unused 0 Integer Big
-        Byte 12 Unused 0 Integer Big
-        Byte 16 Unused 0 Integer Big
-        Byte 20 Unused 0 Integer Big
-         */
-        inputStream.skipBytes(20);
+        this.inputStream = new DataInputStream(in);
 
-        fileLengthBytes = inputStream.readInt() * 2;
+        byte[] header = new byte[HEADER_BYTES];
+        inputStream.readFully(header);
+        ShapefileDecoder.Header shapefileHeader = ShapefileDecoder.readHeader(ByteBuffer.wrap(header));
 
-        int v = this.inputStream.readLittleEndianInt();
-
-        if (v != 1000) {
-            throw new IOException("version " + v + " is not supported.");
-        }
+        fileLengthBytes = shapefileHeader.fileLengthBytes;
+        geomType = shapefileHeader.geometryType;
+        envelope2D = shapefileHeader.envelope2D;
 
-        int shpTypeId = this.inputStream.readLittleEndianInt();
-        geomType = geometryTypeFromShpType(shpTypeId);
-
-        /*
-        Byte 24 File Length File Length Integer Big
-        Byte 28 Version 1000 Integer Little
-        Byte 32 Shape Type Shape Type Integer Little
-        Byte 36 Bounding Box Xmin Double Little
-        Byte 44 Bounding Box Ymin Double Little
-        Byte 52 Bounding Box Xmax Double Little
-        Byte 60 Bounding Box Ymax Double Little
-        Byte 68* Bounding Box Zmin Double Little
-        Byte 76* Bounding Box Zmax Double Little
-        Byte 84* Bounding Box Mmin Double Little
-        Byte 92* Bounding Box Mmax Double Little
-        */
-        double xmin = this.inputStream.readLittleEndianDouble();
-        double ymin = this.inputStream.readLittleEndianDouble();
-        double xmax = this.inputStream.readLittleEndianDouble();
-        double ymax = this.inputStream.readLittleEndianDouble();
-        double zmin = this.inputStream.readLittleEndianDouble();
-        double zmax = this.inputStream.readLittleEndianDouble();
-        double mmin = this.inputStream.readLittleEndianDouble();
-        double mmax = this.inputStream.readLittleEndianDouble();
-
-        envelope2D = new Envelope2D(xmin, ymin, xmax, ymax);
-//        envelope3D = new Envelope3D(xmin, ymin, zmin, xmax, ymax, zmax);
-
-        position = 2 * 50; //header is always 50 words long
-
-        inputStreamList = new ArrayList<>();
+        position = HEADER_BYTES; //header is always 50 words long
     }
 
     /**
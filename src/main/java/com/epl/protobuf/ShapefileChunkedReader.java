@@ -5,160 +5,110 @@ import com.esri.core.geometry.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
-import static com.epl.protobuf.ShapefileByteReader.geometryTypeFromShpType;
-
-public class ShapefileChunkedReader extends GeometryCursor {
-    private final List<MixedEndianDataInputStream> inputStreamList;
-    private ArrayDeque<ByteBuffer> m_byteBufferDeque;
-    private SimpleByteBufferCursor m_byteBufferCursor;
-    private OperatorImportFromESRIShapeCursor m_operatorImport;
-    private long fileLengthBytes;
+import java.util.function.Supplier;
+
+import static com.epl.protobuf.ShapefileDecoder.HEADER_BYTES;
+import static com.epl.protobuf.ShapefileDecoder.RECORD_HEADER_BYTES;
+
+/**
+ * Reads shapefile records from chunks of a .shp file as they arrive. Chunks are appended to a {@link ChunkRing} and
+ * records are sliced out of it, a record only gets copied when it straddles chunks. hasNext() never waits: it is
+ * false until the chunk that completes the next record has been added.
+ *
+ * With an envelope filter set, hasNext() reads the bounding box (or point) stored at the start of each record and
+ * skips records that can't intersect the envelope without importing them.
+ */
+public class ShapefileChunkedReader extends ChunkedFileReader {
+
+    private final ChunkRing chunkRing = new ChunkRing();
+    private final ArrayDeque<ByteBuffer> m_byteBufferDeque;
+    private final SimpleByteBufferCursor m_byteBufferCursor;
+    private final OperatorImportFromESRIShapeCursor m_operatorImport;
+    private final long fileLengthBytes;
     private final Envelope2D envelope2D;
-    private int position; //keeps track of where inputstream is
     private int currentRecordNumber;
-    private int nextRecordNumber;
-    private int recordVertexCount;
-    private int partsPerVertex;
     private final Geometry.Type geomType;
+    private Envelope2D filterEnvelope = null;
+    private long skippedRecords = 0;
 
     ShapefileChunkedReader(InputStream in, int chunk_size) throws IOException {
-        if (chunk_size < 108) {
+        this(readChunk(in, chunk_size));
+    }
+
+    /**
+     * the first chunk must hold the 100 byte file header and the first record header
+     */
+    ShapefileChunkedReader(ByteBuffer firstChunk) throws IOException {
+        if (firstChunk.remaining() < HEADER_BYTES + RECORD_HEADER_BYTES) {
             throw new IllegalArgumentException("An InputStream must have more than 100 bytes to initialize ShapefileChunkedReader");
         }
         m_byteBufferDeque = new ArrayDeque<>();
         m_byteBufferCursor = new SimpleByteBufferCursor(m_byteBufferDeque, null);
         m_operatorImport = new OperatorImportFromESRIShapeCursor(0, 0, m_byteBufferCursor);
-        position = 0;
-        inputStreamList = Collections.synchronizedList(new ArrayList<MixedEndianDataInputStream>());
-        synchronized (inputStreamList) {
-            MixedEndianDataInputStream mixedEndianDataInputStream = new MixedEndianDataInputStream(in, chunk_size);
-            inputStreamList.add(mixedEndianDataInputStream);
-
-            /*
-                Byte 0 File Code 9994 Integer Big
-            */
-            int fileCode = mixedEndianDataInputStream.readInt();
-            if (fileCode != 9994) {
-                throw new IOException("file code " + fileCode + " is not supported.");
-            }
 
-            /*
-                Byte 4 Unused 0 Integer Big
-                Byte 8 Unused 0 Integer Big
-                Byte 12 Unused 0 Integer Big
-                Byte 16 Unused 0 Integer Big
-                Byte 20 Unused 0 Integer Big
-             */
-            mixedEndianDataInputStream.skipBytes(20);
-
-            /* Byte 24 File Length File Length Integer Big */
-            // TODO what is the times 2 here? is it the number of doubles? the number of xy coordinates? would this be * 3 if we had zs?
-            fileLengthBytes = mixedEndianDataInputStream.readInt() * 2;
-
-            /* Byte 28 Version 1000 Integer Little */
-            int v = mixedEndianDataInputStream.readLittleEndianInt();
+        chunkRing.add(firstChunk);
+        ShapefileDecoder.Header header = ShapefileDecoder.readHeader(chunkRing.read(HEADER_BYTES));
+        fileLengthBytes = header.fileLengthBytes;
+        geomType = header.geometryType;
+        envelope2D = header.envelope2D;
+    }
 
-            if (v != 1000) {
-                throw new IOException("version " + v + " is not supported.");
+    private static ByteBuffer readChunk(InputStream in, int chunk_size) throws IOException {
+        byte[] bytes = new byte[chunk_size];
+        int read = 0;
+        while (read < chunk_size) {
+            int count = in.read(bytes, read, chunk_size - read);
+            if (count == -1) {
+                break;
             }
-
-            /* Byte 32 Shape Type Shape Type Integer Little */
-            int shpTypeId = mixedEndianDataInputStream.readLittleEndianInt();
-            geomType = geometryTypeFromShpType(shpTypeId);
-
-            /* Byte 36 Bounding Box Xmin Double Little
-               Byte 44 Bounding Box Ymin Double Little
-               Byte 52 Bounding Box Xmax Double Little
-               Byte 60 Bounding Box Ymax Double Little */
-            double xmin = mixedEndianDataInputStream.readLittleEndianDouble();
-            double ymin = mixedEndianDataInputStream.readLittleEndianDouble();
-            double xmax = mixedEndianDataInputStream.readLittleEndianDouble();
-            double ymax = mixedEndianDataInputStream.readLittleEndianDouble();
-            partsPerVertex = 2;
-
-            /* Byte 68* Bounding Box Zmin Double Little
-               Byte 76* Bounding Box Zmax Double Little */
-            double zmin = mixedEndianDataInputStream.readLittleEndianDouble();
-            double zmax = mixedEndianDataInputStream.readLittleEndianDouble();
-            // if has z
-            // partsPerVertex += 1;
-
-            /* Byte 84* Bounding Box Mmin Double Little
-               Byte 92* Bounding Box Mmax Double Little */
-            double mmin = mixedEndianDataInputStream.readLittleEndianDouble();
-            double mmax = mixedEndianDataInputStream.readLittleEndianDouble();
-            // if has m
-            // partsPerVertex += 1;
-
-            envelope2D = new Envelope2D(xmin, ymin, xmax, ymax);
-            //  envelope3D = new Envelope3D(xmin, ymin, zmin, xmax, ymax, zmax);
-
-            position = 2 * 50; //header is always 50 words long
-            mixedEndianDataInputStream.updateSize(2 * 50);
-
-            nextRecordNumber = mixedEndianDataInputStream.readInt();//1 based
-            recordVertexCount = mixedEndianDataInputStream.readInt();
-            position += 8;
-            mixedEndianDataInputStream.updateSize(8);
-
-            inputStreamList.notify();
+            read += count;
         }
+        return ByteBuffer.wrap(bytes, 0, read);
     }
 
     public Geometry next() {
         if (!hasNext()) {
             return null;
         }
-        try {
-            synchronized (inputStreamList) {
-                MixedEndianDataInputStream inputStream = inputStreamList.get(0);
-
-                int recordSizeBytes = (recordVertexCount * partsPerVertex);
-                byte[] bytes = new byte[recordSizeBytes];
-                int read = inputStream.read(bytes, 0, recordSizeBytes);
-
-                // SequenceInputStream is stupid
-                while (read < recordSizeBytes) {
-                    int len = recordSizeBytes - read;
-                    read += inputStream.read(bytes, read, len);
-                }
-                position += read;
-                inputStream.updateSize(read);
-                currentRecordNumber = nextRecordNumber;
-
-                if (position < fileLengthBytes) {
-                    nextRecordNumber = inputStream.readInt();//1 based
-                    recordVertexCount = inputStream.readInt();
-                    position += 8;
-
-                    inputStream.updateSize(8);
-                } else {
-                    inputStream.close();
-                    inputStreamList.remove(0);
-                }
 
-                inputStreamList.notify();
-                m_byteBufferDeque.push(ByteBuffer.wrap(bytes));
-                return m_operatorImport.next();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        m_byteBufferDeque.push(readRecord());
+        return m_operatorImport.next();
+    }
+
+    /**
+     * the record's bytes are sliced out of the chunk, or copied if they span two chunks, so the import can run later
+     * on any thread
+     */
+    @Override
+    Supplier<Geometry> nextRecord() {
+        if (!hasNext()) {
+            return null;
         }
 
-        return null;
+        ByteBuffer shape = readRecord();
+        return () -> OperatorImportFromESRIShape.local().execute(0, Geometry.Type.Unknown, shape);
     }
 
-    public void addStream(InputStream in, int chunk_size) {
-        synchronized (inputStreamList) {
-            MixedEndianDataInputStream mixedEndianDataInputStream = new MixedEndianDataInputStream(in, chunk_size);
-            inputStreamList.add(mixedEndianDataInputStream);
-            inputStreamList.notify();
-        }
+    /**
+     * the content of the record at the read cursor as a little endian slice. the record header is peeked in place
+     * and skipped
+     */
+    private ByteBuffer readRecord() {
+        currentRecordNumber = chunkRing.peekInt(0, ByteOrder.BIG_ENDIAN);//1 based
+        int recordSizeBytes = chunkRing.peekInt(4, ByteOrder.BIG_ENDIAN) * 2;
+        chunkRing.skip(RECORD_HEADER_BYTES);
+        return chunkRing.read(recordSizeBytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void addStream(InputStream in, int chunk_size) throws IOException {
+        addChunk(readChunk(in, chunk_size));
+    }
+
+    @Override
+    public void addChunk(ByteBuffer chunk) {
+        chunkRing.add(chunk);
     }
 
     @Override
@@ -173,63 +123,76 @@ public class ShapefileChunkedReader extends GeometryCursor {
     public Geometry.Type getGeometryType() { return geomType; }
 
     @Override
-    public boolean hasNext() {
-        synchronized (inputStreamList) {
-            if (inputStreamList.size() == 0 || position >= fileLengthBytes) {
-                return false;
-            }
-
-            int count = 0;
+    public void setEnvelopeFilter(Envelope2D envelope) {
+        filterEnvelope = envelope;
+    }
 
-            long value = inputStreamList.stream().mapToInt(MixedEndianDataInputStream::getSize).sum();
-            while (count++ < 2 && position < fileLengthBytes && value < recordVertexCount) {
-                try {
-                    inputStreamList.wait(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                value = inputStreamList.stream().mapToInt(MixedEndianDataInputStream::getSize).sum();
-            }
+    /**
+     * number of records dropped by the envelope filter
+     */
+    public long getSkippedRecords() {
+        return skippedRecords;
+    }
 
-            if (position < fileLengthBytes && value < recordVertexCount) {
+    @Override
+    public boolean hasNext() {
+        while (chunkRing.position() < fileLengthBytes && chunkRing.available() >= RECORD_HEADER_BYTES) {
+            long recordSizeBytes = chunkRing.peekInt(4, ByteOrder.BIG_ENDIAN) * 2L;
+            if (chunkRing.available() < RECORD_HEADER_BYTES + recordSizeBytes) {
                 return false;
             }
-
-            // plus 8 is
-            //int recordSizeBytes = (recordVertexCount * partsPerVertex)
-            long bytesRequired = recordVertexCount * partsPerVertex + 8;
-            if (recordVertexCount == fileLengthBytes - position) {
-                bytesRequired = recordVertexCount;
-            }
-
-            while (bytesRequired > inputStreamList.get(0).getSize() && inputStreamList.size() > 1) {
-                if (inputStreamList.size() > 1) {
-                    MixedEndianDataInputStream input1 = inputStreamList.remove(0);
-                    int remaining_bytes_1 = input1.getSize();
-
-                    MixedEndianDataInputStream input2 = inputStreamList.remove(0);
-                    int remaining_bytes_2 = input2.getSize();
-
-                    InputStream merged = new java.io.SequenceInputStream(input1, input2);
-                    MixedEndianDataInputStream mixedEndianDataInputStream = new MixedEndianDataInputStream(merged, input1.getSize() + input2.getSize());
-                    inputStreamList.add(0, mixedEndianDataInputStream);
-
-//                    try {
-//                        input1.close();
-//                        input2.close();
-//                    } catch (IOException e) {
-//                        e.printStackTrace();
-//                    }
-
-
-                }
+            if (filterEnvelope == null || mayIntersect(filterEnvelope, (int) recordSizeBytes)) {
+                return true;
             }
+            chunkRing.skip(RECORD_HEADER_BYTES + recordSizeBytes);
+            skippedRecords++;
+        }
+        return false;
+    }
 
-            if (bytesRequired > inputStreamList.get(0).getSize()) {
+    /**
+     * compares the envelope with the extent stored in the record at the read cursor. from the esri spec, every
+     * record's content starts with its little endian shape type, followed by x and y for points or by the
+     * Xmin, Ymin, Xmax, Ymax bounding box for multipoints, polylines, polygons and multipatches
+     */
+    private boolean mayIntersect(Envelope2D envelope, int recordSizeBytes) {
+        if (recordSizeBytes < 4) {
+            return true;
+        }
+        int shapeOffset = RECORD_HEADER_BYTES;
+        int shpTypeId = chunkRing.peekInt(shapeOffset, ByteOrder.LITTLE_ENDIAN);
+        switch (shpTypeId) {
+            case 0: // Null Shape, imports as an empty geometry
                 return false;
-            }
-
-            return position < fileLengthBytes;
+            case 1: // Point
+            case 11: // PointZ
+            case 21: // PointM
+                if (recordSizeBytes < 4 + 2 * 8) {
+                    return true;
+                }
+                return envelope.contains(
+                        chunkRing.peekDouble(shapeOffset + 4, ByteOrder.LITTLE_ENDIAN),
+                        chunkRing.peekDouble(shapeOffset + 12, ByteOrder.LITTLE_ENDIAN));
+            case 3: // PolyLine
+            case 5: // Polygon
+            case 8: // MultiPoint
+            case 13: // PolyLineZ
+            case 15: // PolygonZ
+            case 18: // MultiPointZ
+            case 23: // PolyLineM
+            case 25: // PolygonM
+            case 28: // MultiPointM
+            case 31: // MultiPatch
+                if (recordSizeBytes < 4 + 4 * 8) {
+                    return true;
+                }
+                return envelope.isIntersecting(
+                        chunkRing.peekDouble(shapeOffset + 4, ByteOrder.LITTLE_ENDIAN),
+                        chunkRing.peekDouble(shapeOffset + 12, ByteOrder.LITTLE_ENDIAN),
+                        chunkRing.peekDouble(shapeOffset + 20, ByteOrder.LITTLE_ENDIAN),
+                        chunkRing.peekDouble(shapeOffset + 28, ByteOrder.LITTLE_ENDIAN));
+            default:
+                return true;
         }
     }
 }
@@ -0,0 +1,176 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.epl.protobuf.ShapefileByteReader.geometryTypeFromShpType;
+
+/**
+ * Decodes the mixed endian fields of shapefile headers and records. Values are read through VarHandle views at
+ * absolute offsets, so neither the buffer's byte order nor its position matter, and nothing is read a byte at a
+ * time or through a temporary array. Heap, direct and memory mapped buffers all decode the same way.
+ */
+final class ShapefileDecoder {
+    static final int HEADER_BYTES = 100;
+    static final int RECORD_HEADER_BYTES = 8;
+
+    private static final int FILE_CODE = 9994;
+    private static final int VERSION = 1000;
+
+    private static final VarHandle BIG_ENDIAN_INT =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LITTLE_ENDIAN_INT =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BIG_ENDIAN_LONG =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LITTLE_ENDIAN_LONG =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LITTLE_ENDIAN_DOUBLE =
+            MethodHandles.byteBufferViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BIG_ENDIAN_ARRAY_INT =
+            MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private ShapefileDecoder() {
+    }
+
+    static int bigEndianInt(ByteBuffer buffer, int index) {
+        return (int) BIG_ENDIAN_INT.get(buffer, index);
+    }
+
+    static int bigEndianInt(byte[] bytes, int index) {
+        return (int) BIG_ENDIAN_ARRAY_INT.get(bytes, index);
+    }
+
+    static int littleEndianInt(ByteBuffer buffer, int index) {
+        return (int) LITTLE_ENDIAN_INT.get(buffer, index);
+    }
+
+    static long bigEndianLong(ByteBuffer buffer, int index) {
+        return (long) BIG_ENDIAN_LONG.get(buffer, index);
+    }
+
+    static long littleEndianLong(ByteBuffer buffer, int index) {
+        return (long) LITTLE_ENDIAN_LONG.get(buffer, index);
+    }
+
+    static double littleEndianDouble(ByteBuffer buffer, int index) {
+        return (double) LITTLE_ENDIAN_DOUBLE.get(buffer, index);
+    }
+
+    /**
+     * 1 based record number from the record header at index
+     */
+    static int recordNumber(ByteBuffer buffer, int index) {
+        return bigEndianInt(buffer, index);
+    }
+
+    /**
+     * content length of the record whose header is at index. the header counts it in 16 bit words
+     */
+    static int recordContentBytes(ByteBuffer buffer, int index) {
+        return bigEndianInt(buffer, index + 4) * 2;
+    }
+
+    static int recordContentBytes(byte[] recordHeader) {
+        return bigEndianInt(recordHeader, 4) * 2;
+    }
+
+    /**
+     * length bytes from index as a little endian slice, for the shape importer to read in place
+     */
+    static ByteBuffer slice(ByteBuffer buffer, int index, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(index + length);
+        slice.position(index);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * the 100 byte file header, starting at index 0 of the buffer
+     */
+    static Header readHeader(ByteBuffer header) throws IOException {
+        /* Byte 0 File Code 9994 Integer Big */
+        int fileCode = bigEndianInt(header, 0);
+        if (fileCode != FILE_CODE) {
+            throw new IOException("file code " + fileCode + " is not supported.");
+        }
+
+        /*
+            Byte 4 Unused 0 Integer Big
+            Byte 8 Unused 0 Integer Big
+            Byte 12 Unused 0 Integer Big
+            Byte 16 Unused 0 Integer Big
+            Byte 20 Unused 0 Integer Big
+         */
+
+        /* Byte 24 File Length File Length Integer Big */
+        // the file length is counted in 16 bit words
+        long fileLengthBytes = bigEndianInt(header, 24) * 2L;
+
+        /* Byte 28 Version 1000 Integer Little */
+        int v = littleEndianInt(header, 28);
+        if (v != VERSION) {
+            throw new IOException("version " + v + " is not supported.");
+        }
+
+        /* Byte 32 Shape Type Shape Type Integer Little */
+        int shpTypeId = littleEndianInt(header, 32);
+
+        /* Byte 36 Bounding Box Xmin Double Little
+           Byte 44 Bounding Box Ymin Double Little
+           Byte 52 Bounding Box Xmax Double Little
+           Byte 60 Bounding Box Ymax Double Little */
+        Envelope2D envelope2D = new Envelope2D(
+                littleEndianDouble(header, 36),
+                littleEndianDouble(header, 44),
+                littleEndianDouble(header, 52),
+                littleEndianDouble(header, 60));
+
+        /* Byte 68* Bounding Box Zmin Double Little
+           Byte 76* Bounding Box Zmax Double Little
+           Byte 84* Bounding Box Mmin Double Little
+           Byte 92* Bounding Box Mmax Double Little */
+
+        return new Header(fileLengthBytes, shpTypeId, envelope2D);
+    }
+
+    static final class Header {
+        final long fileLengthBytes;
+        final int shpTypeId;
+        final Geometry.Type geometryType;
+        final Envelope2D envelope2D;
+
+        private Header(long fileLengthBytes, int shpTypeId, Envelope2D envelope2D) {
+            this.fileLengthBytes = fileLengthBytes;
+            this.shpTypeId = shpTypeId;
+            this.geometryType = geometryTypeFromShpType(shpTypeId);
+            this.envelope2D = envelope2D;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.OperatorImportFromESRIShape;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import static com.epl.protobuf.ShapefileDecoder.HEADER_BYTES;
+import static com.epl.protobuf.ShapefileDecoder.RECORD_HEADER_BYTES;
+
+/**
+ * Reads a local shapefile through memory mapped regions of the .shp. Records are handed out as slices of the
+ * mapping, nothing is copied onto the heap. Record offsets come from the companion .shx when there is one, otherwise
+ * from one pass over the record headers. With the offsets known up front, {@link #forEach(ForkJoinPool, RecordConsumer)}
+ * splits the records into ranges that a fork join pool decodes in parallel.
+ */
+public class ShapefileMappedReader implements Closeable {
+    private static final int INDEX_ENTRY_BYTES = 8;
+    // a ByteBuffer is indexed by int, so files above 2GB are mapped as several regions split on record boundaries
+    private static final long MAX_REGION_BYTES = Integer.MAX_VALUE;
+    // smallest range of records a parallel task splits off
+    private static final int MIN_RECORDS_PER_TASK = 256;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Envelope2D envelope2D;
+    private final Geometry.Type geomType;
+
+    // file offset of each record's 8 byte header and the byte length of its content
+    private final long[] recordOffsets;
+    private final int[] recordLengths;
+
+    private final MappedByteBuffer[] regions;
+    private final long[] regionStarts;
+    // index of the first record in each region
+    private final int[] regionFirstRecords;
+
+    private int nextRecord = 0;
+    private int recordNumber;
+
+    @FunctionalInterface
+    public interface RecordConsumer {
+        /**
+         * @param recordNumber 1 based record number from the record header
+         * @param shape        record content, a little endian slice of the mapping
+         */
+        void accept(int recordNumber, ByteBuffer shape);
+    }
+
+    public ShapefileMappedReader(File shpFile) throws IOException {
+        this(shpFile, companionIndex(shpFile));
+    }
+
+    /**
+     * @param shxFile the .shx for shpFile, or null to find the records by walking the .shp record headers
+     */
+    public ShapefileMappedReader(File shpFile, File shxFile) throws IOException {
+        file = new RandomAccessFile(shpFile, "r");
+        channel = file.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(header, 0);
+
+            ShapefileDecoder.Header shapefileHeader = ShapefileDecoder.readHeader(header);
+            long fileLengthBytes = Math.min(shapefileHeader.fileLengthBytes, channel.size());
+            geomType = shapefileHeader.geometryType;
+            envelope2D = shapefileHeader.envelope2D;
+
+            RecordIndex index = shxFile != null && shxFile.isFile()
+                    ? readIndex(shxFile, fileLengthBytes)
+                    : scanRecordHeaders(fileLengthBytes);
+            recordOffsets = index.offsets;
+            recordLengths = index.lengths;
+
+            // greedily pack whole records into regions of at most MAX_REGION_BYTES
+            List<MappedByteBuffer> regionList = new ArrayList<>();
+            List<Long> startList = new ArrayList<>();
+            List<Integer> firstRecordList = new ArrayList<>();
+            int first = 0;
+            while (first < recordOffsets.length) {
+                long start = recordOffsets[first];
+                int last = first;
+                while (last + 1 < recordOffsets.length && recordEnd(last + 1) - start <= MAX_REGION_BYTES) {
+                    last++;
+                }
+                regionList.add(channel.map(FileChannel.MapMode.READ_ONLY, start, recordEnd(last) - start));
+                startList.add(start);
+                firstRecordList.add(first);
+                first = last + 1;
+            }
+            regions = regionList.toArray(new MappedByteBuffer[0]);
+            regionStarts = startList.stream().mapToLong(Long::longValue).toArray();
+            regionFirstRecords = firstRecordList.stream().mapToInt(Integer::intValue).toArray();
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static File companionIndex(File shpFile) {
+        String name = shpFile.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot < 0 ? name : name.substring(0, dot);
+        // match the case of the .shp extension, shapefiles from windows tools are often upper case
+        String extension = dot >= 0 && name.substring(dot).equals(".SHP") ? ".SHX" : ".shx";
+        return new File(shpFile.getParentFile(), base + extension);
+    }
+
+    /**
+     * .shx entries are the big endian offset and content length of every record, both in 16 bit words
+     */
+    private static RecordIndex readIndex(File shxFile, long shpLengthBytes) throws IOException {
+        try (RandomAccessFile shx = new RandomAccessFile(shxFile, "r"); FileChannel shxChannel = shx.getChannel()) {
+            long count = (shxChannel.size() - HEADER_BYTES) / INDEX_ENTRY_BYTES;
+            if (count > Integer.MAX_VALUE) {
+                throw new IOException("index " + shxFile + " has too many records");
+            }
+            long[] offsets = new long[(int) Math.max(0, count)];
+            int[] lengths = new int[offsets.length];
+
+            long position = HEADER_BYTES;
+            int i = 0;
+            while (i < offsets.length) {
+                int entries = (int) Math.min(offsets.length - i, MAX_REGION_BYTES / INDEX_ENTRY_BYTES);
+                ByteBuffer entryBuffer = shxChannel.map(FileChannel.MapMode.READ_ONLY, position, (long) entries * INDEX_ENTRY_BYTES);
+                for (int entry = 0; entry < entries; entry++, i++) {
+                    offsets[i] = ShapefileDecoder.bigEndianInt(entryBuffer, entry * INDEX_ENTRY_BYTES) * 2L;
+                    lengths[i] = ShapefileDecoder.recordContentBytes(entryBuffer, entry * INDEX_ENTRY_BYTES);
+                    if (lengths[i] < 0) {
+                        throw new IOException("index " + shxFile + " entry " + i + " has a negative content length");
+                    }
+                    if (offsets[i] < HEADER_BYTES || offsets[i] + RECORD_HEADER_BYTES + lengths[i] > shpLengthBytes) {
+                        throw new IOException("index " + shxFile + " entry " + i + " is outside of the shapefile");
+                    }
+                }
+                position += (long) entries * INDEX_ENTRY_BYTES;
+            }
+            return new RecordIndex(offsets, lengths);
+        }
+    }
+
+    private RecordIndex scanRecordHeaders(long fileLengthBytes) throws IOException {
+        long[] offsets = new long[1024];
+        int[] lengths = new int[1024];
+        int count = 0;
+
+        // the headers are read from a mapped window that moves forward when a header falls outside of it
+        ByteBuffer window = null;
+        long windowStart = 0;
+        long position = HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES <= fileLengthBytes) {
+            if (window == null || position + RECORD_HEADER_BYTES > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAX_REGION_BYTES, fileLengthBytes - windowStart));
+            }
+            int length = ShapefileDecoder.recordContentBytes(window, (int) (position - windowStart));
+            // a negative length would never move past the record, or move backwards
+            if (length < 0) {
+                throw new IOException("shapefile record at " + position + " has a negative content length");
+            }
+            if (position + RECORD_HEADER_BYTES + length > fileLengthBytes) {
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = position;
+            lengths[count] = length;
+            count++;
+            position += RECORD_HEADER_BYTES + length;
+        }
+        return new RecordIndex(Arrays.copyOf(offsets, count), Arrays.copyOf(lengths, count));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of shapefile at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private long recordEnd(int index) {
+        return recordOffsets[index] + RECORD_HEADER_BYTES + recordLengths[index];
+    }
+
+    private int regionOf(int index) {
+        int region = Arrays.binarySearch(regionFirstRecords, index);
+        return region >= 0 ? region : -region - 2;
+    }
+
+    public int size() {
+        return recordOffsets.length;
+    }
+
+    /**
+     * 1 based record number of the record at index
+     */
+    public int recordNumber(int index) {
+        int region = regionOf(index);
+        int offset = (int) (recordOffsets[index] - regionStarts[region]);
+        return ShapefileDecoder.recordNumber(regions[region], offset);
+    }
+
+    /**
+     * content of the record at index as a little endian slice of the mapping. safe to call from several threads
+     */
+    public ByteBuffer record(int index) {
+        int region = regionOf(index);
+        int offset = (int) (recordOffsets[index] - regionStarts[region]) + RECORD_HEADER_BYTES;
+        return ShapefileDecoder.slice(regions[region], offset, recordLengths[index]);
+    }
+
+    public boolean hasNext() {
+        return nextRecord < recordOffsets.length;
+    }
+
+    /**
+     * next record in file order, or null at the end of the file
+     */
+    public ByteBuffer next() {
+        if (!hasNext()) {
+            return null;
+        }
+        recordNumber = recordNumber(nextRecord);
+        return record(nextRecord++);
+    }
+
+    public int getGeometryID() {
+        return recordNumber;
+    }
+
+    public Envelope2D getEnvelope2D() {
+        return envelope2D;
+    }
+
+    public Geometry.Type getGeometryType() {
+        return geomType;
+    }
+
+    /**
+     * hands every record to the consumer, ranges of records are decoded concurrently on the pool. the consumer is
+     * called from several threads and in no particular order
+     */
+    public void forEach(ForkJoinPool pool, RecordConsumer consumer) {
+        int threshold = Math.max(MIN_RECORDS_PER_TASK, recordOffsets.length / (pool.getParallelism() * 8));
+        pool.invoke(new RecordRange(0, recordOffsets.length, threshold,
+                index -> consumer.accept(recordNumber(index), record(index))));
+    }
+
+    /**
+     * imports every record in parallel. geometries are returned in file order, null shapes as empty geometries
+     */
+    public Geometry[] importGeometries(ForkJoinPool pool) {
+        OperatorImportFromESRIShape importFromESRIShape = OperatorImportFromESRIShape.local();
+        Geometry[] geometries = new Geometry[recordOffsets.length];
+        int threshold = Math.max(MIN_RECORDS_PER_TASK, recordOffsets.length / (pool.getParallelism() * 8));
+        pool.invoke(new RecordRange(0, recordOffsets.length, threshold,
+                index -> geometries[index] = importFromESRIShape.execute(0, Geometry.Type.Unknown, record(index))));
+        return geometries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mapped regions are released when they are garbage collected
+        file.close();
+    }
+
+    private static class RecordRange extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final IntConsumer visitor;
+
+        RecordRange(int from, int to, int threshold, IntConsumer visitor) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                for (int i = from; i < to; i++) {
+                    visitor.accept(i);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new RecordRange(from, middle, threshold, visitor), new RecordRange(middle, to, threshold, visitor));
+        }
+    }
+
+    private static class RecordIndex {
+        private final long[] offsets;
+        private final int[] lengths;
+
+        RecordIndex(long[] offsets, int[] lengths) {
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+import com.esri.core.geometry.Geometry;
+import com.esri.core.geometry.OperatorDistance;
+import com.esri.core.geometry.OperatorFactoryLocal;
+import com.esri.core.geometry.OperatorSimpleRelation;
+import com.esri.core.geometry.SpatialReference;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Joins a left and a right set of geometries on a predicate. The right geometries are indexed by an STR packed
+ * R-tree; the left geometries are sorted along a Hilbert curve and cut into partitions, so every partition queries
+ * one neighbourhood of the tree. Partitions run on a fork join pool. Each one filters candidate pairs by envelope and
+ * refines them with the exact predicate, then hands its pairs to the sink in responses of about
+ * MAX_PAIRS_PER_RESPONSE pairs.
+ */
+final class SpatialJoin {
+    static final String PARTITION_SIZE_ENV = "GEOMETRY_JOIN_PARTITION_SIZE";
+
+    static final int MAX_PAIRS_PER_RESPONSE = 65536;
+
+    private final OperatorType predicate;
+    private final double distance;
+    private final SpatialReference spatialReference;
+    private final int partitionSize;
+    private final List<Geometry> leftGeometries = new ArrayList<>();
+    private final List<Long> leftIds = new ArrayList<>();
+    private final List<Geometry> rightGeometries = new ArrayList<>();
+    private final List<Long> rightIds = new ArrayList<>();
+
+    SpatialJoin(OperatorType predicate, double distance, SpatialReference spatialReference) {
+        this(predicate, distance, spatialReference, GeometryExecutors.positiveIntFromEnvironment(PARTITION_SIZE_ENV, 1024));
+    }
+
+    SpatialJoin(OperatorType predicate, double distance, SpatialReference spatialReference, int partitionSize) {
+        switch (predicate) {
+            case INTERSECTS:
+            case CONTAINS:
+            case WITHIN:
+                break;
+            case DISTANCE:
+                if (distance < 0) {
+                    throw new IllegalArgumentException("a distance join needs a distance of at least 0");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("spatial join predicate must be INTERSECTS, CONTAINS, WITHIN or DISTANCE, not " + predicate);
+        }
+        if (partitionSize < 1) {
+            throw new IllegalArgumentException("join partitions need at least one geometry");
+        }
+        this.predicate = predicate;
+        this.distance = distance;
+        this.spatialReference = spatialReference;
+        this.partitionSize = partitionSize;
+    }
+
+    void addLeft(Geometry geometry, SpatialReference geometrySpatialReference, long geometryId) {
+        leftGeometries.add(ProjectionTransformationCache.project(geometry, geometrySpatialReference, spatialReference));
+        leftIds.add(geometryId);
+    }
+
+    void addRight(Geometry geometry, SpatialReference geometrySpatialReference, long geometryId) {
+        rightGeometries.add(ProjectionTransformationCache.project(geometry, geometrySpatialReference, spatialReference));
+        rightIds.add(geometryId);
+    }
+
+    /**
+     * runs the join, calling sink with every response of matching pairs. sink is called from the pool's threads,
+     * concurrently. partitions stop once cancelled returns true
+     */
+    void run(ForkJoinPool pool, Consumer<SpatialJoinResponse> sink, BooleanSupplier cancelled) {
+        if (leftGeometries.isEmpty() || rightGeometries.isEmpty()) {
+            return;
+        }
+
+        double[] rightBoxes = new double[rightGeometries.size() * 4];
+        Envelope2D envelope2D = new Envelope2D();
+        for (int i = 0; i < rightGeometries.size(); i++) {
+            rightGeometries.get(i).queryEnvelope2D(envelope2D);
+            rightBoxes[i * 4] = envelope2D.xmin;
+            rightBoxes[i * 4 + 1] = envelope2D.ymin;
+            rightBoxes[i * 4 + 2] = envelope2D.xmax;
+            rightBoxes[i * 4 + 3] = envelope2D.ymax;
+        }
+        StrTree rightTree = new StrTree(rightBoxes);
+
+        int[] leftOrder = hilbertOrder();
+        pool.invoke(new PartitionRange(rightTree, leftOrder, 0, (leftOrder.length + partitionSize - 1) / partitionSize,
+                sink, cancelled));
+    }
+
+    /**
+     * indexes of the left geometries sorted by the Hilbert index of their envelope centers
+     */
+    private int[] hilbertOrder() {
+        List<Envelope2D> envelopes = new ArrayList<>(leftGeometries.size());
+        for (Geometry geometry : leftGeometries) {
+            Envelope2D envelope2D = new Envelope2D();
+            geometry.queryEnvelope2D(envelope2D);
+            envelopes.add(envelope2D);
+        }
+        return CascadedUnion.hilbertOrder(envelopes);
+    }
+
+    private boolean matches(Geometry left, Geometry right, OperatorSimpleRelation relation) {
+        if (relation != null) {
+            return relation.execute(left, right, spatialReference, null);
+        }
+        return OperatorDistance.local().execute(left, right, null) <= distance;
+    }
+
+    /**
+     * the partitions from firstPartition up to, not including, endPartition
+     */
+    private final class PartitionRange extends RecursiveAction {
+        private final StrTree rightTree;
+        private final int[] leftOrder;
+        private final int firstPartition;
+        private final int endPartition;
+        private final Consumer<SpatialJoinResponse> sink;
+        private final BooleanSupplier cancelled;
+
+        PartitionRange(StrTree rightTree, int[] leftOrder, int firstPartition, int endPartition,
+                       Consumer<SpatialJoinResponse> sink, BooleanSupplier cancelled) {
+            this.rightTree = rightTree;
+            this.leftOrder = leftOrder;
+            this.firstPartition = firstPartition;
+            this.endPartition = endPartition;
+            this.sink = sink;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled.getAsBoolean()) {
+                return;
+            }
+            if (endPartition - firstPartition > 1) {
+                int middlePartition = (firstPartition + endPartition) >>> 1;
+                invokeAll(new PartitionRange(rightTree, leftOrder, firstPartition, middlePartition, sink, cancelled),
+                        new PartitionRange(rightTree, leftOrder, middlePartition, endPartition, sink, cancelled));
+                return;
+            }
+
+            OperatorSimpleRelation relation = predicate == OperatorType.DISTANCE ? null : (OperatorSimpleRelation) OperatorFactoryLocal
+                    .getInstance()
+                    .getOperator(GeometryServiceUtil.getOp(predicate));
+            SpatialJoinResponse.Builder responseBuilder = SpatialJoinResponse.newBuilder();
+            Envelope2D envelope2D = new Envelope2D();
+            int end = Math.min(leftOrder.length, (firstPartition + 1) * partitionSize);
+            for (int i = firstPartition * partitionSize; i < end && !cancelled.getAsBoolean(); i++) {
+                Geometry left = leftGeometries.get(leftOrder[i]);
+                if (left.isEmpty()) {
+                    continue;
+                }
+                left.queryEnvelope2D(envelope2D);
+                if (predicate == OperatorType.DISTANCE) {
+                    envelope2D.inflate(distance, distance);
+                }
+                long leftId = leftIds.get(leftOrder[i]);
+                rightTree.search(envelope2D, j -> {
+                    if (matches(left, rightGeometries.get(j), relation)) {
+                        responseBuilder.addLeftIds(leftId).addRightIds(rightIds.get(j));
+                    }
+                });
+                if (responseBuilder.getLeftIdsCount() >= MAX_PAIRS_PER_RESPONSE) {
+                    sink.accept(responseBuilder.build());
+                    responseBuilder.clear();
+                }
+            }
+            if (responseBuilder.getLeftIdsCount() > 0) {
+                sink.accept(responseBuilder.build());
+            }
+        }
+    }
+}
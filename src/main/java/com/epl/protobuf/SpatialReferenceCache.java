@@ -0,0 +1,90 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.SpatialReference;
+
+/**
+ * Interns SpatialReference instances so that a wkid, wkt, proj4 string or custom projection is only parsed once.
+ * The cache key is the SpatialReferenceData reduced to the one field that decides the spatial reference (wkid wins
+ * over wkt, wkt over proj4, proj4 over custom), so requests that carry extra fields still share an instance.
+ */
+final class SpatialReferenceCache {
+    static final String CACHE_SIZE_ENV = "GEOMETRY_SR_CACHE_SIZE";
+
+    private static final LruCache<SpatialReferenceData, SpatialReference> cache =
+            new LruCache<>(GeometryExecutors.positiveIntFromEnvironment(CACHE_SIZE_ENV, 256));
+
+    private SpatialReferenceCache() {
+    }
+
+    /**
+     * shared SpatialReference for the data, or null if the data doesn't define one
+     */
+    static SpatialReference get(SpatialReferenceData spatialReferenceData) {
+        SpatialReferenceData key = cacheKey(spatialReferenceData);
+        if (key == null) {
+            return null;
+        }
+        return cache.get(key, SpatialReferenceCache::create);
+    }
+
+    static long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    static long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    static int size() {
+        return cache.size();
+    }
+
+    private static SpatialReferenceData cacheKey(SpatialReferenceData data) {
+        boolean hasWkt = data.getWkt().length() > 0;
+        boolean hasProj4 = data.getProj4().length() > 0;
+        boolean hasCustom = data.hasCustom();
+
+        // TODO there seems to be a bug where hasWkid() is not getting generated. check back later
+        if (data.getWkid() != 0) {
+            return !hasWkt && !hasProj4 && !hasCustom ? data : SpatialReferenceData.newBuilder().setWkid(data.getWkid()).build();
+        } else if (hasWkt) {
+            return !hasProj4 && !hasCustom ? data : SpatialReferenceData.newBuilder().setWkt(data.getWkt()).build();
+        } else if (hasProj4) {
+            return !hasCustom ? data : SpatialReferenceData.newBuilder().setProj4(data.getProj4()).build();
+        } else if (hasCustom && data.getCustom().getCsType() == SpatialReferenceData.CSType.LAMBERT_AZI) {
+            return data;
+        }
+        return null;
+    }
+
+    private static SpatialReference create(SpatialReferenceData key) {
+        if (key.getWkid() != 0)
+            return SpatialReference.create(key.getWkid());
+        else if (key.getWkt().length() > 0)
+            return SpatialReference.create(key.getWkt());
+        else if (key.getProj4().length() > 0)
+            return SpatialReference.createFromProj4(key.getProj4());
+        else
+            return SpatialReference.createEqualArea(key.getCustom().getLon0(), key.getCustom().getLat0());
+    }
+}
@@ -0,0 +1,254 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import com.esri.core.geometry.Envelope2D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.IntConsumer;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Static R-tree over item boxes, bulk loaded with Sort-Tile-Recursive packing. Every level is STR sorted: boxes are
+ * sorted by center x, cut into vertical slices and sorted by center y within a slice, then grouped NODE_CAPACITY at a
+ * time into the boxes of the level above. All nodes are full except the last of each level, and the whole tree lives
+ * in a few flat arrays.
+ */
+final class StrTree {
+    static final int NODE_CAPACITY = 16;
+
+    // xmin, ymin, xmax, ymax of every box, per level. level 0 holds one box per item
+    private final double[][] boxes;
+    // first child (in the level below) and number of children of every box, per level. unused for level 0
+    private final int[][] firstChild;
+    private final int[][] childCount;
+    // item of each level 0 box
+    private final int[] items;
+
+    /**
+     * itemBoxes holds xmin, ymin, xmax, ymax for each item, item i starts at 4 * i
+     */
+    StrTree(double[] itemBoxes) {
+        int count = itemBoxes.length / 4;
+        items = strOrder(itemBoxes, count);
+        List<double[]> levelBoxes = new ArrayList<>();
+        List<int[]> levelFirstChild = new ArrayList<>();
+        List<int[]> levelChildCount = new ArrayList<>();
+        levelBoxes.add(gather(itemBoxes, items));
+        levelFirstChild.add(null);
+        levelChildCount.add(null);
+
+        double[] level = levelBoxes.get(0);
+        while (count > NODE_CAPACITY) {
+            int parentCount = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+            double[] parents = new double[parentCount * 4];
+            int[] parentFirstChild = new int[parentCount];
+            int[] parentChildCount = new int[parentCount];
+            for (int parent = 0; parent < parentCount; parent++) {
+                int first = parent * NODE_CAPACITY;
+                int end = Math.min(count, first + NODE_CAPACITY);
+                parentFirstChild[parent] = first;
+                parentChildCount[parent] = end - first;
+                parents[parent * 4] = Double.POSITIVE_INFINITY;
+                parents[parent * 4 + 1] = Double.POSITIVE_INFINITY;
+                parents[parent * 4 + 2] = Double.NEGATIVE_INFINITY;
+                parents[parent * 4 + 3] = Double.NEGATIVE_INFINITY;
+                for (int child = first; child < end; child++) {
+                    // empty boxes have NaN coordinates and fail these comparisons, so they don't grow their parent
+                    for (int axis = 0; axis < 2; axis++) {
+                        if (level[child * 4 + axis] < parents[parent * 4 + axis]) {
+                            parents[parent * 4 + axis] = level[child * 4 + axis];
+                        }
+                        if (level[child * 4 + 2 + axis] > parents[parent * 4 + 2 + axis]) {
+                            parents[parent * 4 + 2 + axis] = level[child * 4 + 2 + axis];
+                        }
+                    }
+                }
+            }
+
+            // the parents are sorted in turn, so the level above groups neighbouring parents
+            int[] order = strOrder(parents, parentCount);
+            level = gather(parents, order);
+            levelBoxes.add(level);
+            levelFirstChild.add(gather(parentFirstChild, order));
+            levelChildCount.add(gather(parentChildCount, order));
+            count = parentCount;
+        }
+
+        boxes = levelBoxes.toArray(new double[0][]);
+        firstChild = levelFirstChild.toArray(new int[0][]);
+        childCount = levelChildCount.toArray(new int[0][]);
+    }
+
+    int size() {
+        return items.length;
+    }
+
+    /**
+     * calls visitor with every item whose box intersects the envelope, boxes that only touch it included
+     */
+    void search(Envelope2D envelope, IntConsumer visitor) {
+        int top = boxes.length - 1;
+        int[] levelStack = new int[64];
+        int[] boxStack = new int[64];
+        int depth = 0;
+        for (int box = boxes[top].length / 4 - 1; box >= 0; box--) {
+            if (depth == levelStack.length) {
+                levelStack = Arrays.copyOf(levelStack, depth * 2);
+                boxStack = Arrays.copyOf(boxStack, depth * 2);
+            }
+            levelStack[depth] = top;
+            boxStack[depth++] = box;
+        }
+
+        while (depth > 0) {
+            int level = levelStack[--depth];
+            int box = boxStack[depth];
+            double[] levelBoxes = boxes[level];
+            if (levelBoxes[box * 4] > envelope.xmax || levelBoxes[box * 4 + 2] < envelope.xmin ||
+                    levelBoxes[box * 4 + 1] > envelope.ymax || levelBoxes[box * 4 + 3] < envelope.ymin) {
+                continue;
+            }
+            if (level == 0) {
+                visitor.accept(items[box]);
+                continue;
+            }
+
+            int first = firstChild[level][box];
+            int count = childCount[level][box];
+            if (depth + count > levelStack.length) {
+                levelStack = Arrays.copyOf(levelStack, Math.max(depth + count, depth * 2));
+                boxStack = Arrays.copyOf(boxStack, levelStack.length);
+            }
+            for (int child = first + count - 1; child >= first; child--) {
+                levelStack[depth] = level - 1;
+                boxStack[depth++] = child;
+            }
+        }
+    }
+
+    /**
+     * receives the results of a nearest neighbour search
+     */
+    interface NeighborVisitor {
+        void accept(int item, double distance);
+    }
+
+    /**
+     * best first search for the k items nearest to the envelope, calling visitor with them nearest first. itemDistance
+     * gives the exact distance to an item and must be no less than the distance to its box. items further than
+     * maxDistance are never visited, nor are items at an infinite distance
+     */
+    void nearest(Envelope2D envelope, int k, double maxDistance, IntToDoubleFunction itemDistance, NeighborVisitor visitor) {
+        // entries at level -1 are items keyed by their exact distance, the others are boxes keyed by their box distance
+        PriorityQueue<SearchEntry> queue = new PriorityQueue<>();
+        int top = boxes.length - 1;
+        for (int box = 0; box < boxes[top].length / 4; box++) {
+            queue.add(new SearchEntry(boxDistance(boxes[top], box, envelope), top, box));
+        }
+
+        int found = 0;
+        while (found < k && !queue.isEmpty()) {
+            SearchEntry entry = queue.poll();
+            // empty boxes have NaN coordinates, they and items at infinite distance sort last and are never visited
+            if (!(entry.distance <= maxDistance) || Double.isInfinite(entry.distance)) {
+                break;
+            }
+            if (entry.level == -1) {
+                visitor.accept(entry.index, entry.distance);
+                found++;
+            } else if (entry.level == 0) {
+                int item = items[entry.index];
+                queue.add(new SearchEntry(itemDistance.applyAsDouble(item), -1, item));
+            } else {
+                int first = firstChild[entry.level][entry.index];
+                int end = first + childCount[entry.level][entry.index];
+                double[] childBoxes = boxes[entry.level - 1];
+                for (int child = first; child < end; child++) {
+                    queue.add(new SearchEntry(boxDistance(childBoxes, child, envelope), entry.level - 1, child));
+                }
+            }
+        }
+    }
+
+    private static double boxDistance(double[] levelBoxes, int box, Envelope2D envelope) {
+        double dx = Math.max(0, Math.max(levelBoxes[box * 4] - envelope.xmax, envelope.xmin - levelBoxes[box * 4 + 2]));
+        double dy = Math.max(0, Math.max(levelBoxes[box * 4 + 1] - envelope.ymax, envelope.ymin - levelBoxes[box * 4 + 3]));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static final class SearchEntry implements Comparable<SearchEntry> {
+        private final double distance;
+        private final int level;
+        private final int index;
+
+        SearchEntry(double distance, int level, int index) {
+            this.distance = distance;
+            this.level = level;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(SearchEntry other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+
+    /**
+     * indexes of the count boxes in STR order
+     */
+    private static int[] strOrder(double[] boxes, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> boxes[i * 4] + boxes[i * 4 + 2]));
+
+        int nodes = (count + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int slices = (int) Math.ceil(Math.sqrt(nodes));
+        int sliceSize = slices * NODE_CAPACITY;
+        for (int start = 0; start < count; start += sliceSize) {
+            Arrays.sort(order, start, Math.min(count, start + sliceSize),
+                    Comparator.comparingDouble(i -> boxes[i * 4 + 1] + boxes[i * 4 + 3]));
+        }
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    private static double[] gather(double[] boxes, int[] order) {
+        double[] gathered = new double[order.length * 4];
+        for (int i = 0; i < order.length; i++) {
+            System.arraycopy(boxes, order[i] * 4, gathered, i * 4, 4);
+        }
+        return gathered;
+    }
+
+    private static int[] gather(int[] values, int[] order) {
+        int[] gathered = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            gathered[i] = values[order[i]];
+        }
+        return gathered;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manual flow control window for a bi-directional stream. Up to {@code size} requests from the same stream are
+ * processed concurrently on the compute executor. In ordered mode the results are reassembled in request order,
+ * in unordered mode each request's results are sent as soon as they are ready (clients match them up by
+ * geometry_id).
+ *
+ * Every time a request's results are sent a slot is freed and one more message is requested from the client, unless
+ * the response stream is not ready, in which case the credit is held until the onReady handler fires.
+ */
+class StreamWindow<ReqT> {
+    interface Processor<ReqT> {
+        List<GeometryResponse> process(ReqT request) throws Exception;
+    }
+
+    private final Executor executor;
+    private final ServerCallStreamObserver<GeometryResponse> responseObserver;
+    private final Processor<ReqT> processor;
+    private final boolean ordered;
+    private final GeometryMetrics metrics;
+
+    // Guard against spurious onReady() calls caused by a race between a completed request and onReady().
+    private final AtomicBoolean wasReady = new AtomicBoolean(false);
+    // messages that may be requested from the client the next time the response stream is ready
+    private final AtomicInteger credits;
+
+    // everything below is guarded by this
+    private final Map<Long, Object> completed = new HashMap<>();
+    private long nextSequence = 0;
+    private long nextEmit = 0;
+    private int inFlight = 0;
+    private boolean inputCompleted = false;
+    private boolean terminated = false;
+
+    StreamWindow(Executor executor,
+                 ServerCallStreamObserver<GeometryResponse> responseObserver,
+                 int size,
+                 boolean ordered,
+                 GeometryMetrics metrics,
+                 Processor<ReqT> processor) {
+        if (size < 1) {
+            throw new IllegalArgumentException("stream window size must be at least 1");
+        }
+        this.executor = executor;
+        this.responseObserver = responseObserver;
+        this.processor = processor;
+        this.ordered = ordered;
+        this.metrics = metrics;
+        this.credits = new AtomicInteger(size);
+
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.setOnReadyHandler(this::onReady);
+    }
+
+    /**
+     * Signal the request sender to send as many messages as there are free slots. This happens when isReady() turns
+     * true, signaling that the receive buffer has enough free space to receive more messages. The first call primes
+     * the message pump with the whole window.
+     */
+    void onReady() {
+        if (responseObserver.isReady() && wasReady.compareAndSet(false, true)) {
+            int requested = credits.getAndSet(0);
+            if (requested > 0) {
+                responseObserver.request(requested);
+            }
+        }
+    }
+
+    /**
+     * called from the StreamObserver's onNext. gRPC never calls onNext concurrently for one stream
+     */
+    void submit(ReqT request) {
+        final long sequence;
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            sequence = nextSequence++;
+            inFlight++;
+        }
+
+        executor.execute(() -> {
+            Object result;
+            try {
+                result = processor.process(request);
+            } catch (Throwable throwable) {
+                result = throwable;
+            }
+            complete(sequence, result);
+        });
+    }
+
+    /**
+     * called from the StreamObserver's onCompleted. the response stream is completed once every request in flight
+     * has been sent.
+     */
+    void inputCompleted() {
+        synchronized (this) {
+            inputCompleted = true;
+            if (inFlight == 0 && !terminated) {
+                terminated = true;
+                responseObserver.onCompleted();
+            }
+        }
+    }
+
+    /**
+     * called from the StreamObserver's onError. the call is already cancelled, so pending results are dropped and
+     * the response stream is ended.
+     */
+    void cancel() {
+        synchronized (this) {
+            completed.clear();
+            if (!terminated) {
+                terminated = true;
+                responseObserver.onCompleted();
+            }
+        }
+    }
+
+    private void complete(long sequence, Object result) {
+        int released = 0;
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+
+            if (ordered) {
+                completed.put(sequence, result);
+                Object next;
+                while (!terminated && (next = completed.remove(nextEmit)) != null) {
+                    nextEmit++;
+                    emit(next);
+                    released++;
+                }
+            } else {
+                emit(result);
+                released++;
+            }
+
+            if (!terminated && inputCompleted && inFlight == 0) {
+                terminated = true;
+                responseObserver.onCompleted();
+            }
+        }
+
+        for (int i = 0; i < released; i++) {
+            releaseSlot();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void emit(Object result) {
+        inFlight--;
+        if (result instanceof Throwable) {
+            terminated = true;
+            completed.clear();
+            responseObserver.onError(Status.UNKNOWN
+                    .withDescription("Error handling request")
+                    .withCause((Throwable) result)
+                    .asException());
+            return;
+        }
+
+        for (GeometryResponse geometryResponse : (List<GeometryResponse>) result) {
+            responseObserver.onNext(geometryResponse);
+        }
+    }
+
+    private void releaseSlot() {
+        // Check the ServerCallStreamObserver to see if it is still ready to accept more messages. As long as
+        // isReady() stays true, the server keeps cycling through onNext() -> request(). If the server runs out of
+        // buffer space, isReady() turns false and the credit is handed to the onReadyHandler.
+        if (responseObserver.isReady()) {
+            responseObserver.request(1);
+            return;
+        }
+
+        credits.incrementAndGet();
+        // note that back-pressure has begun
+        if (wasReady.getAndSet(false)) {
+            metrics.flowControlPause();
+        }
+        // the transport may have turned ready again before wasReady was cleared
+        onReady();
+    }
+}
@@ -23,10 +23,17 @@ package com.epl.protobuf;
 import com.esri.core.geometry.*;
 import com.google.protobuf.ByteString;
 import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.stub.ClientCallStreamObserver;
 import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
 import junit.framework.TestCase;
 import org.junit.After;
 import org.junit.Before;
@@ -34,9 +41,18 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
@@ -1508,4 +1524,1448 @@ public class GeometryServerTest {
         assertEquals(-Math.PI / 2, geometryResponse.getGeodeticInverse().getAz12(), 0);
         assertEquals(Math.PI / 2, geometryResponse.getGeodeticInverse().getAz21(), 0);
     }
+
+    @Test
+    public void testComputeExecutorModes() throws Exception {
+        GeometryData geometryData = GeometryData.newBuilder().setWkt("POINT (0 0)").setGeometryId(7).build();
+        GeometryRequest geometryRequest = GeometryRequest.newBuilder()
+                .setGeometry(geometryData)
+                .setOperator(OperatorType.BUFFER)
+                .setBufferParams(GeometryRequest.BufferParams.newBuilder().setDistance(1))
+                .setResultEncoding(Encoding.WKT)
+                .build();
+
+        for (GeometryExecutors.Mode mode : GeometryExecutors.Mode.values()) {
+            String serverName = "in-process server for " + mode;
+            GeometryServer modeServer = new GeometryServer(
+                    InProcessServerBuilder.forName(serverName).directExecutor(),
+                    0,
+                    GeometryExecutors.newComputeExecutor(mode, 2));
+            modeServer.start();
+            ManagedChannel channel = InProcessChannelBuilder.forName(serverName).directExecutor().build();
+            try {
+                GeometryResponse geometryResponse = GeometryServiceGrpc.newBlockingStub(channel).operate(geometryRequest);
+                Polygon polygon = (Polygon) GeometryEngine.geometryFromWkt(geometryResponse.getGeometry().getWkt(), 0, Geometry.Type.Unknown);
+                assertEquals(Math.PI, polygon.calculateArea2D(), 0.01);
+                assertEquals(7, geometryResponse.getGeometry().getGeometryId());
+            } finally {
+                channel.shutdownNow();
+                modeServer.stop();
+            }
+        }
+    }
+
+    private List<Long> streamBufferIds(int count, Metadata headers) throws InterruptedException {
+        List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<GeometryResponse> responseObserver = new StreamObserver<>() {
+            @Override
+            public void onNext(GeometryResponse geometryResponse) {
+                ids.add(geometryResponse.getGeometry().getGeometryId());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        };
+
+        GeometryServiceGrpc.GeometryServiceStub stub = MetadataUtils.attachHeaders(GeometryServiceGrpc.newStub(inProcessChannel), headers);
+        StreamObserver<GeometryRequest> requestObserver = stub.operateBiStreamFlow(responseObserver);
+        for (int i = 0; i < count; i++) {
+            // larger buffers for the early ids so that they finish last if run concurrently
+            GeometryRequest geometryRequest = GeometryRequest.newBuilder()
+                    .setGeometry(GeometryData.newBuilder().setWkt("POINT (0 0)").setGeometryId(i))
+                    .setOperator(OperatorType.BUFFER)
+                    .setBufferParams(GeometryRequest.BufferParams.newBuilder()
+                            .setDistance(count - i)
+                            .setMaxVerticesInFullCircle(96 * (count - i)))
+                    .build();
+            requestObserver.onNext(geometryRequest);
+        }
+        requestObserver.onCompleted();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        return ids;
+    }
+
+    private List<GeometryResponse> streamPointShapefile(int count, Metadata headers) throws InterruptedException {
+        ByteBuffer shp = pointShapefile(count, null);
+        List<GeometryResponse> responses = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<GeometryResponse> responseObserver = new StreamObserver<>() {
+            @Override
+            public void onNext(GeometryResponse geometryResponse) {
+                responses.add(geometryResponse);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        };
+
+        GeometryServiceGrpc.GeometryServiceStub stub = MetadataUtils.attachHeaders(GeometryServiceGrpc.newStub(inProcessChannel), headers);
+        StreamObserver<FileRequestChunk> requestObserver = stub.fileOperateBiStreamFlow(responseObserver);
+        GeometryRequest nestedRequest = GeometryRequest.newBuilder()
+                .setOperator(OperatorType.BUFFER)
+                .setBufferParams(GeometryRequest.BufferParams.newBuilder().setDistance(0.25))
+                .setResultEncoding(Encoding.WKT)
+                .build();
+        int chunkSize = 1000;
+        for (int offset = 0; offset < shp.limit(); offset += chunkSize) {
+            int end = Math.min(shp.limit(), offset + chunkSize);
+            requestObserver.onNext(FileRequestChunk.newBuilder()
+                    .setData(ByteString.copyFrom(shp.array(), offset, end - offset))
+                    .setNestedRequest(nestedRequest)
+                    .setIsLastChunk(end == shp.limit())
+                    .build());
+        }
+        requestObserver.onCompleted();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        return responses;
+    }
+
+    @Test
+    public void testFileOperateBiStreamFlowPipeline() throws Exception {
+        int count = 3000;
+        Metadata headers = new Metadata();
+        headers.put(GeometryCallOptions.WINDOW_HEADER, "2");
+        List<GeometryResponse> responses = streamPointShapefile(count, headers);
+
+        // records are spread over batches running concurrently, the responses still come back in file order
+        assertEquals(count, responses.size());
+        for (int i = 0; i < count; i++) {
+            assertTrue(responses.get(i).getGeometry().getWkt().startsWith("POLYGON"));
+            assertEquals(i + 1, responses.get(i).getGeometry().getGeometryId());
+        }
+    }
+
+    @Test
+    public void testFileOperateBiStreamFlowBatchedResponses() throws Exception {
+        int count = 3000;
+        Metadata headers = new Metadata();
+        headers.put(GeometryCallOptions.BATCH_RECORDS_HEADER, "128");
+        List<GeometryResponse> responses = streamPointShapefile(count, headers);
+
+        // at most 128 results per message, each keeps its geometry id
+        assertTrue(responses.size() >= count / 128);
+        assertTrue(responses.size() < count);
+        long geometryId = 1;
+        for (GeometryResponse response : responses) {
+            assertFalse(response.hasGeometry());
+            assertTrue(response.getResponsesCount() <= 128);
+            for (GeometryResponse packed : response.getResponsesList()) {
+                assertTrue(packed.getGeometry().getWkt().startsWith("POLYGON"));
+                assertEquals(geometryId++, packed.getGeometry().getGeometryId());
+            }
+        }
+        assertEquals(count + 1, geometryId);
+    }
+
+    @Test
+    public void testBiStreamFlowWindowOrdered() throws Exception {
+        Metadata headers = new Metadata();
+        headers.put(GeometryCallOptions.WINDOW_HEADER, "4");
+        List<Long> ids = streamBufferIds(40, headers);
+
+        assertEquals(40, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i, (long) ids.get(i));
+        }
+    }
+
+    @Test
+    public void testBiStreamFlowWindowUnordered() throws Exception {
+        Metadata headers = new Metadata();
+        headers.put(GeometryCallOptions.WINDOW_HEADER, "4");
+        headers.put(GeometryCallOptions.UNORDERED_HEADER, "true");
+        List<Long> ids = streamBufferIds(40, headers);
+
+        assertEquals(40, ids.size());
+        assertEquals(40, new HashSet<>(ids).size());
+    }
+
+    @Test
+    public void testRequestPlanCache() {
+        SpatialReferenceData wgs84 = SpatialReferenceData.newBuilder().setWkid(4326).build();
+        SpatialReferenceData mercator = SpatialReferenceData.newBuilder().setWkid(3857).build();
+        GeometryServiceGrpc.GeometryServiceBlockingStub stub = GeometryServiceGrpc.newBlockingStub(inProcessChannel);
+
+        long misses = RequestPlan.getCacheMissCount();
+        for (int i = 0; i < 10; i++) {
+            GeometryRequest convexHull = GeometryRequest.newBuilder()
+                    .setGeometry(GeometryData.newBuilder()
+                            .setWkt(String.format("MULTIPOINT (%d 0, %d 1, %d 1)", i, i + 1, i))
+                            .setGeometryId(i)
+                            .setSr(wgs84))
+                    .setOperator(OperatorType.CONVEX_HULL)
+                    .build();
+            GeometryRequest project = GeometryRequest.newBuilder()
+                    .setGeometryRequest(convexHull)
+                    .setOperator(OperatorType.PROJECT)
+                    .setResultSr(mercator)
+                    .setResultEncoding(Encoding.WKT)
+                    .build();
+
+            GeometryResponse geometryResponse = stub.operate(project);
+            Geometry result = GeometryEngine.geometryFromWkt(geometryResponse.getGeometry().getWkt(), 0, Geometry.Type.Unknown);
+            assertEquals(Geometry.Type.Polygon, result.getType());
+            assertEquals(3857, geometryResponse.getGeometry().getSr().getWkid());
+        }
+
+        // the ten requests only differ by geometry, so they share one plan
+        assertTrue(RequestPlan.getCacheMissCount() - misses <= 1);
+
+        GeometryRequest template = RequestPlan.template(GeometryRequest.newBuilder()
+                .setLeftGeometry(GeometryData.newBuilder().setWkt("POINT (1 1)").setSr(wgs84))
+                .setOperator(OperatorType.BUFFER)
+                .build());
+        assertTrue(template.hasLeftGeometry());
+        assertEquals("", template.getLeftGeometry().getWkt());
+        assertEquals(4326, template.getLeftGeometry().getSr().getWkid());
+
+        // parameters the plan doesn't read share it, spatial references and aggregation don't
+        GeometryRequest buffer = GeometryRequest.newBuilder()
+                .setLeftGeometry(GeometryData.newBuilder().setWkt("POINT (1 1)").setSr(wgs84))
+                .setOperator(OperatorType.BUFFER)
+                .setBufferParams(GeometryRequest.BufferParams.newBuilder().setDistance(1))
+                .build();
+        RequestPlan plan = RequestPlan.of(buffer);
+        assertSame(plan, RequestPlan.of(buffer.toBuilder()
+                .setLeftGeometry(GeometryData.newBuilder().setWkt("POINT (2 2)").setSr(wgs84))
+                .setBufferParams(GeometryRequest.BufferParams.newBuilder().setDistance(2))
+                .build()));
+        assertNotSame(plan, RequestPlan.of(buffer.toBuilder().setResultSr(mercator).build()));
+        assertNotSame(plan, RequestPlan.of(buffer.toBuilder()
+                .setLeftGeometry(GeometryData.newBuilder().setWkt("POINT (1 1)").setSr(mercator))
+                .build()));
+        assertTrue(RequestPlan.of(buffer.toBuilder()
+                .setBufferParams(GeometryRequest.BufferParams.newBuilder().setDistance(1).setUnionResult(true))
+                .build()).aggregates);
+    }
+
+    @Test
+    public void testSpatialReferenceInterning() {
+        SpatialReferenceData wkid = SpatialReferenceData.newBuilder().setWkid(32632).build();
+        // wkid wins over the proj4 string, so both resolve to the same instance
+        SpatialReferenceData wkidAndProj4 = SpatialReferenceData.newBuilder()
+                .setWkid(32632)
+                .setProj4("+proj=longlat +datum=WGS84 +no_defs")
+                .build();
+        SpatialReferenceData lambert = SpatialReferenceData.newBuilder()
+                .setCustom(SpatialReferenceData.Custom.newBuilder().setLat0(45).setLon0(-120))
+                .build();
+
+        SpatialReference first = GeometryServiceUtil.extractSpatialReference(wkid);
+        long hits = SpatialReferenceCache.getHitCount();
+        assertSame(first, GeometryServiceUtil.extractSpatialReference(wkidAndProj4));
+        assertSame(first, GeometryServiceUtil.extractSpatialReference(wkid));
+        assertEquals(hits + 2, SpatialReferenceCache.getHitCount());
+
+        assertSame(GeometryServiceUtil.extractSpatialReference(lambert), GeometryServiceUtil.extractSpatialReference(lambert));
+        assertNull(GeometryServiceUtil.extractSpatialReference(SpatialReferenceData.getDefaultInstance()));
+    }
+
+    @Test
+    public void testProjectionTransformationCache() {
+        SpatialReference wgs84 = SpatialReference.create(4326);
+        SpatialReference gall = SpatialReference.create(54016);
+        long hits = ProjectionTransformationCache.getHitCount();
+        ProjectionTransformation forward = ProjectionTransformationCache.get(wgs84, gall);
+        assertSame(forward, ProjectionTransformationCache.get(wgs84, gall));
+        assertNotSame(forward, ProjectionTransformationCache.get(gall, wgs84));
+        assertTrue(ProjectionTransformationCache.getHitCount() > hits);
+
+        Polygon polygon = new Polygon();
+        polygon.startPath(-1, 1);
+        polygon.lineTo(1, 1);
+        polygon.lineTo(1, -1);
+        polygon.lineTo(-1, -1);
+        polygon.closeAllPaths();
+        ProjectionTransformation equalArea = ProjectionTransformationCache.getEqualArea(polygon, wgs84);
+        assertSame(equalArea, ProjectionTransformationCache.getEqualArea(polygon.copy(), wgs84));
+        // keyed on the extent, not the vertices
+        assertSame(equalArea, ProjectionTransformationCache.getEqualArea(new Envelope(-1, -1, 1, 1), wgs84));
+        assertNotSame(equalArea, ProjectionTransformationCache.getEqualArea(new Envelope(-1, -1, 1, 2), wgs84));
+    }
+
+    @Test
+    public void testGetMetrics() {
+        GeometryServiceGrpc.GeometryServiceBlockingStub stub = GeometryServiceGrpc.newBlockingStub(inProcessChannel);
+        GeometryRequest buffer = GeometryRequest.newBuilder()
+                .setGeometry(GeometryData.newBuilder().setWkt("POINT (1 1)"))
+                .setOperator(OperatorType.BUFFER)
+                .setBufferParams(GeometryRequest.BufferParams.newBuilder().setDistance(1))
+                .build();
+        for (int i = 0; i < 3; i++) {
+            stub.operate(buffer);
+        }
+
+        GeometryAdminGrpc.GeometryAdminBlockingStub adminStub = GeometryAdminGrpc.newBlockingStub(inProcessChannel);
+        MetricsResponse metricsResponse = adminStub.getMetrics(MetricsRequest.getDefaultInstance());
+        LatencySummary bufferSummary = metricsResponse.getOperatorsList().stream()
+                .filter(summary -> summary.getName().equals("BUFFER"))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+        assertEquals(3, bufferSummary.getCount());
+        assertTrue(bufferSummary.getMaxMs() >= bufferSummary.getP50Ms());
+        assertTrue(metricsResponse.getMethodsList().stream().anyMatch(summary -> summary.getName().equals("Operate")));
+        assertEquals(3, metricsResponse.getMessagesIn());
+        assertEquals(3, metricsResponse.getMessagesOut());
+        assertEquals(0, metricsResponse.getInFlightStreams());
+        assertEquals(4, metricsResponse.getCachesCount());
+
+        long value = 123456789;
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        assertEquals(value, histogram.getValueAtPercentile(50), value * 0.03);
+        assertEquals(LatencyHistogram.bucketIndex(LatencyHistogram.lowestValue(900)), 900);
+    }
+
+    @Test
+    public void testOperateBatch() {
+        SpatialReferenceData wgs84 = SpatialReferenceData.newBuilder().setWkid(4326).build();
+        GeometryBatchRequest.Builder batchBuilder = GeometryBatchRequest.newBuilder()
+                .setSr(wgs84)
+                .setRequestTemplate(GeometryRequest.newBuilder()
+                        .setOperator(OperatorType.BUFFER)
+                        .setBufferParams(GeometryRequest.BufferParams.newBuilder().setDistance(1))
+                        .setResultEncoding(Encoding.WKT));
+        for (int i = 0; i < 20; i++) {
+            batchBuilder.addGeometries(GeometryData.newBuilder()
+                    .setWkt(String.format("POINT (%d %d)", i, i))
+                    .setGeometryId(i));
+        }
+
+        GeometryServiceGrpc.GeometryServiceBlockingStub stub = GeometryServiceGrpc.newBlockingStub(inProcessChannel);
+        GeometryBatchResponse batchResponse = stub.operateBatch(batchBuilder.build());
+        assertEquals(20, batchResponse.getResponsesCount());
+        for (int i = 0; i < 20; i++) {
+            GeometryData result = batchResponse.getResponses(i).getGeometry();
+            assertEquals(i, result.getGeometryId());
+            assertEquals(4326, result.getSr().getWkid());
+            Geometry polygon = GeometryEngine.geometryFromWkt(result.getWkt(), 0, Geometry.Type.Unknown);
+            assertTrue(GeometryEngine.contains(polygon, new Point(i, i), null));
+        }
+
+        // relations run once per geometry of the batch
+        GeometryBatchRequest intersects = GeometryBatchRequest.newBuilder()
+                .setSr(wgs84)
+                .setRequestTemplate(GeometryRequest.newBuilder()
+                        .setOperator(OperatorType.INTERSECTS)
+                        .setRightGeometry(GeometryData.newBuilder()
+                                .setWkt("POLYGON ((-1 -1, 5 -1, 5 5, -1 5, -1 -1))")
+                                .setSr(wgs84)))
+                .addAllGeometries(batchBuilder.getGeometriesList())
+                .build();
+        batchResponse = stub.operateBatch(intersects);
+        assertEquals(20, batchResponse.getResponsesCount());
+        assertTrue(batchResponse.getResponses(3).getSpatialRelationship());
+        assertFalse(batchResponse.getResponses(10).getSpatialRelationship());
+    }
+
+    @Test
+    public void testPackedEncoding() {
+        // 10 x 10 square with a 2 x 2 hole, the first ring repeats its closing vertex
+        PackedGeometry packedPolygon = PackedGeometry.newBuilder()
+                .setGeometryType(PackedGeometry.GeometryType.POLYGON)
+                .addAllCoordinates(Arrays.asList(0.0, 0.0, 0.0, 10.0, 10.0, 10.0, 10.0, 0.0, 0.0, 0.0))
+                .addAllCoordinates(Arrays.asList(4.0, 4.0, 6.0, 4.0, 6.0, 6.0, 4.0, 6.0))
+                .addPartOffsets(0)
+                .addPartOffsets(5)
+                .build();
+        Polygon polygon = (Polygon) PackedGeometryCodec.toGeometry(packedPolygon);
+        assertEquals(2, polygon.getPathCount());
+        assertEquals(8, polygon.getPointCount());
+        assertEquals(96.0, polygon.calculateArea2D(), 0.0);
+
+        GeometryRequest request = GeometryRequest.newBuilder()
+                .setGeometry(GeometryData.newBuilder().setPacked(packedPolygon).setGeometryId(42))
+                .setOperator(OperatorType.CONVEX_HULL)
+                .setResultEncoding(Encoding.PACKED)
+                .build();
+        GeometryServiceGrpc.GeometryServiceBlockingStub stub = GeometryServiceGrpc.newBlockingStub(inProcessChannel);
+        GeometryResponse geometryResponse = stub.operate(request);
+        assertEquals(42, geometryResponse.getGeometry().getGeometryId());
+        PackedGeometry packedHull = geometryResponse.getGeometry().getPacked();
+        assertEquals(PackedGeometry.GeometryType.POLYGON, packedHull.getGeometryType());
+        assertEquals(100.0, PackedGeometryCodec.toGeometry(packedHull).calculateArea2D(), 0.0);
+
+        Polyline polyline = new Polyline();
+        polyline.startPath(0, 0);
+        polyline.lineTo(1, 1);
+        polyline.startPath(2, 2);
+        polyline.lineTo(3, 3);
+        polyline.lineTo(4, 4);
+        PackedGeometry packedPolyline = PackedGeometryCodec.fromGeometry(polyline);
+        assertEquals(Arrays.asList(0, 2), packedPolyline.getPartOffsetsList());
+        assertTrue(polyline.equals(PackedGeometryCodec.toGeometry(packedPolyline)));
+
+        Point point = new Point(1, 2, 3);
+        Point decoded = (Point) PackedGeometryCodec.toGeometry(PackedGeometryCodec.fromGeometry(point));
+        assertEquals(3.0, decoded.getZ(), 0.0);
+    }
+
+    @Test
+    public void testAliasingRequestMarshaller() {
+        ServerServiceDefinition serviceDefinition = AliasingMarshaller.aliasRequests(
+                new GeometryServiceGrpc.GeometryServiceImplBase() {}.bindService());
+        @SuppressWarnings("unchecked")
+        MethodDescriptor<GeometryRequest, GeometryResponse> operate = (MethodDescriptor<GeometryRequest, GeometryResponse>)
+                serviceDefinition.getMethod(GeometryServiceGrpc.getOperateMethod().getFullMethodName()).getMethodDescriptor();
+        assertTrue(operate.getRequestMarshaller() instanceof AliasingMarshaller);
+        assertEquals(GeometryServiceGrpc.getServiceDescriptor().getMethods().size(), serviceDefinition.getMethods().size());
+
+        Polyline polyline = new Polyline();
+        polyline.startPath(0, 0);
+        polyline.lineTo(2, 3);
+        GeometryRequest geometryRequest = GeometryRequest.newBuilder()
+                .setGeometry(GeometryData.newBuilder()
+                        .setWkb(ByteString.copyFrom(OperatorExportToWkb.local().execute(0, polyline, null)))
+                        .setSr(SpatialReferenceData.newBuilder().setWkid(4326)))
+                .setOperator(OperatorType.CONVEX_HULL)
+                .build();
+        GeometryRequest parsed = operate.parseRequest(operate.streamRequest(geometryRequest));
+        assertEquals(geometryRequest, parsed);
+
+        // past DELEGATE_MAX_BYTES the request is read into one array and parsed with aliasing
+        byte[] payload = new byte[AliasingMarshaller.DELEGATE_MAX_BYTES + 1];
+        new Random(3).nextBytes(payload);
+        GeometryRequest largeRequest = geometryRequest.toBuilder()
+                .setGeometry(GeometryData.newBuilder().setEsriShape(ByteString.copyFrom(payload)))
+                .build();
+        assertEquals(largeRequest, operate.parseRequest(operate.streamRequest(largeRequest)));
+    }
+
+    @Test
+    public void testChunkRing() {
+        ByteBuffer stream = ByteBuffer.allocate(4 * 1000);
+        for (int i = 0; i < 1000; i++) {
+            stream.putInt(i);
+        }
+        byte[] bytes = stream.array();
+
+        // 40 chunks of 100 bytes, so ints straddle chunk boundaries and the ring has to grow
+        ChunkRing chunkRing = new ChunkRing();
+        for (int offset = 0; offset < bytes.length; offset += 100) {
+            chunkRing.add(ByteBuffer.wrap(bytes, offset, 100));
+        }
+        assertEquals(4000, chunkRing.available());
+
+        assertEquals(0, chunkRing.read(4).getInt());
+        chunkRing.skip(20 * 4 + 2);
+        assertEquals(4000 - 86, chunkRing.available());
+        chunkRing.skip(2);
+        assertEquals(22, chunkRing.peekInt(0, java.nio.ByteOrder.BIG_ENDIAN));
+        // 24 starts at byte 96 of the first chunk and ends in the second
+        assertEquals(24, chunkRing.peekInt(8, java.nio.ByteOrder.BIG_ENDIAN));
+        assertEquals(Integer.reverseBytes(24), chunkRing.peekInt(8, java.nio.ByteOrder.LITTLE_ENDIAN));
+        assertEquals(22L << 32 | 23, chunkRing.peekLong(0, java.nio.ByteOrder.BIG_ENDIAN));
+        assertEquals(24L << 32 | 25, chunkRing.peekLong(8, java.nio.ByteOrder.BIG_ENDIAN));
+        assertEquals(Long.reverseBytes(24L << 32 | 25), chunkRing.peekLong(8, java.nio.ByteOrder.LITTLE_ENDIAN));
+
+        ByteBuffer straddling = chunkRing.read(4 * 100);
+        assertEquals(22, straddling.getInt(0));
+        assertEquals(121, straddling.getInt(4 * 99));
+        assertEquals(4 * 122, chunkRing.position());
+        for (int i = 122; i < 1000; i++) {
+            assertEquals(i, chunkRing.read(4).getInt());
+        }
+        assertEquals(0, chunkRing.available());
+    }
+
+    @Test
+    public void testShapefileMappedReader() throws Exception {
+        int count = 1000;
+        int contentBytes = 4 + 8 + 8;
+        ByteBuffer shx = ByteBuffer.allocate(100 + count * 8);
+        ByteBuffer shp = pointShapefile(count, shx);
+
+        File shpFile = File.createTempFile("points", ".shp");
+        File shxFile = new File(shpFile.getPath().replaceAll("\\.shp$", ".shx"));
+        shpFile.deleteOnExit();
+        shxFile.deleteOnExit();
+        Files.write(shpFile.toPath(), shp.array());
+        Files.write(shxFile.toPath(), shx.array());
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (ShapefileMappedReader indexed = new ShapefileMappedReader(shpFile);
+             ShapefileMappedReader scanned = new ShapefileMappedReader(shpFile, null)) {
+            assertEquals(Geometry.Type.Point, indexed.getGeometryType());
+            assertEquals(count, indexed.size());
+            assertEquals(count, scanned.size());
+
+            Geometry[] geometries = indexed.importGeometries(pool);
+            for (int i = 0; i < count; i++) {
+                Point point = (Point) geometries[i];
+                assertEquals(i, point.getX(), 0.0);
+                assertEquals(-i, point.getY(), 0.0);
+            }
+
+            long[] recordNumberSum = new long[1];
+            scanned.forEach(pool, (recordNumber, shape) -> {
+                assertEquals(recordNumber - 1, shape.getDouble(4), 0.0);
+                synchronized (recordNumberSum) {
+                    recordNumberSum[0] += recordNumber;
+                }
+            });
+            assertEquals((long) count * (count + 1) / 2, recordNumberSum[0]);
+
+            int records = 0;
+            while (scanned.hasNext()) {
+                ByteBuffer shape = scanned.next();
+                assertEquals(contentBytes, shape.remaining());
+                assertEquals(++records, scanned.getGeometryID());
+            }
+            assertEquals(count, records);
+        } finally {
+            pool.shutdown();
+        }
+
+        // a negative content length in the fourth record, in the .shp and in its .shx entry
+        long recordOffset = shx.order(ByteOrder.BIG_ENDIAN).getInt(100 + 3 * 8) * 2L;
+        shp.order(ByteOrder.BIG_ENDIAN).putInt((int) recordOffset + 4, -4);
+        shx.putInt(100 + 3 * 8 + 4, -4);
+        Files.write(shpFile.toPath(), shp.array());
+        Files.write(shxFile.toPath(), shx.array());
+        for (File index : new File[]{shxFile, null}) {
+            try (ShapefileMappedReader ignored = new ShapefileMappedReader(shpFile, index)) {
+                fail("negative record length was accepted");
+            } catch (IOException expected) {
+                assertTrue(expected.getMessage().contains("negative content length"));
+            }
+        }
+    }
+
+    /**
+     * shapefile of count points, record i at (i, -i). the matching .shx is written to shx when it isn't null
+     */
+    private static ByteBuffer pointShapefile(int count, ByteBuffer shx) {
+        // point records: 8 byte record header, then shape type, x and y
+        int contentBytes = 4 + 8 + 8;
+        ByteBuffer shp = ByteBuffer.allocate(100 + count * (8 + contentBytes));
+        for (ByteBuffer header : new ByteBuffer[]{shp, shx}) {
+            if (header == null) {
+                continue;
+            }
+            header.order(ByteOrder.BIG_ENDIAN).putInt(0, 9994).putInt(24, header.capacity() / 2);
+            header.order(ByteOrder.LITTLE_ENDIAN).putInt(28, 1000).putInt(32, 1)
+                    .putDouble(36, 0).putDouble(44, -count).putDouble(52, count).putDouble(60, 0);
+            header.position(100);
+        }
+        for (int i = 0; i < count; i++) {
+            if (shx != null) {
+                shx.order(ByteOrder.BIG_ENDIAN).putInt(shp.position() / 2).putInt(contentBytes / 2);
+            }
+            shp.order(ByteOrder.BIG_ENDIAN).putInt(i + 1).putInt(contentBytes / 2);
+            shp.order(ByteOrder.LITTLE_ENDIAN).putInt(1).putDouble(i).putDouble(-i);
+        }
+        shp.flip();
+        return shp;
+    }
+
+    @Test
+    public void testShapefileEnvelopeFilter() throws Exception {
+        GeometryRequest clipRequest = GeometryRequest.newBuilder()
+                .setOperator(OperatorType.CLIP)
+                .setClipParams(GeometryRequest.ClipParams.newBuilder()
+                        .setEnvelope(EnvelopeData.newBuilder().setXmin(10).setYmin(-19.5).setXmax(19.5).setYmax(-10)))
+                .build();
+        Envelope2D filterEnvelope = GeometryServiceUtil.inputFilterEnvelope(clipRequest);
+        assertNotNull(filterEnvelope);
+        assertNull(GeometryServiceUtil.inputFilterEnvelope(clipRequest.toBuilder().setOperator(OperatorType.BUFFER).build()));
+
+        // feed the file in chunks that split records and their bounding boxes
+        ByteBuffer shp = pointShapefile(100, null);
+        int chunkSize = 113;
+        ShapefileChunkedReader reader = null;
+        List<Long> ids = new ArrayList<>();
+        for (int offset = 0; offset < shp.limit(); offset += chunkSize) {
+            ByteBuffer chunk = shp.duplicate();
+            chunk.limit(Math.min(shp.limit(), offset + chunkSize)).position(offset);
+            if (reader == null) {
+                reader = new ShapefileChunkedReader(chunk.slice());
+                reader.setEnvelopeFilter(filterEnvelope);
+            } else {
+                reader.addChunk(chunk.slice());
+            }
+            while (reader.hasNext()) {
+                Point point = (Point) reader.next();
+                assertTrue(filterEnvelope.contains(point.getX(), point.getY()));
+                ids.add(reader.getGeometryID());
+            }
+        }
+        assertEquals(Arrays.asList(11L, 12L, 13L, 14L, 15L, 16L, 17L, 18L, 19L, 20L), ids);
+        assertEquals(90, reader.getSkippedRecords());
+    }
+
+    /**
+     * writes a FlatBuffers table: the vtable, then the table, then what its reference fields point to. fields are
+     * Byte, Short or Long scalars, double[] or int[] vectors, Object[] sub tables or Object[][] vectors of tables, null
+     * when absent
+     */
+    private static int writeFlatBufferTable(ByteBuffer out, Object... fields) {
+        int[] fieldOffsets = new int[fields.length];
+        int tableSize = 4;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                fieldOffsets[i] = tableSize;
+                tableSize += fields[i] instanceof Byte ? 1 : fields[i] instanceof Short ? 2 : fields[i] instanceof Long ? 8 : 4;
+            }
+        }
+
+        int vtable = out.position();
+        out.putShort((short) (4 + 2 * fields.length)).putShort((short) tableSize);
+        for (int fieldOffset : fieldOffsets) {
+            out.putShort((short) fieldOffset);
+        }
+        int table = out.position();
+        out.putInt(table - vtable);
+        out.position(table + tableSize);
+        for (int i = 0; i < fields.length; i++) {
+            int slot = table + fieldOffsets[i];
+            if (fields[i] instanceof Byte) {
+                out.put(slot, (Byte) fields[i]);
+            } else if (fields[i] instanceof Short) {
+                out.putShort(slot, (Short) fields[i]);
+            } else if (fields[i] instanceof Long) {
+                out.putLong(slot, (Long) fields[i]);
+            } else if (fields[i] instanceof double[]) {
+                double[] vector = (double[]) fields[i];
+                out.putInt(slot, out.position() - slot);
+                out.putInt(vector.length);
+                for (double value : vector) {
+                    out.putDouble(value);
+                }
+            } else if (fields[i] instanceof int[]) {
+                int[] vector = (int[]) fields[i];
+                out.putInt(slot, out.position() - slot);
+                out.putInt(vector.length);
+                for (int value : vector) {
+                    out.putInt(value);
+                }
+            } else if (fields[i] instanceof Object[][]) {
+                Object[][] tables = (Object[][]) fields[i];
+                out.putInt(slot, out.position() - slot);
+                out.putInt(tables.length);
+                int elements = out.position();
+                out.position(elements + 4 * tables.length);
+                for (int element = 0; element < tables.length; element++) {
+                    int elementSlot = elements + 4 * element;
+                    out.putInt(elementSlot, writeFlatBufferTable(out, tables[element]) - elementSlot);
+                }
+            } else if (fields[i] instanceof Object[]) {
+                int subTable = writeFlatBufferTable(out, (Object[]) fields[i]);
+                out.putInt(slot, subTable - slot);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * FlatGeobuf file of count points, feature i at (i, -i), with a packed R-tree of node size 4 when indexed
+     */
+    private static ByteBuffer pointFlatGeobuf(int count, boolean indexed) {
+        ByteBuffer out = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        writeFlatGeobufHeader(out, new double[]{0, -count, count, 0}, (byte) 1, false, count, indexed ? 4 : 0);
+
+        ByteBuffer features = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        long[] featureOffsets = new long[count];
+        for (int i = 0; i < count; i++) {
+            featureOffsets[i] = features.position();
+            writeFlatGeobufFeature(features, new Object[]{null, new double[]{i, -i}});
+        }
+
+        if (indexed) {
+            // levels from the leaves up, each parent covers nodeSize children
+            int nodeSize = 4;
+            List<double[]> levels = new ArrayList<>();
+            double[] leaves = new double[count * 5];
+            for (int i = 0; i < count; i++) {
+                leaves[i * 5] = i;
+                leaves[i * 5 + 1] = -i;
+                leaves[i * 5 + 2] = i;
+                leaves[i * 5 + 3] = -i;
+                leaves[i * 5 + 4] = featureOffsets[i];
+            }
+            levels.add(leaves);
+            while (levels.get(levels.size() - 1).length > 5) {
+                double[] children = levels.get(levels.size() - 1);
+                int childCount = children.length / 5;
+                double[] parents = new double[(childCount + nodeSize - 1) / nodeSize * 5];
+                for (int parent = 0; parent < parents.length / 5; parent++) {
+                    int first = parent * nodeSize;
+                    Envelope2D extent = new Envelope2D();
+                    extent.setEmpty();
+                    for (int child = first; child < Math.min(childCount, first + nodeSize); child++) {
+                        extent.merge(children[child * 5], children[child * 5 + 1]);
+                        extent.merge(children[child * 5 + 2], children[child * 5 + 3]);
+                    }
+                    parents[parent * 5] = extent.xmin;
+                    parents[parent * 5 + 1] = extent.ymin;
+                    parents[parent * 5 + 2] = extent.xmax;
+                    parents[parent * 5 + 3] = extent.ymax;
+                    parents[parent * 5 + 4] = first;
+                }
+                levels.add(parents);
+            }
+            // root first, child offsets become node indexes
+            long levelStart = 0;
+            long[] levelStarts = new long[levels.size()];
+            for (int level = levels.size() - 1; level >= 0; level--) {
+                levelStarts[level] = levelStart;
+                levelStart += levels.get(level).length / 5;
+            }
+            for (int level = levels.size() - 1; level >= 0; level--) {
+                double[] nodes = levels.get(level);
+                for (int node = 0; node < nodes.length / 5; node++) {
+                    out.putDouble(nodes[node * 5]).putDouble(nodes[node * 5 + 1])
+                            .putDouble(nodes[node * 5 + 2]).putDouble(nodes[node * 5 + 3]);
+                    out.putLong(level == 0 ? (long) nodes[node * 5 + 4] : levelStarts[level - 1] + (long) nodes[node * 5 + 4]);
+                }
+            }
+        }
+
+        features.flip();
+        out.put(features);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * FlatGeobuf file of the given Geometry tables (ends, xy, z, m, t, tm, type, parts), without an index. a
+     * geometryType of 0 has every geometry carry its own type
+     */
+    private static ByteBuffer flatGeobuf(byte geometryType, boolean hasZ, Object[]... geometries) {
+        ByteBuffer out = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        writeFlatGeobufHeader(out, null, geometryType, hasZ, geometries.length, 0);
+        for (Object[] geometry : geometries) {
+            writeFlatGeobufFeature(out, geometry);
+        }
+        out.flip();
+        return out;
+    }
+
+    private static void writeFlatGeobufHeader(ByteBuffer out, double[] envelope, byte geometryType, boolean hasZ,
+                                              long count, int indexNodeSize) {
+        out.put(new byte[]{0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00});
+        int headerStart = out.position() + 4;
+        out.position(headerStart + 4);
+        int header = writeFlatBufferTable(out, null, envelope, geometryType, hasZ ? (Byte) (byte) 1 : null, null,
+                null, null, null, count, (short) indexNodeSize);
+        out.putInt(headerStart, header - headerStart);
+        out.putInt(headerStart - 4, out.position() - headerStart);
+    }
+
+    private static void writeFlatGeobufFeature(ByteBuffer out, Object[] geometry) {
+        int featureStart = out.position() + 4;
+        out.position(featureStart + 4);
+        int feature = writeFlatBufferTable(out, (Object) geometry);
+        out.putInt(featureStart, feature - featureStart);
+        out.putInt(featureStart - 4, out.position() - featureStart);
+    }
+
+    /**
+     * a polygon with a hole, a 3d line, a multipolygon and a 3d point. rings are written closed, as FlatGeobuf
+     * stores them
+     */
+    private static ByteBuffer mixedFlatGeobuf() {
+        Object[] polygon = {new int[]{5, 10},
+                new double[]{0, 0, 0, 10, 10, 10, 10, 0, 0, 0, 2, 2, 4, 2, 4, 4, 2, 4, 2, 2},
+                null, null, null, null, (byte) 3};
+        Object[] line = {null, new double[]{0, 0, 1, 1, 2, 0}, new double[]{5, 6, 7}, null, null, null, (byte) 2};
+        Object[] multiPolygon = {null, null, null, null, null, null, (byte) 6, new Object[][]{
+                {null, new double[]{20, 0, 20, 1, 21, 1, 21, 0, 20, 0}},
+                {null, new double[]{30, 0, 30, 2, 32, 2, 32, 0, 30, 0}}}};
+        Object[] point = {null, new double[]{3, 4}, new double[]{5}, null, null, null, (byte) 1};
+        return flatGeobuf((byte) 0, true, polygon, line, multiPolygon, point);
+    }
+
+    private static void assertMixedGeometries(List<Geometry> geometries) {
+        assertEquals(4, geometries.size());
+        Polygon polygon = (Polygon) geometries.get(0);
+        assertEquals(2, polygon.getPathCount());
+        // the closing vertices are implicit
+        assertEquals(8, polygon.getPointCount());
+        assertEquals(96, polygon.calculateArea2D(), 0.0);
+
+        Polyline line = (Polyline) geometries.get(1);
+        assertEquals(3, line.getPointCount());
+        assertTrue(line.hasAttribute(VertexDescription.Semantics.Z));
+        assertEquals(7, line.getAttributeAsDbl(VertexDescription.Semantics.Z, 2, 0), 0.0);
+
+        Polygon multiPolygon = (Polygon) geometries.get(2);
+        assertEquals(2, multiPolygon.getPathCount());
+        assertEquals(5, multiPolygon.calculateArea2D(), 0.0);
+
+        Point point = (Point) geometries.get(3);
+        assertEquals(3, point.getX(), 0.0);
+        assertEquals(4, point.getY(), 0.0);
+        assertEquals(5, point.getZ(), 0.0);
+    }
+
+    private static List<Long> readFlatGeobuf(ByteBuffer fgb, int chunkSize, Envelope2D filterEnvelope) {
+        ChunkedFileReader reader = null;
+        List<Long> ids = new ArrayList<>();
+        for (int offset = 0; offset < fgb.limit(); offset += chunkSize) {
+            ByteBuffer chunk = fgb.duplicate();
+            chunk.limit(Math.min(fgb.limit(), offset + chunkSize)).position(offset);
+            if (reader == null) {
+                reader = new FlatGeobufChunkedReader(chunk.slice());
+                reader.setEnvelopeFilter(filterEnvelope);
+            } else {
+                reader.addChunk(chunk.slice());
+            }
+            while (reader.hasNext()) {
+                Point point = (Point) reader.next();
+                assertEquals(reader.getGeometryID(), point.getX(), 0.0);
+                assertEquals(-reader.getGeometryID(), point.getY(), 0.0);
+                ids.add(reader.getGeometryID());
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void testFlatGeobufChunkedReader() {
+        Envelope2D filterEnvelope = new Envelope2D(10, -19.5, 19.5, -10);
+        List<Long> matching = Arrays.asList(10L, 11L, 12L, 13L, 14L, 15L, 16L, 17L, 18L, 19L);
+        for (boolean indexed : new boolean[]{true, false}) {
+            ByteBuffer fgb = pointFlatGeobuf(100, indexed);
+            for (int chunkSize : new int[]{7, 64, fgb.limit()}) {
+                assertEquals(100, readFlatGeobuf(fgb, chunkSize, null).size());
+                assertEquals(matching, readFlatGeobuf(fgb, chunkSize, filterEnvelope));
+            }
+        }
+    }
+
+    @Test
+    public void testFlatGeobufChunkedReaderGeometryTypes() {
+        ByteBuffer fgb = mixedFlatGeobuf();
+        for (int chunkSize : new int[]{7, 64, fgb.limit()}) {
+            ChunkedFileReader reader = null;
+            List<Geometry> geometries = new ArrayList<>();
+            for (int offset = 0; offset < fgb.limit(); offset += chunkSize) {
+                ByteBuffer chunk = fgb.duplicate();
+                chunk.limit(Math.min(fgb.limit(), offset + chunkSize)).position(offset);
+                if (reader == null) {
+                    reader = new FlatGeobufChunkedReader(chunk.slice());
+                } else {
+                    reader.addChunk(chunk.slice());
+                }
+                while (reader.hasNext()) {
+                    geometries.add(reader.next());
+                    assertEquals(geometries.size() - 1, reader.getGeometryID());
+                }
+            }
+            assertMixedGeometries(geometries);
+        }
+
+        // ends past the vertex count
+        ByteBuffer badEnds = flatGeobuf((byte) 3, false, new Object[]{new int[]{3, 12},
+                new double[]{0, 0, 0, 10, 10, 10, 10, 0, 0, 0}});
+        FlatGeobufChunkedReader reader = new FlatGeobufChunkedReader(badEnds);
+        assertTrue(reader.hasNext());
+        try {
+            reader.next();
+            fail("ends past the vertex count were read");
+        } catch (GeometryException expected) {
+        }
+    }
+
+    @Test
+    public void testFileOperateBiStreamFlowFlatGeobuf() throws Exception {
+        ByteBuffer fgb = mixedFlatGeobuf();
+        List<GeometryResponse> responses = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<GeometryResponse> responseObserver = new StreamObserver<>() {
+            @Override
+            public void onNext(GeometryResponse geometryResponse) {
+                responses.add(geometryResponse);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        };
+
+        StreamObserver<FileRequestChunk> requestObserver = GeometryServiceGrpc.newStub(inProcessChannel)
+                .fileOperateBiStreamFlow(responseObserver);
+        GeometryRequest nestedRequest = GeometryRequest.newBuilder()
+                .setOperator(OperatorType.EXPORT_TO_WKT)
+                .build();
+        int chunkSize = 100;
+        for (int offset = 0; offset < fgb.limit(); offset += chunkSize) {
+            int end = Math.min(fgb.limit(), offset + chunkSize);
+            requestObserver.onNext(FileRequestChunk.newBuilder()
+                    .setData(ByteString.copyFrom(fgb.array(), offset, end - offset))
+                    .setFileType(FileRequestChunk.FileType.FLATGEOBUF)
+                    .setNestedRequest(nestedRequest)
+                    .setIsLastChunk(end == fgb.limit())
+                    .build());
+        }
+        requestObserver.onCompleted();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        // the features come back in file order, ids are their position in the file
+        List<Geometry> geometries = new ArrayList<>();
+        for (int i = 0; i < responses.size(); i++) {
+            assertEquals(i, responses.get(i).getGeometry().getGeometryId());
+            geometries.add(OperatorImportFromWkt.local().execute(
+                    WktImportFlags.wktImportDefaults, Geometry.Type.Unknown, responses.get(i).getGeometry().getWkt(), null));
+        }
+        assertMixedGeometries(geometries);
+    }
+
+    private static List<String> readGeoJson(String geoJson, int chunkSize) {
+        byte[] bytes = geoJson.getBytes(StandardCharsets.UTF_8);
+        ChunkedFileReader reader = null;
+        List<String> features = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            ByteBuffer chunk = ByteBuffer.wrap(bytes, offset, Math.min(chunkSize, bytes.length - offset)).slice();
+            if (reader == null) {
+                reader = new GeoJsonChunkedReader(chunk);
+            } else {
+                reader.addChunk(chunk);
+            }
+            while (reader.hasNext()) {
+                Geometry geometry = reader.next();
+                Envelope2D envelope2D = new Envelope2D();
+                geometry.queryEnvelope2D(envelope2D);
+                features.add(reader.getGeometryID() + ":" + reader.getFeatureID() + ":" + geometry.getType() + ":" + (int) envelope2D.xmin);
+            }
+        }
+        return features;
+    }
+
+    @Test
+    public void testGeoJsonChunkedReader() {
+        String ndjson = "{\"type\":\"Feature\",\"id\":\"a\",\"properties\":{\"name\":\"}{[\\\"\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":[1,2]}}\n" +
+                "{\"type\":\"Feature\",\"id\":7,\"geometry\":null,\"properties\":{}}\n" +
+                "{\"type\":\"Feature\",\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[3,0],[4,1]]},\"id\":8}\n" +
+                "{\"type\":\"Polygon\",\"coordinates\":[[[5,0],[6,0],[6,1],[5,0]]]}\n";
+        List<String> expected = Arrays.asList("0:a:Point:1", "2:8:Polyline:3", "3::Polygon:5");
+        String featureCollection = "{\"type\":\"FeatureCollection\",\"name\":\"features\",\"features\":[\n" +
+                ndjson.trim().replace("\n", ",\n") + "\n], \"bbox\": [1, 0, 6, 2]}";
+        for (int chunkSize : new int[]{1, 5, 64, featureCollection.length()}) {
+            assertEquals(expected, readGeoJson(ndjson, chunkSize));
+            assertEquals(expected, readGeoJson(featureCollection, chunkSize));
+        }
+
+        // a top level array of features isn't read as an empty file
+        try {
+            readGeoJson("[" + ndjson.trim().replace("\n", ",\n") + "]", 64);
+            fail("a top level array was read");
+        } catch (GeometryException rejected) {
+        }
+    }
+
+    @Test
+    public void testCascadedUnion() {
+        // a 40 x 40 grid of unit squares, added row by row with every other row reversed
+        int side = 40;
+        CascadedUnion cascadedUnion = new CascadedUnion(null, 64);
+        for (int row = 0; row < side; row++) {
+            for (int column = 0; column < side; column++) {
+                int x = row % 2 == 0 ? column : side - 1 - column;
+                cascadedUnion.add(new Envelope(x, row, x + 1, row + 1));
+            }
+        }
+        cascadedUnion.add(new Polygon());
+        assertEquals(side * side, cascadedUnion.size());
+
+        Polygon union = (Polygon) cascadedUnion.union(new ForkJoinPool(4));
+        assertEquals(side * side, union.calculateArea2D(), 1e-9);
+        assertEquals(1, union.getPathCount());
+        Envelope2D envelope2D = new Envelope2D();
+        union.queryEnvelope2D(envelope2D);
+        assertEquals(new Envelope2D(0, 0, side, side), envelope2D);
+
+        // neighbouring cells are close along the curve
+        assertEquals(1, Math.abs(CascadedUnion.hilbertIndex(0, 0) - CascadedUnion.hilbertIndex(0, 1)));
+        assertNull(new CascadedUnion(null, 64).union(ForkJoinPool.commonPool()));
+    }
+
+    @Test
+    public void testStrTree() {
+        // boxes on a diagonal, box i covers (i, i) to (i + 1, i + 1)
+        int count = 1000;
+        double[] boxes = new double[count * 4];
+        for (int i = 0; i < count; i++) {
+            boxes[i * 4] = i;
+            boxes[i * 4 + 1] = i;
+            boxes[i * 4 + 2] = i + 1;
+            boxes[i * 4 + 3] = i + 1;
+        }
+        StrTree strTree = new StrTree(boxes);
+        assertEquals(count, strTree.size());
+
+        List<Integer> found = new ArrayList<>();
+        strTree.search(new Envelope2D(100.5, 100.5, 103, 103), found::add);
+        Collections.sort(found);
+        assertEquals(Arrays.asList(100, 101, 102, 103), found);
+
+        found.clear();
+        strTree.search(new Envelope2D(-10, 0, -1, count), found::add);
+        assertTrue(found.isEmpty());
+    }
+
+    private DatasetInfo registerDataset(List<DatasetChunk> chunks) throws InterruptedException {
+        List<DatasetInfo> infos = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<DatasetInfo> responseObserver = new StreamObserver<>() {
+            @Override
+            public void onNext(DatasetInfo datasetInfo) {
+                infos.add(datasetInfo);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        };
+        StreamObserver<DatasetChunk> requestObserver = GeometryServiceGrpc.newStub(inProcessChannel).registerDataset(responseObserver);
+        chunks.forEach(requestObserver::onNext);
+        requestObserver.onCompleted();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(1, infos.size());
+        return infos.get(0);
+    }
+
+    @Test
+    public void testRegisterDataset() throws Exception {
+        // a 10 x 10 grid of unit squares with ids row * 10 + column, registered in two chunks
+        SpatialReferenceData wgs84 = SpatialReferenceData.newBuilder().setWkid(4326).build();
+        List<DatasetChunk> chunks = new ArrayList<>();
+        for (int chunk = 0; chunk < 2; chunk++) {
+            DatasetChunk.Builder chunkBuilder = DatasetChunk.newBuilder().setName("grid");
+            for (int row = chunk * 5; row < chunk * 5 + 5; row++) {
+                for (int column = 0; column < 10; column++) {
+                    chunkBuilder.addGeometries(GeometryData.newBuilder()
+                            .setWkt(String.format("POLYGON ((%d %d, %d %d, %d %d, %d %d, %d %d))",
+                                    column, row, column, row + 1, column + 1, row + 1, column + 1, row, column, row))
+                            .setGeometryId(row * 10 + column)
+                            .setSr(wgs84));
+                }
+            }
+            chunks.add(chunkBuilder.build());
+        }
+
+        DatasetInfo datasetInfo = registerDataset(chunks);
+        assertEquals(100, datasetInfo.getGeometryCount());
+        assertEquals(10, datasetInfo.getEnvelope().getXmax(), 0);
+        assertEquals(4326, datasetInfo.getEnvelope().getSr().getWkid());
+
+        GeometryServiceGrpc.GeometryServiceBlockingStub stub = GeometryServiceGrpc.newBlockingStub(inProcessChannel);
+        GeometryRequest within = GeometryRequest.newBuilder()
+                .setLeftGeometry(GeometryData.newBuilder().setWkt("POINT (3.5 7.5)").setSr(wgs84).setGeometryId(5))
+                .setRightDataset("grid")
+                .setOperator(OperatorType.WITHIN)
+                .build();
+        GeometryResponse withinResponse = stub.operate(within);
+        assertEquals(Collections.singletonList(73L), withinResponse.getMatchingIdsList());
+        assertEquals(5, withinResponse.getGeometry().getGeometryId());
+
+        // the corner point touches four squares
+        GeometryRequest intersects = within.toBuilder()
+                .setLeftGeometry(GeometryData.newBuilder().setWkt("POINT (2 2)").setSr(wgs84))
+                .setOperator(OperatorType.INTERSECTS)
+                .build();
+        assertEquals(Arrays.asList(11L, 12L, 21L, 22L), stub.operate(intersects).getMatchingIdsList());
+        assertEquals(96, stub.operate(intersects.toBuilder().setOperator(OperatorType.DISJOINT).build()).getMatchingIdsCount());
+
+        // datasets belong to the server they were registered with
+        String otherServerName = "in-process server without datasets";
+        GeometryServer otherServer = new GeometryServer(InProcessServerBuilder.forName(otherServerName).directExecutor(), 0);
+        otherServer.start();
+        ManagedChannel otherChannel = InProcessChannelBuilder.forName(otherServerName).directExecutor().build();
+        try {
+            GeometryServiceGrpc.newBlockingStub(otherChannel).operate(within);
+            fail("dataset was found on another server");
+        } catch (StatusRuntimeException e) {
+            assertTrue(e.getMessage().contains("grid"));
+        } finally {
+            otherChannel.shutdownNow();
+            otherServer.stop();
+        }
+
+        assertEquals(100, stub.dropDataset(DatasetInfo.newBuilder().setName("grid").build()).getGeometryCount());
+        try {
+            stub.operate(within);
+            fail("dataset was dropped");
+        } catch (StatusRuntimeException e) {
+            assertTrue(e.getMessage().contains("grid"));
+        }
+    }
+
+    @Test
+    public void testGeometryCache() {
+        // a fence tested against many points is imported and accelerated once
+        SpatialReferenceData wgs84 = SpatialReferenceData.newBuilder().setWkid(4326).build();
+        Polygon fence = new Polygon();
+        fence.startPath(0, 0);
+        for (int i = 1; i < 200; i++) {
+            // clockwise, up from the leftmost point
+            double angle = 2 * Math.PI * i / 200;
+            fence.lineTo(10 - 10 * Math.cos(angle), 10 * Math.sin(angle));
+        }
+        GeometryData fenceData = GeometryData.newBuilder()
+                .setWkt(GeometryEngine.geometryToWkt(fence, 0))
+                .setSr(wgs84)
+                .build();
+
+        GeometryServiceGrpc.GeometryServiceBlockingStub stub = GeometryServiceGrpc.newBlockingStub(inProcessChannel);
+        long hits = GeometryCache.getHitCount();
+        for (int i = 0; i < 20; i++) {
+            double x = i - 0.5;
+            GeometryResponse response = stub.operate(GeometryRequest.newBuilder()
+                    .setLeftGeometry(GeometryData.newBuilder().setWkt(String.format("POINT (%f 0)", x)).setSr(wgs84))
+                    .setRightGeometry(fenceData)
+                    .setOperator(OperatorType.WITHIN)
+                    .build());
+            assertEquals(GeometryEngine.within(new Point(x, 0), fence, null), response.getSpatialRelationship());
+        }
+        assertTrue(GeometryCache.getHitCount() - hits >= 19);
+
+        // a cache bounded by weight drops the least recently used values until it fits
+        LruCache<String, String> lruCache = new LruCache<>(10, String::length);
+        lruCache.get("a", key -> "aaaa");
+        lruCache.get("b", key -> "bbbb");
+        lruCache.get("a", key -> "aaaa");
+        lruCache.get("c", key -> "cccc");
+        assertEquals(8, lruCache.getWeight());
+        assertEquals(2, lruCache.size());
+        assertEquals("aaaa", lruCache.get("a", key -> null));
+        assertNull(lruCache.get("b", key -> null));
+        lruCache.get("d", key -> "dddddddddddd");
+        assertEquals(1, lruCache.size());
+    }
+
+    private Set<String> spatialJoin(SpatialJoinRequest first, List<SpatialJoinRequest> rest) throws InterruptedException {
+        Set<String> pairs = Collections.synchronizedSet(new HashSet<>());
+        CountDownLatch done = new CountDownLatch(1);
+        StreamObserver<SpatialJoinResponse> responseObserver = new StreamObserver<>() {
+            @Override
+            public void onNext(SpatialJoinResponse joinResponse) {
+                for (int i = 0; i < joinResponse.getLeftIdsCount(); i++) {
+                    assertTrue(pairs.add(joinResponse.getLeftIds(i) + ":" + joinResponse.getRightIds(i)));
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                done.countDown();
+            }
+        };
+        StreamObserver<SpatialJoinRequest> requestObserver = GeometryServiceGrpc.newStub(inProcessChannel).spatialJoin(responseObserver);
+        requestObserver.onNext(first);
+        rest.forEach(requestObserver::onNext);
+        requestObserver.onCompleted();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        return pairs;
+    }
+
+    @Test
+    public void testSpatialJoin() throws Exception {
+        // left: a 20 x 20 grid of unit squares, right: random points, both streamed in several messages
+        SpatialReferenceData wgs84 = SpatialReferenceData.newBuilder().setWkid(4326).build();
+        List<Polygon> squares = new ArrayList<>();
+        List<Point> points = new ArrayList<>();
+        List<SpatialJoinRequest> rest = new ArrayList<>();
+        SpatialJoinRequest.Builder requestBuilder = SpatialJoinRequest.newBuilder();
+        for (int row = 0; row < 20; row++) {
+            for (int column = 0; column < 20; column++) {
+                Polygon square = new Polygon();
+                square.addEnvelope(new Envelope(column, row, column + 1, row + 1), false);
+                squares.add(square);
+                requestBuilder.addLeftGeometries(GeometryData.newBuilder()
+                        .setWkt(GeometryEngine.geometryToWkt(square, 0))
+                        .setGeometryId(squares.size() - 1));
+            }
+            rest.add(requestBuilder.build());
+            requestBuilder.clear();
+        }
+        Random random = new Random(5);
+        for (int i = 0; i < 500; i++) {
+            points.add(new Point(random.nextDouble() * 22 - 1, random.nextDouble() * 22 - 1));
+            requestBuilder.addRightGeometries(GeometryData.newBuilder()
+                    .setWkt(GeometryEngine.geometryToWkt(points.get(i), 0))
+                    .setGeometryId(i));
+        }
+        rest.add(requestBuilder.build());
+
+        for (OperatorType predicate : new OperatorType[]{OperatorType.CONTAINS, OperatorType.DISTANCE}) {
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < squares.size(); i++) {
+                for (int j = 0; j < points.size(); j++) {
+                    boolean match = predicate == OperatorType.CONTAINS ?
+                            GeometryEngine.contains(squares.get(i), points.get(j), null) :
+                            GeometryEngine.distance(squares.get(i), points.get(j), null) <= 0.5;
+                    if (match) {
+                        expected.add(i + ":" + j);
+                    }
+                }
+            }
+            SpatialJoinRequest first = SpatialJoinRequest.newBuilder()
+                    .setPredicate(predicate)
+                    .setDistance(0.5)
+                    .setSr(wgs84)
+                    .build();
+            assertEquals(expected, spatialJoin(first, rest));
+        }
+
+        // partitions smaller than the input exercise the fork join split
+        SpatialJoin spatialJoin = new SpatialJoin(OperatorType.INTERSECTS, 0, null, 7);
+        for (int i = 0; i < squares.size(); i++) {
+            spatialJoin.addLeft(squares.get(i), null, i);
+        }
+        spatialJoin.addRight(new Point(3, 3), null, 0);
+        List<SpatialJoinResponse> responses = Collections.synchronizedList(new ArrayList<>());
+        spatialJoin.run(new ForkJoinPool(4), responses::add, () -> false);
+        assertEquals(4, responses.stream().mapToInt(SpatialJoinResponse::getLeftIdsCount).sum());
+    }
+
+    @Test
+    public void testResponseQueue() throws Exception {
+        // a response stream that is only ready when the test says so
+        AtomicBoolean ready = new AtomicBoolean(false);
+        Runnable[] handlers = new Runnable[2];
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean completed = new AtomicBoolean(false);
+        class FakeCall extends ServerCallStreamObserver<Integer> {
+            @Override public boolean isCancelled() { return false; }
+            @Override public void setOnCancelHandler(Runnable onCancelHandler) { handlers[1] = onCancelHandler; }
+            @Override public void setCompression(String compression) { }
+            @Override public boolean isReady() { return ready.get(); }
+            @Override public void setOnReadyHandler(Runnable onReadyHandler) { handlers[0] = onReadyHandler; }
+            @Override public void disableAutoInboundFlowControl() { }
+            @Override public void request(int count) { }
+            @Override public void setMessageCompression(boolean enable) { }
+            @Override public void onNext(Integer value) { sent.add(value); }
+            @Override public void onError(Throwable t) { fail(t.toString()); }
+            @Override public void onCompleted() { completed.set(true); }
+        }
+
+        // producers block once the queue is full and carry on when the stream turns ready
+        ResponseQueue<Integer> responses = new ResponseQueue<>(new FakeCall(), 2);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        ForkJoinTask<?> producer = pool.submit(() -> {
+            for (int i = 0; i < 10; i++) {
+                responses.put(i);
+            }
+            responses.complete();
+        });
+        Thread.sleep(200);
+        assertFalse(producer.isDone());
+        assertTrue(sent.isEmpty());
+        ready.set(true);
+        handlers[0].run();
+        producer.get(30, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), sent);
+        assertTrue(completed.get());
+
+        // a cancelled call drops queued responses and releases blocked producers
+        ready.set(false);
+        sent.clear();
+        completed.set(false);
+        ResponseQueue<Integer> cancelledResponses = new ResponseQueue<>(new FakeCall(), 1);
+        cancelledResponses.put(0);
+        ForkJoinTask<?> blocked = pool.submit(() -> cancelledResponses.put(1));
+        Thread.sleep(100);
+        assertFalse(blocked.isDone());
+        handlers[1].run();
+        blocked.get(30, TimeUnit.SECONDS);
+        assertTrue(cancelledResponses.isCancelled());
+        ready.set(true);
+        handlers[0].run();
+        cancelledResponses.complete();
+        assertTrue(sent.isEmpty());
+        assertFalse(completed.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testProximity2DNearest() throws Exception {
+        // facilities at random points, the nearest ones found by the tree match a scan of every facility
+        Random random = new Random(11);
+        List<Point> facilities = new ArrayList<>();
+        DatasetChunk.Builder chunkBuilder = DatasetChunk.newBuilder().setName("facilities");
+        for (int i = 0; i < 2000; i++) {
+            facilities.add(new Point(random.nextDouble() * 100, random.nextDouble() * 100));
+            chunkBuilder.addGeometries(GeometryData.newBuilder()
+                    .setWkt(GeometryEngine.geometryToWkt(facilities.get(i), 0))
+                    .setGeometryId(i));
+        }
+        assertEquals(2000, registerDataset(Collections.singletonList(chunkBuilder.build())).getGeometryCount());
+
+        GeometryServiceGrpc.GeometryServiceBlockingStub stub = GeometryServiceGrpc.newBlockingStub(inProcessChannel);
+        Point query = new Point(50, 50);
+        GeometryRequest nearest = GeometryRequest.newBuilder()
+                .setLeftGeometry(GeometryData.newBuilder().setWkt(GeometryEngine.geometryToWkt(query, 0)))
+                .setRightDataset("facilities")
+                .setOperator(OperatorType.PROXIMITY_2D)
+                .setProximityParams(GeometryRequest.ProximityParams.newBuilder().setK(5))
+                .build();
+        GeometryResponse response = stub.operate(nearest);
+
+        List<Integer> byDistance = new ArrayList<>();
+        for (int i = 0; i < facilities.size(); i++) {
+            byDistance.add(i);
+        }
+        byDistance.sort(Comparator.comparingDouble(i -> GeometryEngine.distance(query, facilities.get(i), null)));
+        assertEquals(5, response.getMatchingIdsCount());
+        for (int i = 0; i < 5; i++) {
+            assertEquals((long) byDistance.get(i), response.getMatchingIds(i));
+            assertEquals(GeometryEngine.distance(query, facilities.get(byDistance.get(i)), null), response.getDistances(i), 1e-9);
+        }
+
+        // max_distance cuts the search short of k
+        double maxDistance = response.getDistances(2);
+        GeometryResponse limited = stub.operate(nearest.toBuilder()
+                .setProximityParams(GeometryRequest.ProximityParams.newBuilder().setK(5).setMaxDistance(maxDistance))
+                .build());
+        assertEquals(response.getMatchingIdsList().subList(0, 3), limited.getMatchingIdsList());
+        stub.dropDataset(DatasetInfo.newBuilder().setName("facilities").build());
+    }
+
+    @Test
+    public void testRelationBitset() throws Exception {
+        // one fence against many right geometries, results packed one bit per right geometry
+        Polygon fence = new Polygon();
+        fence.addEnvelope(new Envelope(0, 0, 10, 10), false);
+        List<Geometry> points = new ArrayList<>();
+        Random random = new Random(13);
+        for (int i = 0; i < 1000; i++) {
+            points.add(new Point(random.nextDouble() * 20, random.nextDouble() * 20));
+        }
+        GeometryRequest intersects = GeometryRequest.newBuilder()
+                .setLeftGeometry(GeometryData.newBuilder().setWkt(GeometryEngine.geometryToWkt(fence, 0)))
+                .setOperator(OperatorType.INTERSECTS)
+                .setRelationResult(GeometryRequest.RelationResult.BITSET_WITH_IDS)
+                .build();
+
+        GeometryResponse response = GeometryServiceUtil.nonCursorFromRequest(intersects, null,
+                new SimpleGeometryCursor(points));
+        assertEquals(0, response.getRelateMapCount());
+        assertEquals(125, response.getRelateBits().size());
+        assertEquals(1000, response.getRelateIdsCount());
+        for (int i = 0; i < points.size(); i++) {
+            boolean bit = (response.getRelateBits().byteAt(i / 8) & (1 << (i % 8))) != 0;
+            assertEquals(!GeometryEngine.disjoint(fence, points.get(i), null), bit);
+        }
+
+        GeometryResponse mapResponse = GeometryServiceUtil.nonCursorFromRequest(
+                intersects.toBuilder().setRelationResult(GeometryRequest.RelationResult.RELATE_MAP).build(), null,
+                new SimpleGeometryCursor(points));
+        assertTrue(response.getSerializedSize() < mapResponse.getSerializedSize());
+        GeometryResponse bitsResponse = GeometryServiceUtil.nonCursorFromRequest(
+                intersects.toBuilder().setRelationResult(GeometryRequest.RelationResult.BITSET).build(), null,
+                new SimpleGeometryCursor(points));
+        assertEquals(response.getRelateBits(), bitsResponse.getRelateBits());
+        assertTrue(bitsResponse.getSerializedSize() * 20 < mapResponse.getSerializedSize());
+
+        GeometryResponse single = GeometryServiceUtil.nonCursorFromRequest(
+                intersects.toBuilder().setRelationResult(GeometryRequest.RelationResult.BITSET).build(), null,
+                new SimpleGeometryCursor(new Point(5, 5)));
+        assertTrue(single.getSpatialRelationship());
+        assertEquals(0, single.getRelateIdsCount());
+    }
+
+    @Test
+    public void testDistanceMatrix() throws Exception {
+        // random points and short lines, the streamed bands match a pairwise scan
+        Random random = new Random(17);
+        List<Geometry> left = new ArrayList<>();
+        List<Geometry> right = new ArrayList<>();
+        DistanceMatrixRequest.Builder requestBuilder = DistanceMatrixRequest.newBuilder();
+        for (int i = 0; i < 150; i++) {
+            left.add(new Point(random.nextDouble() * 100, random.nextDouble() * 100));
+            requestBuilder.addLeftGeometries(GeometryData.newBuilder().setWkt(GeometryEngine.geometryToWkt(left.get(i), 0)));
+        }
+        for (int i = 0; i < 90; i++) {
+            Polyline line = new Polyline();
+            double x = random.nextDouble() * 100;
+            double y = random.nextDouble() * 100;
+            line.startPath(x, y);
+            line.lineTo(x + random.nextDouble() * 5, y + random.nextDouble() * 5);
+            right.add(line);
+            requestBuilder.addRightGeometries(GeometryData.newBuilder().setWkt(GeometryEngine.geometryToWkt(line, 0)));
+        }
+
+        GeometryServiceGrpc.GeometryServiceBlockingStub stub = GeometryServiceGrpc.newBlockingStub(inProcessChannel);
+        for (double maxDistance : new double[]{0, 20}) {
+            double[] distances = new double[left.size() * right.size()];
+            int rows = 0;
+            Iterator<DistanceMatrixResponse> responses = stub.distanceMatrix(requestBuilder.setMaxDistance(maxDistance).build());
+            while (responses.hasNext()) {
+                DistanceMatrixResponse response = responses.next();
+                assertEquals(right.size(), response.getColumnCount());
+                assertEquals(response.getRowCount() * right.size(), response.getDistancesCount());
+                for (int i = 0; i < response.getDistancesCount(); i++) {
+                    distances[response.getFirstRow() * right.size() + i] = response.getDistances(i);
+                }
+                rows += response.getRowCount();
+            }
+            assertEquals(left.size(), rows);
+
+            for (int i = 0; i < left.size(); i++) {
+                for (int j = 0; j < right.size(); j++) {
+                    double expected = GeometryEngine.distance(left.get(i), right.get(j), null);
+                    if (maxDistance > 0 && expected > maxDistance) {
+                        assertEquals(Double.POSITIVE_INFINITY, distances[i * right.size() + j], 0);
+                    } else {
+                        assertEquals(expected, distances[i * right.size() + j], 1e-9);
+                    }
+                }
+            }
+        }
+
+        // tiles smaller than the input exercise the fork join split and the tile envelope cutoff, pairs with the
+        // empty geometries in the last row and column are NaN
+        DistanceMatrix distanceMatrix = new DistanceMatrix(null, 1, 4);
+        for (int i = 0; i < 10; i++) {
+            distanceMatrix.addLeft(new Point(i * 10, 0), null);
+            distanceMatrix.addRight(new Point(i * 10, 0.5), null);
+        }
+        distanceMatrix.addLeft(new Point(), null);
+        distanceMatrix.addRight(new Point(), null);
+        List<DistanceMatrixResponse> responses = Collections.synchronizedList(new ArrayList<>());
+        distanceMatrix.run(new ForkJoinPool(4), responses::add, () -> false);
+        assertEquals(3, responses.size());
+        for (DistanceMatrixResponse response : responses) {
+            for (int i = 0; i < response.getDistancesCount(); i++) {
+                int row = response.getFirstRow() + i / 11;
+                int column = i % 11;
+                double expected = row == 10 || column == 10 ? Double.NaN :
+                        row == column ? 0.5 : Double.POSITIVE_INFINITY;
+                assertEquals(expected, response.getDistances(i), 0);
+            }
+        }
+    }
 }
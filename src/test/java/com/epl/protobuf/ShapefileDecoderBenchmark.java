@@ -0,0 +1,210 @@
+/*
+Copyright 2017-2019 Echo Park Labs
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+For additional information, contact:
+
+email: info@echoparklabs.io
+*/
+
+package com.epl.protobuf;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+/**
+ * Throughput of the shapefile record decoders over a generated polygon shapefile. Every decoder reads each record's
+ * number, length, shape type and bounding box and hands the content on as a ByteBuffer, the work the readers do
+ * before the shape importer runs. The last coordinate of each record is read so the content is actually touched.
+ *
+ * stream: the previous DataInputStream decoding, little endian values a byte at a time, content copied to a byte[]
+ * decoder: ShapefileDecoder over the file in a heap buffer, content sliced
+ * chunked: ShapefileChunkedReader fed the same bytes in CHUNK_BYTES chunks, with an envelope filter around every
+ *          record so each record header and extent is peeked in the ring, content sliced and not imported
+ * mapped: ShapefileMappedReader over the file on disk, content sliced from the mapping
+ *
+ * gradle shapefileDecoderBenchmark [-Precords=N]
+ */
+public class ShapefileDecoderBenchmark {
+    private static final int ROUNDS = 10;
+    private static final int POINTS_PER_POLYGON = 24;
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        byte[] shapefile = polygonShapefile(records);
+        File shpFile = File.createTempFile("benchmark", ".shp");
+        shpFile.deleteOnExit();
+        Files.write(shpFile.toPath(), shapefile);
+
+        System.out.println(String.format("%d polygons, %.1f MB", records, shapefile.length / 1e6));
+        for (int round = 0; round < ROUNDS; round++) {
+            // the first rounds are warm up, the last one is reported
+            boolean report = round == ROUNDS - 1;
+            long stream = time("stream", shapefile.length, report, () -> streamDecode(shapefile));
+            long decoder = time("decoder", shapefile.length, report, () -> bufferDecode(ByteBuffer.wrap(shapefile)));
+            long mapped = time("mapped", shapefile.length, report, () -> mappedDecode(shpFile));
+            if (stream != decoder || decoder != mapped) {
+                throw new IllegalStateException("decoders disagree");
+            }
+            // the chunked reader doesn't expose record content, it is checked on the sum of the record numbers
+            long chunked = time("chunked", shapefile.length, report, () -> chunkedDecode(shapefile));
+            if (chunked != (long) records * (records + 1) / 2) {
+                throw new IllegalStateException("chunked reader missed records");
+            }
+        }
+    }
+
+    private interface Decode {
+        long run() throws IOException;
+    }
+
+    private static long time(String name, long bytes, boolean report, Decode decode) throws IOException {
+        long start = System.nanoTime();
+        long checksum = decode.run();
+        long elapsed = System.nanoTime() - start;
+        if (report) {
+            System.out.println(String.format("%-8s %8.1f MB/s", name, bytes / 1e6 / (elapsed / 1e9)));
+        }
+        return checksum;
+    }
+
+    private static long streamDecode(byte[] shapefile) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(shapefile));
+        in.skipBytes(24);
+        long fileLengthBytes = in.readInt() * 2L;
+        in.skipBytes(ShapefileDecoder.HEADER_BYTES - 28);
+
+        long checksum = 0;
+        long position = ShapefileDecoder.HEADER_BYTES;
+        while (position < fileLengthBytes) {
+            int recordNumber = in.readInt();
+            int recordSizeBytes = in.readInt() * 2;
+            int shapeType = readLittleEndianInt(in);
+            double xmin = readLittleEndianDouble(in);
+            readLittleEndianDouble(in);
+            readLittleEndianDouble(in);
+            readLittleEndianDouble(in);
+
+            byte[] rest = new byte[recordSizeBytes - 36];
+            in.readFully(rest);
+            ByteBuffer shape = ByteBuffer.wrap(rest).order(ByteOrder.LITTLE_ENDIAN);
+            checksum += recordNumber + shapeType + (long) xmin + shape.remaining() + (long) shape.getDouble(shape.limit() - 8);
+            position += ShapefileDecoder.RECORD_HEADER_BYTES + recordSizeBytes;
+        }
+        return checksum;
+    }
+
+    private static long bufferDecode(ByteBuffer shapefile) throws IOException {
+        long fileLengthBytes = ShapefileDecoder.readHeader(shapefile).fileLengthBytes;
+        long checksum = 0;
+        int position = ShapefileDecoder.HEADER_BYTES;
+        while (position < fileLengthBytes) {
+            int recordNumber = ShapefileDecoder.recordNumber(shapefile, position);
+            int recordSizeBytes = ShapefileDecoder.recordContentBytes(shapefile, position);
+            int content = position + ShapefileDecoder.RECORD_HEADER_BYTES;
+            int shapeType = ShapefileDecoder.littleEndianInt(shapefile, content);
+            double xmin = ShapefileDecoder.littleEndianDouble(shapefile, content + 4);
+
+            ByteBuffer shape = ShapefileDecoder.slice(shapefile, content + 36, recordSizeBytes - 36);
+            checksum += recordNumber + shapeType + (long) xmin + shape.remaining() + (long) shape.getDouble(shape.limit() - 8);
+            position = content + recordSizeBytes;
+        }
+        return checksum;
+    }
+
+    private static long chunkedDecode(byte[] shapefile) throws IOException {
+        ShapefileChunkedReader reader = new ShapefileChunkedReader(
+                ByteBuffer.wrap(shapefile, 0, Math.min(CHUNK_BYTES, shapefile.length)));
+        reader.setEnvelopeFilter(reader.getEnvelope2D());
+        long checksum = 0;
+        for (int offset = CHUNK_BYTES; ; offset += CHUNK_BYTES) {
+            while (reader.nextRecord() != null) {
+                checksum += reader.getGeometryID();
+            }
+            if (offset >= shapefile.length) {
+                return checksum;
+            }
+            reader.addChunk(ByteBuffer.wrap(shapefile, offset, Math.min(CHUNK_BYTES, shapefile.length - offset)));
+        }
+    }
+
+    private static long mappedDecode(File shpFile) throws IOException {
+        try (ShapefileMappedReader reader = new ShapefileMappedReader(shpFile, null)) {
+            long checksum = 0;
+            while (reader.hasNext()) {
+                ByteBuffer shape = reader.next();
+                int shapeType = ShapefileDecoder.littleEndianInt(shape, 0);
+                double xmin = ShapefileDecoder.littleEndianDouble(shape, 4);
+                checksum += reader.getGeometryID() + shapeType + (long) xmin + shape.remaining() - 36 + (long) shape.getDouble(shape.limit() - 8);
+            }
+            return checksum;
+        }
+    }
+
+    private static int readLittleEndianInt(InputStream in) throws IOException {
+        int ch4 = in.read();
+        int ch3 = in.read();
+        int ch2 = in.read();
+        int ch1 = in.read();
+        if ((ch1 | ch2 | ch3 | ch4) < 0) {
+            throw new EOFException();
+        }
+        return ((ch1 << 24) + (ch2 << 16) + (ch3 << 8) + (ch4));
+    }
+
+    private static double readLittleEndianDouble(DataInputStream in) throws IOException {
+        byte[] readBuffer = new byte[8];
+        in.readFully(readBuffer, 0, 8);
+        return Double.longBitsToDouble((((long) readBuffer[7] << 56) +
+                ((long) (readBuffer[6] & 255) << 48) +
+                ((long) (readBuffer[5] & 255) << 40) +
+                ((long) (readBuffer[4] & 255) << 32) +
+                ((long) (readBuffer[3] & 255) << 24) +
+                ((readBuffer[2] & 255) << 16) +
+                ((readBuffer[1] & 255) << 8) +
+                ((readBuffer[0] & 255))));
+    }
+
+    /**
+     * single ring polygons, record i is an arc of POINTS_PER_POLYGON vertices in the unit square at (i, i)
+     */
+    private static byte[] polygonShapefile(int records) {
+        // shape type, bounding box, part and point counts, one part index, the points
+        int contentBytes = 4 + 32 + 4 + 4 + 4 + POINTS_PER_POLYGON * 16;
+        ByteBuffer shp = ByteBuffer.allocate(ShapefileDecoder.HEADER_BYTES + records * (ShapefileDecoder.RECORD_HEADER_BYTES + contentBytes));
+        shp.order(ByteOrder.BIG_ENDIAN).putInt(0, 9994).putInt(24, shp.capacity() / 2);
+        shp.order(ByteOrder.LITTLE_ENDIAN).putInt(28, 1000).putInt(32, 5)
+                .putDouble(36, 0).putDouble(44, 0).putDouble(52, records + 1).putDouble(60, records + 1);
+        shp.position(ShapefileDecoder.HEADER_BYTES);
+        for (int i = 0; i < records; i++) {
+            shp.order(ByteOrder.BIG_ENDIAN).putInt(i + 1).putInt(contentBytes / 2);
+            shp.order(ByteOrder.LITTLE_ENDIAN).putInt(5)
+                    .putDouble(i).putDouble(i).putDouble(i + 1).putDouble(i + 1)
+                    .putInt(1).putInt(POINTS_PER_POLYGON).putInt(0);
+            for (int point = 0; point < POINTS_PER_POLYGON; point++) {
+                double t = point / (double) (POINTS_PER_POLYGON - 1);
+                shp.putDouble(i + Math.abs(Math.cos(t * Math.PI))).putDouble(i + Math.sin(t * Math.PI));
+            }
+        }
+        return shp.array();
+    }
+}